@@ -0,0 +1,75 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.web.socket.sockjs.frame.Jackson2SockJsMessageCodec;
+import org.springframework.web.socket.sockjs.frame.SockJsFrame;
+import org.springframework.web.socket.sockjs.frame.SockJsMessageCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条广播消息发给N个接收者的编码开销：每个接收者各自编码 vs 只编码一次共用
+ * @author peiyu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreparedTextMessageBenchmark {
+
+    private static final SockJsMessageCodec CODEC = new Jackson2SockJsMessageCodec();
+
+    @Param({"1000", "10000"})
+    private int recipients;
+
+    private String payload;
+
+    @Setup
+    public void setUp() {
+        this.payload = "2016-10-18 12:00:00 peiyu说：大家好，这是一条用来测试广播编码开销的\"聊天\"消息 hello websocket";
+    }
+
+    @Benchmark
+    public void encodePerRecipient(Blackhole blackhole) {
+        for (int i = 0; i < this.recipients; i++) {
+            blackhole.consume(this.payload.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public void encodeOnce(Blackhole blackhole) {
+        PreparedTextMessage message = new PreparedTextMessage(this.payload);
+        for (int i = 0; i < this.recipients; i++) {
+            blackhole.consume(message.getUtf8());
+        }
+    }
+
+    @Benchmark
+    public void sockJsEncodePerRecipient(Blackhole blackhole) {
+        for (int i = 0; i < this.recipients; i++) {
+            blackhole.consume(SockJsFrame.messageFrame(CODEC, this.payload).getContentBytes());
+        }
+    }
+
+    @Benchmark
+    public void sockJsEncodeOnce(Blackhole blackhole) {
+        PreparedTextMessage message = new PreparedTextMessage(this.payload);
+        for (int i = 0; i < this.recipients; i++) {
+            blackhole.consume(message.getSockJsUtf8());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.sd4324530.webChat.filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条聊天消息的敏感词检查：不过滤 vs 逐个词String.contains vs Aho–Corasick自动机；
+ * 词表是随机生成的中英文词，消息里没有命中，是最常见也是naive写法最慢的情况
+ * @author peiyu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFilterBenchmark {
+
+    private static final String CHARS = "abcdefghijklmnopqrstuvwxyz敏感词过滤测试广告链接发票代开刷单兼职";
+
+    @Param({"100", "10000"})
+    private int words;
+
+    private String message;
+
+    private String[] lowerWords;
+
+    private AhoCorasick automaton;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<String> list = new ArrayList<>(this.words);
+        while (list.size() < this.words) {
+            StringBuilder builder = new StringBuilder();
+            int length = 3 + random.nextInt(4);
+            for (int i = 0; i < length; i++) {
+                builder.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            list.add(builder.toString());
+        }
+        this.lowerWords = new String[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            this.lowerWords[i] = list.get(i).toLowerCase();
+        }
+        this.automaton = AhoCorasick.compile(list);
+        this.message = "大家好，这是一条用来测试内容过滤开销的聊天消息 hello websocket";
+    }
+
+    /**
+     * 现在的做法，不过滤
+     */
+    @Benchmark
+    public String baseline() {
+        return this.message;
+    }
+
+    @Benchmark
+    public boolean naiveContains() {
+        String text = this.message.toLowerCase();
+        for (String word : this.lowerWords) {
+            if (text.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean ahoCorasickContains() {
+        return this.automaton.containsAny(this.message);
+    }
+
+    @Benchmark
+    public String ahoCorasickMask() {
+        return this.automaton.mask(this.message, '*');
+    }
+}
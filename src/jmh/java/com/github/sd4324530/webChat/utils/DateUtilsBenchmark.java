@@ -0,0 +1,49 @@
+package com.github.sd4324530.webChat.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每条聊天消息都要格式化一次当前时间：DateUtils每次完整格式化，TimestampFormatter每个线程每秒只格式化一次
+ * @author peiyu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateUtilsBenchmark {
+
+    private final Date date = new Date();
+
+    @Benchmark
+    public String date2String() {
+        return DateUtils.date2String(this.date);
+    }
+
+    @Benchmark
+    public String date2StringNow() {
+        return DateUtils.date2String(new Date());
+    }
+
+    @Benchmark
+    public String date2StringSimple() {
+        return DateUtils.date2String(this.date, DateUtils.SIMPLE_DATE_FORMAT);
+    }
+
+    @Benchmark
+    public String timestampFormatterNow() {
+        return TimestampFormatter.now();
+    }
+}
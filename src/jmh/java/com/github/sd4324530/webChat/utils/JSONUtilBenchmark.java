@@ -0,0 +1,171 @@
+package com.github.sd4324530.webChat.utils;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.EnvelopeCodec;
+import com.github.sd4324530.webChat.protocol.MessageFormat;
+import com.github.sd4324530.webChat.protocol.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * json序列化和反序列化：原来的toJson(美化+排序)、toBean(解析两次)，和热点消息用的紧凑输出、复用缓冲区、手写的消息编码对比
+ * @author peiyu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONUtilBenchmark {
+
+    private ChatMessage bean;
+
+    private Map<String, Object> map;
+
+    private String json;
+
+    private Envelope envelope;
+
+    private TextMessage envelopeJson;
+
+    private final EnvelopeCodec codec = MessageFormat.JSON.getCodec();
+
+    @Setup
+    public void setUp() {
+        this.bean = new ChatMessage();
+        this.bean.setSeq(12345L);
+        this.bean.setRoom("大厅");
+        this.bean.setUser("peiyu");
+        this.bean.setBody("大家好，这是一条用来测试json序列化开销的\"聊天\"消息 hello websocket");
+        this.map = new HashMap<>();
+        this.map.put("seq", this.bean.getSeq());
+        this.map.put("room", this.bean.getRoom());
+        this.map.put("user", this.bean.getUser());
+        this.map.put("body", this.bean.getBody());
+        this.json = JSONUtil.toCompactJson(this.bean);
+        this.envelope = new Envelope(MessageType.CHAT, this.bean.getSeq(), this.bean.getRoom(), this.bean.getBody());
+        this.envelopeJson = (TextMessage) this.codec.encode(this.envelope);
+    }
+
+    @Benchmark
+    public String toJsonBean() {
+        return JSONUtil.toJson(this.bean);
+    }
+
+    @Benchmark
+    public String toJsonMap() {
+        return JSONUtil.toJson(this.map);
+    }
+
+    @Benchmark
+    public String toCompactJson() {
+        return JSONUtil.toCompactJson(this.bean);
+    }
+
+    @Benchmark
+    public byte[] toCompactJsonBytes() {
+        return JSONUtil.toCompactJsonBytes(this.bean);
+    }
+
+    @Benchmark
+    public int writeCompactJsonPooled() {
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        JSONUtil.writeCompactJson(this.bean, builder);
+        return builder.length();
+    }
+
+    /**
+     * 原来toBean的做法：解析成JSONObject，放入类型，再序列化成字符串解析一次
+     */
+    @Benchmark
+    public ChatMessage toBeanRoundTrip() {
+        JSONObject jo = JSON.parseObject(this.json);
+        jo.put(JSON.DEFAULT_TYPE_KEY, ChatMessage.class.getName());
+        return JSON.parseObject(jo.toJSONString(), ChatMessage.class);
+    }
+
+    @Benchmark
+    public ChatMessage toBean() {
+        return JSONUtil.toBean(this.json, ChatMessage.class);
+    }
+
+    /**
+     * 通用的toJson编码一条消息
+     */
+    @Benchmark
+    public String envelopeToJson() {
+        return JSONUtil.toJson(this.envelope);
+    }
+
+    /**
+     * 消息协议里手写的json编码
+     */
+    @Benchmark
+    public Object envelopeEncode() {
+        return this.codec.encode(this.envelope);
+    }
+
+    @Benchmark
+    public Object envelopeDecode() {
+        return this.codec.decode(this.envelopeJson);
+    }
+
+    public static class ChatMessage {
+
+        private long seq;
+
+        private String room;
+
+        private String user;
+
+        private String body;
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public void setSeq(long seq) {
+            this.seq = seq;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public void setUser(String user) {
+            this.user = user;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public void setBody(String body) {
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.sd4324530.webChat.webSocket;
+
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.MessageFormat;
+import com.github.sd4324530.webChat.protocol.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条聊天消息在EchoHandler里的完整处理：解码、查登录者、长度检查、刷屏检查、记入历史、投递给房间里所有人；
+ * 连接都是假的，投递到广播队列为止，真正的发送由广播线程异步完成，不计入；
+ * 消息在调用线程里直接处理(INLINE)，测的是处理本身的开销
+ * @author peiyu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.journal.enabled=false", "-Dchat.dispatch.mode=INLINE"})
+public class EchoHandlerBenchmark {
+
+    @Param({"10", "1000"})
+    private int members;
+
+    //所有连接协商的消息格式
+    @Param({"TEXT", "JSON", "BINARY"})
+    private MessageFormat format;
+
+    private final EchoHandler handler = new EchoHandler();
+
+    private StubWebSocketSession[] sessions;
+
+    private WebSocketMessage<?> chat;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.sessions = new StubWebSocketSession[this.members];
+        for (int i = 0; i < this.members; i++) {
+            this.sessions[i] = new StubWebSocketSession("bench-" + i);
+            this.sessions[i].getAttributes().put(MessageFormat.ATTRIBUTE, this.format);
+            this.handler.afterConnectionEstablished(this.sessions[i]);
+            this.handler.handleMessage(this.sessions[i], clientMessage(new Envelope(MessageType.JOIN, Envelope.NO_SEQ, null, "user" + i)));
+        }
+        this.chat = clientMessage(new Envelope(MessageType.CHAT, Envelope.NO_SEQ, null, "大家好，这是一条用来测试消息处理开销的聊天消息 hello websocket"));
+    }
+
+    /**
+     * 客户端发出的消息；文本格式的编码器是服务器发消息用的，客户端登录是 |昵称，聊天就是原文
+     */
+    private WebSocketMessage<?> clientMessage(Envelope envelope) {
+        if (MessageFormat.TEXT == this.format) {
+            return new TextMessage(MessageType.JOIN == envelope.getType() ? "|" + envelope.getBody() : envelope.getBody());
+        }
+        return this.format.getCodec().encode(envelope);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (StubWebSocketSession session : this.sessions) {
+            this.handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+        }
+    }
+
+    /**
+     * 不限流，每条消息都会广播
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.journal.enabled=false", "-Dchat.dispatch.mode=INLINE", "-Dchat.limit.message.type=none"})
+    public void broadcast() throws Exception {
+        this.handler.handleMessage(this.sessions[0], this.chat);
+    }
+
+    /**
+     * 使用默认的限流配置，除了第一条之外都被刷屏检查拦下，只给发送者回一条提示
+     */
+    @Benchmark
+    public void floodRejected() throws Exception {
+        this.handler.handleMessage(this.sessions[0], this.chat);
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.sd4324530.webChat.webSocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在线用户缓存的查询：按session id取昵称，以及广播时遍历所有session
+ * @author peiyu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketCacheBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    private int sessions;
+
+    private final WebSocketCache cache = WebSocketCache.me();
+
+    private String[] ids;
+
+    /**
+     * 每组参数单独fork，不需要清理
+     */
+    @Setup
+    public void setUp() {
+        this.ids = new String[this.sessions];
+        for (int i = 0; i < this.sessions; i++) {
+            this.ids[i] = Integer.toHexString(i);
+            this.cache.addCache("user" + i, new StubWebSocketSession(this.ids[i]));
+        }
+    }
+
+    @Benchmark
+    public String getUserName() {
+        return this.cache.getUserName(this.ids[ThreadLocalRandom.current().nextInt(this.sessions)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void getAll(Blackhole blackhole) {
+        for (WebSocketSession session : this.cache.getAll()) {
+            blackhole.consume(session);
+        }
+    }
+}
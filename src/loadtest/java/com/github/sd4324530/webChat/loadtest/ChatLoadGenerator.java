@@ -0,0 +1,339 @@
+package com.github.sd4324530.webChat.loadtest;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.github.sd4324530.webChat.metrics.LatencyHistogram;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.jetty.JettyWebSocketClient;
+import org.springframework.web.socket.sockjs.client.RestTemplateXhrTransport;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.Transport;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压力测试：在本机起的webChat上模拟大量聊天客户端，统计端到端延迟、吞吐量和服务器的堆内存。
+ * 通过 mvn -Ploadtest verify 运行，maven先用jetty起一个服务器，跑完后关掉，参数见README；
+ * 也可以对着已经启动的服务器直接运行这个类
+ * @author peiyu
+ */
+public class ChatLoadGenerator {
+
+    private final String baseUrl = System.getProperty("loadtest.url", "http://localhost:18080/webChat");
+
+    private final int clients = Integer.getInteger("loadtest.clients", 1000);
+
+    //其中用SockJS连接的客户端数
+    private final int sockJsClients = Integer.getInteger("loadtest.sockJsClients", 100);
+
+    //SockJS用的传输方式：xhr 或者 websocket
+    private final String sockJsTransport = System.getProperty("loadtest.sockJsTransport", "xhr");
+
+    private final int rooms = Integer.getInteger("loadtest.rooms", 20);
+
+    //每个客户端每秒发的消息数
+    private final double messagesPerSecond = Double.parseDouble(System.getProperty("loadtest.messagesPerSecond", "0.2"));
+
+    private final int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 5);
+
+    private final int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 30);
+
+    //同时进行的握手数
+    private final int connectConcurrency = Integer.getInteger("loadtest.connectConcurrency", 64);
+
+    private final int senderThreads = Integer.getInteger("loadtest.senderThreads", 8);
+
+    private final String reportFile = System.getProperty("loadtest.report", "target/loadtest/report.json");
+
+    private final LoadStats stats = new LoadStats();
+
+    private final List<SimulatedClient> connected = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger connectFailed = new AtomicInteger();
+
+    private final AtomicLong heapPeak = new AtomicLong();
+
+    private final JettyWebSocketClient webSocketClient = new JettyWebSocketClient();
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = false;
+        try {
+            passed = new ChatLoadGenerator().run();
+        } finally {
+            //失败时maven不会再执行post-integration-test，由这里关掉jetty进程
+            if (!passed) {
+                stopServer();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * 按jetty-maven-plugin的约定向stopPort发送 stopKey 和 stop
+     */
+    private static void stopServer() {
+        Integer stopPort = Integer.getInteger("loadtest.stopPort");
+        String stopKey = System.getProperty("loadtest.stopKey");
+        if (null == stopPort || null == stopKey) {
+            return;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), stopPort)) {
+            OutputStream out = socket.getOutputStream();
+            out.write((stopKey + "\r\nstop\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.getInputStream().read();
+        } catch (IOException e) {
+            System.out.println("关闭服务器失败:" + e);
+        }
+    }
+
+    private boolean run() throws Exception {
+        waitForServer();
+        long heapIdle = heapUsed();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("loadtest-heap"));
+        sampler.scheduleAtFixedRate(this::sampleHeap, 1, 1, TimeUnit.SECONDS);
+
+        long connectBegin = System.nanoTime();
+        connect();
+        double connectSeconds = (System.nanoTime() - connectBegin) / 1e9D;
+        System.out.printf("连接完成：成功%d，失败%d，用时%.1fs%n", this.connected.size(), this.connectFailed.get(), connectSeconds);
+        //等登录和补发历史结束
+        TimeUnit.SECONDS.sleep(1);
+        long heapConnected = heapUsed();
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(this.senderThreads, new NamedThreadFactory("loadtest-sender"));
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / this.messagesPerSecond);
+        synchronized (this.connected) {
+            for (SimulatedClient client : this.connected) {
+                //错开发送时间，避免所有客户端同时发
+                senders.scheduleAtFixedRate(client::send, ThreadLocalRandom.current().nextLong(periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        TimeUnit.SECONDS.sleep(this.warmupSeconds);
+        this.heapPeak.set(0L);
+        this.stats.beginMeasure();
+        long measureBegin = System.nanoTime();
+        TimeUnit.SECONDS.sleep(this.durationSeconds);
+        senders.shutdownNow();
+        double measureSeconds = (System.nanoTime() - measureBegin) / 1e9D;
+        //等还在路上的消息
+        TimeUnit.SECONDS.sleep(2);
+        sampler.shutdownNow();
+
+        Map<String, Object> report = report(connectSeconds, measureSeconds, heapIdle, heapConnected);
+        print(report);
+        File file = new File(this.reportFile);
+        FileUtils.writeStringToFile(file, JSON.toJSONString(report, SerializerFeature.PrettyFormat), StandardCharsets.UTF_8);
+        System.out.println("报告已保存到 " + file.getAbsolutePath());
+
+        this.stats.stop();
+        synchronized (this.connected) {
+            this.connected.forEach(SimulatedClient::close);
+        }
+        TimeUnit.SECONDS.sleep(1);
+        this.webSocketClient.stop();
+        return !this.connected.isEmpty() && this.stats.getAllLatency().getCount() > 0;
+    }
+
+    /**
+     * 所有客户端分到各个房间，前sockJsClients个用SockJS，其余用websocket
+     */
+    private void connect() throws Exception {
+        this.webSocketClient.start();
+        List<Transport> transports = new ArrayList<>(1);
+        if ("websocket".equalsIgnoreCase(this.sockJsTransport)) {
+            transports.add(new WebSocketTransport(this.webSocketClient));
+        } else {
+            transports.add(new RestTemplateXhrTransport(new RestTemplate()));
+        }
+        SockJsClient sockJsClient = new SockJsClient(transports);
+        String webSocketUrl = this.baseUrl.replaceFirst("^http", "ws") + "/echo?room=";
+        String sockJsUrl = this.baseUrl + "/sockjs/echo?room=";
+
+        Semaphore inFlight = new Semaphore(this.connectConcurrency);
+        CountDownLatch done = new CountDownLatch(this.clients);
+        for (int i = 0; i < this.clients; i++) {
+            boolean sockJs = i < this.sockJsClients;
+            String room = "lt" + (i % this.rooms);
+            SimulatedClient client = new SimulatedClient("u" + i, room, sockJs, this.stats);
+            WebSocketClient transport = sockJs ? sockJsClient : this.webSocketClient;
+            inFlight.acquire();
+            transport.doHandshake(client, (sockJs ? sockJsUrl : webSocketUrl) + room).addCallback(new ListenableFutureCallback<WebSocketSession>() {
+                @Override
+                public void onSuccess(WebSocketSession session) {
+                    connected.add(client);
+                    inFlight.release();
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable ex) {
+                    if (connectFailed.incrementAndGet() <= 3) {
+                        System.out.println("连接失败:" + ex);
+                    }
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    private Map<String, Object> report(double connectSeconds, double measureSeconds, long heapIdle, long heapConnected) {
+        //每条消息应该被同一个房间里的所有人收到，包括发送者
+        Map<String, Integer> members = new HashMap<>();
+        synchronized (this.connected) {
+            for (SimulatedClient client : this.connected) {
+                members.merge(client.getRoom(), 1, Integer::sum);
+            }
+        }
+        long expected = 0;
+        for (Map.Entry<String, Integer> entry : members.entrySet()) {
+            expected += this.stats.getSentCount(entry.getKey()) * entry.getValue();
+        }
+        long delivered = this.stats.getAllLatency().getCount();
+        int connectedCount = this.connected.size();
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("url", this.baseUrl);
+        config.put("clients", this.clients);
+        config.put("sockJsClients", this.sockJsClients);
+        config.put("sockJsTransport", this.sockJsTransport);
+        config.put("rooms", this.rooms);
+        config.put("messagesPerSecond", this.messagesPerSecond);
+        config.put("durationSeconds", this.durationSeconds);
+
+        Map<String, Object> connections = new LinkedHashMap<>();
+        connections.put("connected", connectedCount);
+        connections.put("failed", this.connectFailed.get());
+        connections.put("handshakesPerSecond", round(connectedCount / connectSeconds));
+        connections.put("disconnected", this.stats.getDisconnected().sum());
+        connections.put("errors", this.stats.getErrors().sum());
+
+        Map<String, Object> throughput = new LinkedHashMap<>();
+        throughput.put("sent", this.stats.getSentCount());
+        throughput.put("delivered", delivered);
+        throughput.put("expected", expected);
+        throughput.put("deliveryRatio", 0 == expected ? 0D : round((double) delivered / expected));
+        throughput.put("sentPerSecond", round(this.stats.getSentCount() / measureSeconds));
+        throughput.put("deliveredPerSecond", round(delivered / measureSeconds));
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("all", latency(this.stats.getAllLatency()));
+        latency.put("webSocket", latency(this.stats.getWebSocketLatency()));
+        latency.put("sockJs", latency(this.stats.getSockJsLatency()));
+
+        //服务器上的heapUsed包括还没回收的垃圾，只能看趋势，不能直接相减算出每个连接的内存
+        Map<String, Object> heap = new LinkedHashMap<>();
+        heap.put("idleMB", toMB(heapIdle));
+        heap.put("connectedMB", toMB(heapConnected));
+        heap.put("peakMB", toMB(this.heapPeak.get()));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("connections", connections);
+        report.put("throughput", throughput);
+        report.put("latency", latency);
+        report.put("serverHeap", heap);
+        return report;
+    }
+
+    private static Map<String, Object> latency(LatencyHistogram histogram) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", histogram.getCount());
+        map.put("p50Millis", toMillis(histogram.getPercentile(50)));
+        map.put("p99Millis", toMillis(histogram.getPercentile(99)));
+        map.put("p999Millis", toMillis(histogram.getPercentile(99.9)));
+        map.put("maxMillis", toMillis(histogram.getMax()));
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(Map<String, Object> report) {
+        System.out.println("==================== 压力测试结果 ====================");
+        for (Map.Entry<String, Object> section : report.entrySet()) {
+            System.out.println(section.getKey() + ":");
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) section.getValue()).entrySet()) {
+                System.out.printf("  %-20s %s%n", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int i = 0; i < 60; i++) {
+            try {
+                metrics();
+                return;
+            } catch (IOException e) {
+                TimeUnit.SECONDS.sleep(1);
+            }
+        }
+        throw new IllegalStateException("服务器没有启动:" + this.baseUrl);
+    }
+
+    private void sampleHeap() {
+        try {
+            long used = heapUsed();
+            this.heapPeak.accumulateAndGet(used, Math::max);
+        } catch (Exception e) {
+            //采样失败不影响测试
+        }
+    }
+
+    private long heapUsed() throws IOException {
+        return metrics().getJSONObject("gauges").getJSONObject("jvm").getLongValue("heapUsed");
+    }
+
+    private JSONObject metrics() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(this.baseUrl + "/metrics").openConnection();
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(5000);
+        try (InputStream in = connection.getInputStream()) {
+            return JSON.parseObject(IOUtils.toString(in, StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return round(nanos / 1e6D);
+    }
+
+    private static double toMB(long bytes) {
+        return round(bytes / 1024D / 1024D);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100D) / 100D;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.sd4324530.webChat.loadtest;
+
+import com.github.sd4324530.webChat.metrics.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有模拟客户端共用的统计：发送数、收到数、端到端延迟，websocket和SockJS分开记录
+ * @author peiyu
+ */
+class LoadStats {
+
+    private final LatencyHistogram webSocketLatency = new LatencyHistogram();
+
+    private final LatencyHistogram sockJsLatency = new LatencyHistogram();
+
+    private final LatencyHistogram allLatency = new LatencyHistogram();
+
+    //测量阶段每个房间发出的消息数，用来算应该收到多少条
+    private final Map<String, LongAdder> sentPerRoom = new ConcurrentHashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder disconnected = new LongAdder();
+
+    //这个时间之后发出的消息才计入，预热结束时设置
+    private volatile long measureBegin = Long.MAX_VALUE;
+
+    private volatile boolean stopping;
+
+    void delivered(boolean sockJs, long nanos) {
+        (sockJs ? this.sockJsLatency : this.webSocketLatency).record(nanos);
+        this.allLatency.record(nanos);
+    }
+
+    void sent(String room) {
+        if (System.nanoTime() >= this.measureBegin) {
+            this.sent.increment();
+            this.sentPerRoom.computeIfAbsent(room, key -> new LongAdder()).increment();
+        }
+    }
+
+    long getSentCount(String room) {
+        LongAdder adder = this.sentPerRoom.get(room);
+        return null == adder ? 0L : adder.sum();
+    }
+
+    long getSentCount() {
+        return this.sent.sum();
+    }
+
+    LatencyHistogram getWebSocketLatency() {
+        return this.webSocketLatency;
+    }
+
+    LatencyHistogram getSockJsLatency() {
+        return this.sockJsLatency;
+    }
+
+    LatencyHistogram getAllLatency() {
+        return this.allLatency;
+    }
+
+    LongAdder getErrors() {
+        return this.errors;
+    }
+
+    LongAdder getDisconnected() {
+        return this.disconnected;
+    }
+
+    long getMeasureBegin() {
+        return this.measureBegin;
+    }
+
+    void beginMeasure() {
+        this.measureBegin = System.nanoTime();
+    }
+
+    boolean isStopping() {
+        return this.stopping;
+    }
+
+    void stop() {
+        this.stopping = true;
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.sd4324530.webChat.loadtest;
+
+import com.alibaba.fastjson.JSON;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+/**
+ * 一个模拟的聊天客户端：连上后发 |昵称 登录，之后按固定频率发消息，消息内容就是发送时的System.nanoTime()；
+ * 收到聊天消息时用当前时间减去里面的时间得到端到端延迟。所有客户端在同一个进程里，nanoTime可以直接相减
+ * @author peiyu
+ */
+class SimulatedClient extends TextWebSocketHandler {
+
+    //服务器转发的聊天消息是 昵称说：内容
+    private static final String SAY = "说：";
+
+    private static final String BATCH_PREFIX = "#batch:";
+
+    private final String name;
+
+    private final String room;
+
+    private final boolean sockJs;
+
+    private final LoadStats stats;
+
+    private volatile WebSocketSession session;
+
+    SimulatedClient(String name, String room, boolean sockJs, LoadStats stats) {
+        this.name = name;
+        this.room = room;
+        this.sockJs = sockJs;
+        this.stats = stats;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        this.session = session;
+        session.sendMessage(new TextMessage("|" + this.name));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        long now = System.nanoTime();
+        String payload = message.getPayload();
+        if (payload.startsWith(BATCH_PREFIX)) {
+            for (String text : JSON.parseArray(payload.substring(BATCH_PREFIX.length()), String.class)) {
+                receive(text, now);
+            }
+        } else if (payload.charAt(0) != '#') {
+            receive(payload, now);
+        }
+    }
+
+    private void receive(String text, long now) {
+        int index = text.indexOf(SAY);
+        if (index < 0) {
+            return;
+        }
+        long sent;
+        try {
+            sent = Long.parseLong(text.substring(index + SAY.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        //预热阶段发的不计入
+        if (sent >= this.stats.getMeasureBegin()) {
+            this.stats.delivered(this.sockJs, now - sent);
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        this.stats.getErrors().increment();
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        this.session = null;
+        if (!this.stats.isStopping()) {
+            this.stats.getDisconnected().increment();
+        }
+    }
+
+    /**
+     * 由发送线程定时调用，同一个客户端不会被并发调用
+     */
+    void send() {
+        WebSocketSession current = this.session;
+        if (null == current || !current.isOpen()) {
+            return;
+        }
+        try {
+            current.sendMessage(new TextMessage(String.valueOf(System.nanoTime())));
+            this.stats.sent(this.room);
+        } catch (Exception e) {
+            this.stats.getErrors().increment();
+        }
+    }
+
+    void close() {
+        WebSocketSession current = this.session;
+        if (null != current) {
+            try {
+                current.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    String getRoom() {
+        return this.room;
+    }
+}
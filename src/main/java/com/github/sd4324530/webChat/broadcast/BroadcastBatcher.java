@@ -0,0 +1,165 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.PreparedEnvelope;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 合并发送，默认关闭
+ * 开启后发往同一个目标(比如同一个房间)的消息先攒windowMillis毫秒或者maxBatch条，再合成一帧发给每个接收者，
+ * 高峰期减少每条消息各自的发送和分帧开销；合成的帧按接收者协商的格式编码，只有一条时照常发送
+ * @author peiyu
+ */
+public class BroadcastBatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastBatcher.class);
+
+    private final BroadcastEngine engine = BroadcastEngine.me();
+
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>(64);
+
+    private final boolean enabled;
+
+    private final long windowMillis;
+
+    private final int maxBatch;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder batchedFrames = new LongAdder();
+
+    private final LongAdder batchedMessages = new LongAdder();
+
+    private BroadcastBatcher() {
+        this.enabled = PropertiesUtil.getBoolean("chat.broadcast.batch.enabled", false);
+        this.windowMillis = PropertiesUtil.getLong("chat.broadcast.batch.windowMillis", 10L);
+        this.maxBatch = Math.max(1, PropertiesUtil.getInt("chat.broadcast.batch.maxSize", 32));
+        if (this.enabled) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("broadcast-batch-"));
+            executor.setRemoveOnCancelPolicy(true);
+            this.scheduler = executor;
+            log.info("开启合并发送，窗口{}ms，每帧最多{}条", this.windowMillis, this.maxBatch);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    private static class Holder {
+        private static final BroadcastBatcher ME = new BroadcastBatcher();
+    }
+
+    public static BroadcastBatcher me() {
+        return Holder.ME;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * 发送一条广播消息，没有开启合并时马上发送
+     * @param key 合并的维度，同一个key的消息合成一帧
+     * @param recipients 真正发送时取接收者，合并时在发送那一刻才取
+     */
+    public void submit(String key, Supplier<? extends Collection<WebSocketSession>> recipients, Envelope envelope) {
+        if (!this.enabled) {
+            this.engine.broadcast(recipients.get(), new PreparedEnvelope(envelope));
+            return;
+        }
+        long now = System.nanoTime();
+        for (;;) {
+            Batch batch = this.batches.get(key);
+            if (null == batch) {
+                Batch created = new Batch(key, recipients, now);
+                batch = this.batches.putIfAbsent(key, created);
+                if (null == batch) {
+                    batch = created;
+                    this.scheduler.schedule(() -> flush(created), this.windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            boolean full;
+            synchronized (batch) {
+                if (batch.closed) {
+                    continue;
+                }
+                batch.envelopes.add(envelope);
+                full = batch.envelopes.size() >= this.maxBatch;
+            }
+            if (full) {
+                flush(batch);
+            }
+            return;
+        }
+    }
+
+    /**
+     * 马上发出所有还在攒的消息，停机时调用
+     */
+    public void flushAll() {
+        if (!this.enabled) {
+            return;
+        }
+        for (Batch batch : this.batches.values()) {
+            flush(batch);
+        }
+    }
+
+    public long getBatchedFrameCount() {
+        return this.batchedFrames.sum();
+    }
+
+    public long getBatchedMessageCount() {
+        return this.batchedMessages.sum();
+    }
+
+    private void flush(Batch batch) {
+        List<Envelope> envelopes;
+        synchronized (batch) {
+            if (batch.closed) {
+                return;
+            }
+            batch.closed = true;
+            envelopes = batch.envelopes;
+        }
+        this.batches.remove(batch.key, batch);
+        if (envelopes.size() > 1) {
+            this.batchedFrames.increment();
+            this.batchedMessages.add(envelopes.size());
+        }
+        this.engine.broadcast(batch.recipients.get(), new PreparedEnvelope(envelopes, batch.originNanos));
+    }
+
+    private static final class Batch {
+
+        private final String key;
+
+        private final Supplier<? extends Collection<WebSocketSession>> recipients;
+
+        private final long originNanos;
+
+        private final List<Envelope> envelopes = new ArrayList<>();
+
+        private boolean closed;
+
+        private Batch(String key, Supplier<? extends Collection<WebSocketSession>> recipients, long originNanos) {
+            this.key = key;
+            this.recipients = recipients;
+            this.originNanos = originNanos;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import com.github.sd4324530.webChat.metrics.LatencyHistogram;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步广播引擎
+ * 每个session一个有长度限制的待发送队列，由发送线程池负责把队列写到连接上，
+ * 调用方只负责入队，某个客户端接收慢不会拖慢其他人，也不会占住调用方的线程
+ * @author peiyu
+ */
+public class BroadcastEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastEngine.class);
+
+    private final ConcurrentMap<String, SessionOutbound> outbounds = new ConcurrentHashMap<>(256);
+
+    private final ExecutorService workers;
+
+    private final FrameWriter frameWriter;
+
+    private final int queueCapacity;
+
+    private final int drainBatch;
+
+    private final SlowConsumerPolicy slowConsumerPolicy;
+
+    //所有队列里待发送的总条数
+    private final AtomicLong totalDepth = new AtomicLong();
+
+    private final LongAdder enqueued = new LongAdder();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder disconnected = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    //广播消息从产生到写完的延迟
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    //一次广播给所有接收者入队花的时间
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+
+    private BroadcastEngine() {
+        int workerCount = PropertiesUtil.getInt("chat.broadcast.workers", Runtime.getRuntime().availableProcessors() * 2);
+        this.queueCapacity = PropertiesUtil.getInt("chat.broadcast.queueCapacity", 256);
+        this.drainBatch = PropertiesUtil.getInt("chat.broadcast.drainBatch", 64);
+        this.slowConsumerPolicy = PropertiesUtil.getEnum("chat.broadcast.slowConsumerPolicy", SlowConsumerPolicy.DROP_OLDEST);
+        this.frameWriter = createFrameWriter();
+        //每个session同时最多只有一个任务在排队，所以任务队列的长度不会超过在线人数
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("broadcast-"));
+        log.info("广播引擎启动，发送线程:{}，队列长度:{}，慢连接策略:{}，写出方式:{}", workerCount, this.queueCapacity,
+                this.slowConsumerPolicy, this.frameWriter.getClass().getSimpleName());
+    }
+
+    /**
+     * 运行在jetty上并且没有关闭预编码时，广播消息只编码一次，所有接收者共用
+     */
+    private static FrameWriter createFrameWriter() {
+        boolean jetty = ClassUtils.isPresent("org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint", BroadcastEngine.class.getClassLoader());
+        if (jetty && PropertiesUtil.getBoolean("chat.broadcast.preEncoded", true)) {
+            return new JettyFrameWriter(PropertiesUtil.getLong("chat.broadcast.sendTimeoutMillis", 2000L));
+        }
+        return FrameWriter.DEFAULT;
+    }
+
+    private static class Holder {
+        private static final BroadcastEngine ME = new BroadcastEngine();
+    }
+
+    public static BroadcastEngine me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 把同一条消息发给所有session，只入队，不等待发送完成；
+     * 传入PreparedTextMessage时，所有接收者共用同一份编码结果，传入SessionAwareMessage时在发送前按接收者选择内容
+     */
+    public void broadcast(Collection<WebSocketSession> sessions, WebSocketMessage<?> message) {
+        long begin = System.nanoTime();
+        for (WebSocketSession session : sessions) {
+            send(session, message);
+        }
+        this.fanoutLatency.record(System.nanoTime() - begin);
+    }
+
+    /**
+     * 给单个session发消息，只入队，不等待发送完成
+     */
+    public void send(WebSocketSession session, WebSocketMessage<?> message) {
+        SessionOutbound outbound = outbound(session);
+        if (null == outbound) {
+            return;
+        }
+        if (!reserve(outbound)) {
+            return;
+        }
+        outbound.offer(message);
+        this.enqueued.increment();
+        this.totalDepth.incrementAndGet();
+        schedule(outbound);
+    }
+
+    /**
+     * 发送可合并的消息，同一个key还没发出去的旧内容会被新内容覆盖，比如在线人数这种只关心最新值的消息。
+     * 先尝试覆盖，覆盖成功的不占队列的位置，队列满了也不会因为它丢掉别的消息或者断开连接
+     */
+    public void send(WebSocketSession session, WebSocketMessage<?> message, String coalesceKey) {
+        SessionOutbound outbound = outbound(session);
+        if (null == outbound) {
+            return;
+        }
+        if (outbound.replace(coalesceKey, message)) {
+            this.coalesced.increment();
+            return;
+        }
+        if (!reserve(outbound)) {
+            return;
+        }
+        //腾位置期间同key的消息可能刚好被别的线程放进去，这时仍然是覆盖
+        if (outbound.coalesce(coalesceKey, message)) {
+            this.enqueued.increment();
+            this.totalDepth.incrementAndGet();
+            schedule(outbound);
+        } else {
+            this.coalesced.increment();
+        }
+    }
+
+    /**
+     * 可合并消息的广播
+     */
+    public void broadcast(Collection<WebSocketSession> sessions, WebSocketMessage<?> message, String coalesceKey) {
+        long begin = System.nanoTime();
+        for (WebSocketSession session : sessions) {
+            send(session, message, coalesceKey);
+        }
+        this.fanoutLatency.record(System.nanoTime() - begin);
+    }
+
+    /**
+     * 连接建立时调用，没有登录的连接也登记，停机时能给所有连接发关闭帧；关闭后由release移除
+     */
+    public void register(WebSocketSession session) {
+        outbound(session);
+    }
+
+    /**
+     * @return 登记过并且还没有关闭的连接，包括没有登录的
+     */
+    public List<WebSocketSession> getSessions() {
+        List<WebSocketSession> sessions = new ArrayList<>(this.outbounds.size());
+        for (SessionOutbound outbound : this.outbounds.values()) {
+            if (!outbound.isClosed() && outbound.getSession().isOpen()) {
+                sessions.add(outbound.getSession());
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * session关闭后调用，已经排队的消息仍会尝试发送完，之后不再接收新消息
+     */
+    public void release(String sessionId) {
+        SessionOutbound outbound = this.outbounds.remove(sessionId);
+        if (null != outbound) {
+            outbound.markClosed();
+        }
+    }
+
+    public int getQueueDepth(String sessionId) {
+        SessionOutbound outbound = this.outbounds.get(sessionId);
+        return null == outbound ? 0 : outbound.depth();
+    }
+
+    public long getTotalQueueDepth() {
+        return this.totalDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (SessionOutbound outbound : this.outbounds.values()) {
+            max = Math.max(max, outbound.depth());
+        }
+        return max;
+    }
+
+    /**
+     * @return 每个session当前待发送的条数，顺序不固定
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[this.outbounds.size()];
+        int i = 0;
+        for (SessionOutbound outbound : this.outbounds.values()) {
+            if (i == depths.length) {
+                break;
+            }
+            depths[i++] = outbound.depth();
+        }
+        return i == depths.length ? depths : Arrays.copyOf(depths, i);
+    }
+
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    public int getSessionCount() {
+        return this.outbounds.size();
+    }
+
+    public long getEnqueuedCount() {
+        return this.enqueued.sum();
+    }
+
+    public long getSentCount() {
+        return this.sent.sum();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    public long getDisconnectedCount() {
+        return this.disconnected.sum();
+    }
+
+    public long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    /**
+     * @return 广播消息从产生到写到连接上的延迟，开启合并发送时按每帧里最早的一条计算
+     */
+    public LatencyHistogram getDeliveryLatency() {
+        return this.deliveryLatency;
+    }
+
+    /**
+     * @return 一次广播把消息放进所有接收者队列的耗时，不包括发送
+     */
+    public LatencyHistogram getFanoutLatency() {
+        return this.fanoutLatency;
+    }
+
+    private SessionOutbound outbound(WebSocketSession session) {
+        if (!session.isOpen()) {
+            return null;
+        }
+        SessionOutbound outbound = this.outbounds.get(session.getId());
+        if (null == outbound) {
+            //release之后连接已经关闭，不能再建新队列，否则没有人再释放它
+            outbound = this.outbounds.computeIfAbsent(session.getId(), id -> session.isOpen() ? new SessionOutbound(session) : null);
+        }
+        return null == outbound || outbound.isClosed() ? null : outbound;
+    }
+
+    /**
+     * 给新消息腾出位置，队列满了按配置的策略处理
+     * @return 是否还能继续入队
+     */
+    private boolean reserve(SessionOutbound outbound) {
+        if (outbound.depth() < this.queueCapacity) {
+            return true;
+        }
+        if (SlowConsumerPolicy.DROP_OLDEST == this.slowConsumerPolicy) {
+            if (outbound.dropOldest()) {
+                this.dropped.increment();
+                this.totalDepth.decrementAndGet();
+            }
+            return true;
+        }
+        log.warn("session:{}接收太慢，待发送{}条，断开连接", outbound.getSession().getId(), outbound.depth());
+        disconnect(outbound);
+        return false;
+    }
+
+    /**
+     * 丢掉还没发的消息，不再接收新消息，用SESSION_NOT_RELIABLE关闭连接
+     */
+    private void disconnect(SessionOutbound outbound) {
+        WebSocketSession session = outbound.getSession();
+        release(session.getId());
+        this.totalDepth.addAndGet(-outbound.clear());
+        this.disconnected.increment();
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            log.error("关闭慢连接异常", e);
+        }
+    }
+
+    private void schedule(SessionOutbound outbound) {
+        if (outbound.trySchedule()) {
+            this.workers.execute(() -> drain(outbound));
+        }
+    }
+
+    /**
+     * 一次最多连续发送drainBatch条，队列里积压的消息在同一个任务里连续写出，不用每条消息都切换线程
+     */
+    private void drain(SessionOutbound outbound) {
+        WebSocketSession session = outbound.getSession();
+        try {
+            for (int i = 0; i < this.drainBatch; i++) {
+                WebSocketMessage<?> message = outbound.pollMessage();
+                if (null == message) {
+                    break;
+                }
+                this.totalDepth.decrementAndGet();
+                if (!session.isOpen()) {
+                    this.totalDepth.addAndGet(-outbound.clear());
+                    release(session.getId());
+                    break;
+                }
+                try {
+                    if (message instanceof SessionAwareMessage) {
+                        SessionAwareMessage aware = (SessionAwareMessage) message;
+                        this.frameWriter.write(session, aware.select(session));
+                        this.deliveryLatency.record(System.nanoTime() - aware.getOriginNanos());
+                    } else {
+                        this.frameWriter.write(session, message);
+                        if (message instanceof PreparedTextMessage) {
+                            this.deliveryLatency.record(System.nanoTime() - ((PreparedTextMessage) message).getOriginNanos());
+                        }
+                    }
+                    this.sent.increment();
+                } catch (Exception e) {
+                    //写超时或者失败的连接不再继续写，否则每一条都要再等一次超时，占住发送线程
+                    this.failed.increment();
+                    log.warn("发送失败，断开连接，sessionid:{}", session.getId(), e);
+                    disconnect(outbound);
+                    break;
+                }
+            }
+        } finally {
+            outbound.unschedule();
+        }
+        if (!outbound.isEmpty()) {
+            schedule(outbound);
+        }
+    }
+}
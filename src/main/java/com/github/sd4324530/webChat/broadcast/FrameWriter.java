@@ -0,0 +1,21 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+
+/**
+ * 把消息写到连接上，发送线程通过它发送，同一个session不会被并发调用
+ * @author peiyu
+ */
+public interface FrameWriter {
+
+    /**
+     * 直接交给session发送，每个session各自编码
+     */
+    FrameWriter DEFAULT = (session, message) -> session.sendMessage(message instanceof PreparedTextMessage
+            ? ((PreparedTextMessage) message).getTextMessage() : message);
+
+    void write(WebSocketSession session, WebSocketMessage<?> message) throws IOException;
+}
@@ -0,0 +1,86 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+import org.eclipse.jetty.websocket.common.io.FutureWriteCallback;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 运行在jetty上时，广播消息直接把预先编码好的字节作为文本帧写给jetty，不再由每个session各自编码；
+ * 走websocket传输的SockJS连接同样直接写预先编码好的SockJS帧。
+ * 原生websocket连接上的普通文本和二进制消息也直接写帧，所有直接写的帧都有超时。
+ * 其他消息和拿不到jetty连接的session(比如SockJS的xhr轮询)仍然交给session自己发送，只受容器空闲超时的限制
+ * @author peiyu
+ */
+class JettyFrameWriter implements FrameWriter {
+
+    private final long sendTimeoutMillis;
+
+    JettyFrameWriter(long sendTimeoutMillis) {
+        this.sendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    @Override
+    public void write(WebSocketSession session, WebSocketMessage<?> message) throws IOException {
+        WebSocketRemoteEndpoint remote = remote(session);
+        if (null != remote) {
+            boolean sockJs = session instanceof SockJsSession;
+            WebSocketFrame frame = null;
+            if (message instanceof PreparedTextMessage) {
+                PreparedTextMessage prepared = (PreparedTextMessage) message;
+                frame = new TextFrame().setPayload(sockJs ? prepared.getSockJsUtf8() : prepared.getUtf8());
+            } else if (!sockJs && message instanceof TextMessage) {
+                frame = new TextFrame().setPayload(((TextMessage) message).getPayload());
+            } else if (!sockJs && message instanceof BinaryMessage) {
+                frame = new BinaryFrame().setPayload(((BinaryMessage) message).getPayload().duplicate());
+            }
+            if (null != frame) {
+                FutureWriteCallback callback = new FutureWriteCallback();
+                remote.uncheckedSendFrame(frame, callback);
+                //超时后发送线程会断开这个连接，jetty队列里最多只留下这一帧，慢连接的积压留在我们自己有长度限制的队列里
+                await(callback);
+                return;
+            }
+        }
+        DEFAULT.write(session, message);
+    }
+
+    private WebSocketRemoteEndpoint remote(WebSocketSession session) {
+        if (!(session instanceof NativeWebSocketSession)) {
+            return null;
+        }
+        Session nativeSession = ((NativeWebSocketSession) session).getNativeSession(Session.class);
+        if (null == nativeSession) {
+            return null;
+        }
+        RemoteEndpoint remote = nativeSession.getRemote();
+        return remote instanceof WebSocketRemoteEndpoint ? (WebSocketRemoteEndpoint) remote : null;
+    }
+
+    private void await(FutureWriteCallback callback) throws IOException {
+        try {
+            callback.get(this.sendTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("发送被中断", e);
+        } catch (ExecutionException e) {
+            throw new IOException("发送失败", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("发送超时", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.sockjs.frame.Jackson2SockJsMessageCodec;
+import org.springframework.web.socket.sockjs.frame.SockJsFrame;
+import org.springframework.web.socket.sockjs.frame.SockJsMessageCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 广播用的文本消息，UTF-8编码和SockJS帧(a["..."])都只在第一次用到时编码一次，之后所有接收者共用同一份只读字节。
+ * 只能交给BroadcastEngine发送，不能直接传给WebSocketSession.sendMessage
+ * @author peiyu
+ */
+public class PreparedTextMessage implements WebSocketMessage<String> {
+
+    //和spring默认的SockJS编码器保持一致
+    private static final SockJsMessageCodec SOCKJS_CODEC = new Jackson2SockJsMessageCodec();
+
+    //重复计算的结果是一样的，所以不需要加锁
+    private volatile ByteBuffer utf8;
+
+    private volatile ByteBuffer sockJsUtf8;
+
+    private final TextMessage textMessage;
+
+    //消息产生的时间(nanoTime)，合并发送时是其中最早一条的时间，用于统计送达延迟
+    private final long originNanos;
+
+    public PreparedTextMessage(String payload) {
+        this(payload, System.nanoTime());
+    }
+
+    public PreparedTextMessage(String payload, long originNanos) {
+        this.textMessage = new TextMessage(payload);
+        this.originNanos = originNanos;
+    }
+
+    public long getOriginNanos() {
+        return this.originNanos;
+    }
+
+    @Override
+    public String getPayload() {
+        return this.textMessage.getPayload();
+    }
+
+    @Override
+    public int getPayloadLength() {
+        return this.textMessage.getPayloadLength();
+    }
+
+    @Override
+    public boolean isLast() {
+        return true;
+    }
+
+    /**
+     * @return 所有接收者共用的TextMessage，交给session自己编码发送时使用
+     */
+    public TextMessage getTextMessage() {
+        return this.textMessage;
+    }
+
+    /**
+     * @return 原始websocket帧的负载，每次返回一个独立position的只读视图
+     */
+    public ByteBuffer getUtf8() {
+        ByteBuffer buffer = this.utf8;
+        if (null == buffer) {
+            buffer = ByteBuffer.wrap(getPayload().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            this.utf8 = buffer;
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return SockJS消息帧的负载，每次返回一个独立position的只读视图
+     */
+    public ByteBuffer getSockJsUtf8() {
+        ByteBuffer buffer = this.sockJsUtf8;
+        if (null == buffer) {
+            byte[] bytes = SockJsFrame.messageFrame(SOCKJS_CODEC, getPayload()).getContentBytes();
+            buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            this.sockJsUtf8 = buffer;
+        }
+        return buffer.duplicate();
+    }
+}
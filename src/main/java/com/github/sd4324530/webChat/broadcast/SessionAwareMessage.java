@@ -0,0 +1,22 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * 按接收者决定实际发送内容的消息，比如不同的连接协商了不同的消息格式；
+ * 发送线程在写出前调用select，实现类应该让同一种内容的接收者共用同一份编码结果
+ * @author peiyu
+ */
+public interface SessionAwareMessage {
+
+    /**
+     * @return 真正写到这个session上的消息
+     */
+    WebSocketMessage<?> select(WebSocketSession session);
+
+    /**
+     * @return 消息产生的时间(nanoTime)，用于统计送达延迟
+     */
+    long getOriginNanos();
+}
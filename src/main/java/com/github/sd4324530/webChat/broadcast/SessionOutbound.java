@@ -0,0 +1,151 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个session的待发送队列
+ * 同一时刻最多只有一个发送线程在处理这个队列，所以对同一个session的写是串行的
+ * @author peiyu
+ */
+class SessionOutbound {
+
+    private final WebSocketSession session;
+
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger depth = new AtomicInteger();
+
+    //是否已经提交给发送线程
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    //可合并的消息，同一个key只保留最新的内容，读写都在它自己的锁里
+    private final Map<String, Frame> pendingByKey = new HashMap<>(4);
+
+    private volatile boolean closed;
+
+    SessionOutbound(WebSocketSession session) {
+        this.session = session;
+    }
+
+    WebSocketSession getSession() {
+        return this.session;
+    }
+
+    /**
+     * 可合并的消息如果还有同key的没发出去，直接替换它的内容，不再进队。
+     * 和发送线程取走这一条互斥：要么在取走之前替换成功，要么发现已经取走后另外进队，不会丢也不会重复
+     * @return 是否新进了队列
+     */
+    boolean coalesce(String key, WebSocketMessage<?> message) {
+        synchronized (this.pendingByKey) {
+            Frame pending = this.pendingByKey.get(key);
+            if (null != pending) {
+                pending.message = message;
+                return false;
+            }
+            Frame frame = new Frame(key, message);
+            this.pendingByKey.put(key, frame);
+            this.queue.offer(frame);
+            this.depth.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * 只替换还没发出去的同key消息，没有时什么也不做，不进队
+     * @return 是否替换了
+     */
+    boolean replace(String key, WebSocketMessage<?> message) {
+        synchronized (this.pendingByKey) {
+            Frame pending = this.pendingByKey.get(key);
+            if (null == pending) {
+                return false;
+            }
+            pending.message = message;
+            return true;
+        }
+    }
+
+    void offer(WebSocketMessage<?> message) {
+        this.queue.offer(new Frame(null, message));
+        this.depth.incrementAndGet();
+    }
+
+    /**
+     * 丢弃最早的一条
+     * @return 是否真的丢弃了
+     */
+    boolean dropOldest() {
+        return null != pollMessage();
+    }
+
+    /**
+     * 可合并的消息在锁里取走内容，取走之后同key的新内容会重新进队
+     */
+    WebSocketMessage<?> pollMessage() {
+        Frame frame = this.queue.poll();
+        if (null == frame) {
+            return null;
+        }
+        this.depth.decrementAndGet();
+        if (null == frame.key) {
+            return frame.message;
+        }
+        synchronized (this.pendingByKey) {
+            this.pendingByKey.remove(frame.key, frame);
+            return frame.message;
+        }
+    }
+
+    int clear() {
+        int count = 0;
+        while (null != pollMessage()) {
+            count++;
+        }
+        return count;
+    }
+
+    int depth() {
+        return this.depth.get();
+    }
+
+    boolean isEmpty() {
+        return this.queue.isEmpty();
+    }
+
+    boolean trySchedule() {
+        return this.scheduled.compareAndSet(false, true);
+    }
+
+    void unschedule() {
+        this.scheduled.set(false);
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    void markClosed() {
+        this.closed = true;
+    }
+
+    private static final class Frame {
+
+        private final String key;
+
+        private volatile WebSocketMessage<?> message;
+
+        private Frame(String key, WebSocketMessage<?> message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+}
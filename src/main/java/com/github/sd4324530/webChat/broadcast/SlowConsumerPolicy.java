@@ -0,0 +1,18 @@
+package com.github.sd4324530.webChat.broadcast;
+
+/**
+ * session待发送队列满了之后的处理方式
+ * @author peiyu
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * 丢弃队列里最早的一条，保证新消息能进队
+     */
+    DROP_OLDEST,
+
+    /**
+     * 直接断开这个接收不过来的连接
+     */
+    DISCONNECT
+}
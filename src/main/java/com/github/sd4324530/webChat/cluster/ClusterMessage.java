@@ -0,0 +1,160 @@
+package com.github.sd4324530.webChat.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 节点之间传递的消息：某个房间的一条聊天消息，某个节点的在线人数，某个人在某个节点某个房间的连接数，或者发给某个人的私信
+ * 不可变，序列化格式：byte 类型 | UTF 节点 | long 时间 | 类型各自的字段
+ * @author peiyu
+ */
+public final class ClusterMessage {
+
+    public enum Kind {
+        /**
+         * 房间消息，每个节点发给自己这里在这个房间的人
+         */
+        CHAT,
+
+        /**
+         * 节点的在线人数，定时发送，同时也是节点的心跳
+         */
+        PRESENCE,
+
+        /**
+         * 某个人在发送节点上某个房间的连接数，0表示离开
+         */
+        MEMBER,
+
+        /**
+         * 私信，user是收信人，content是完整的一行文本，收信人连在哪个节点上就由哪个节点发给他
+         */
+        DIRECT
+    }
+
+    private final Kind kind;
+
+    private final String nodeId;
+
+    private final long timestamp;
+
+    private final String room;
+
+    private final String user;
+
+    private final String content;
+
+    private final int count;
+
+    private ClusterMessage(Kind kind, String nodeId, long timestamp, String room, String user, String content, int count) {
+        this.kind = kind;
+        this.nodeId = nodeId;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.user = user;
+        this.content = content;
+        this.count = count;
+    }
+
+    public static ClusterMessage chat(String nodeId, String room, String user, String content) {
+        return new ClusterMessage(Kind.CHAT, nodeId, System.currentTimeMillis(), room, user, content, 0);
+    }
+
+    public static ClusterMessage presence(String nodeId, int count) {
+        return new ClusterMessage(Kind.PRESENCE, nodeId, System.currentTimeMillis(), null, null, null, count);
+    }
+
+    public static ClusterMessage member(String nodeId, String room, String user, int count) {
+        return new ClusterMessage(Kind.MEMBER, nodeId, System.currentTimeMillis(), room, user, null, count);
+    }
+
+    public static ClusterMessage direct(String nodeId, String to, String text) {
+        return new ClusterMessage(Kind.DIRECT, nodeId, System.currentTimeMillis(), null, to, text, 0);
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * @return 发出这条消息的节点
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    public String getUser() {
+        return this.user;
+    }
+
+    public String getContent() {
+        return this.content;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (null == this.content ? 0 : this.content.length() * 3));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(this.kind.ordinal());
+            out.writeUTF(this.nodeId);
+            out.writeLong(this.timestamp);
+            if (Kind.CHAT == this.kind) {
+                out.writeUTF(this.room);
+                out.writeUTF(this.user);
+                out.writeUTF(this.content);
+            } else if (Kind.MEMBER == this.kind) {
+                out.writeUTF(this.room);
+                out.writeUTF(this.user);
+                out.writeInt(this.count);
+            } else if (Kind.DIRECT == this.kind) {
+                out.writeUTF(this.user);
+                out.writeUTF(this.content);
+            } else {
+                out.writeInt(this.count);
+            }
+        } catch (IOException e) {
+            //写内存不会出现IOException
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException 格式不对
+     */
+    public static ClusterMessage decode(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int ordinal = in.readUnsignedByte();
+            if (ordinal >= Kind.values().length) {
+                throw new IOException("不认识的集群消息类型:" + ordinal);
+            }
+            Kind kind = Kind.values()[ordinal];
+            String nodeId = in.readUTF();
+            long timestamp = in.readLong();
+            if (Kind.CHAT == kind) {
+                return new ClusterMessage(kind, nodeId, timestamp, in.readUTF(), in.readUTF(), in.readUTF(), 0);
+            }
+            if (Kind.MEMBER == kind) {
+                return new ClusterMessage(kind, nodeId, timestamp, in.readUTF(), in.readUTF(), null, in.readInt());
+            }
+            if (Kind.DIRECT == kind) {
+                return new ClusterMessage(kind, nodeId, timestamp, null, in.readUTF(), in.readUTF(), 0);
+            }
+            return new ClusterMessage(kind, nodeId, timestamp, null, null, null, in.readInt());
+        }
+    }
+}
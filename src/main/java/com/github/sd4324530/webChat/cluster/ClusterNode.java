@@ -0,0 +1,239 @@
+package com.github.sd4324530.webChat.cluster;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastBatcher;
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import com.github.sd4324530.webChat.history.HistoryRegistry;
+import com.github.sd4324530.webChat.presence.OnlineCountPusher;
+import com.github.sd4324530.webChat.presence.PresenceTracker;
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.MessageFormat;
+import com.github.sd4324530.webChat.protocol.MessageType;
+import com.github.sd4324530.webChat.room.RoomRegistry;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import com.github.sd4324530.webChat.webSocket.ChatUser;
+import com.github.sd4324530.webChat.webSocket.WebSocketCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 当前节点在集群里的代表：房间消息先发到总线，再由总线回调在每个节点(包括自己)上记入历史并发给本节点的连接；
+ * 定时把本节点的在线人数发给其他节点，汇总成整个集群的在线人数；进出房间也经过总线，每个节点各自维护房间成员；
+ * 收信人在其他节点上的私信也经过总线转发。
+ * 总线通过chat.cluster.bus切换：local 同一个JVM内，tcp 节点之间直连，或者填一个实现了MessageBus且有无参构造方法的类名
+ * @author peiyu
+ */
+public class ClusterNode {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterNode.class);
+
+    public static final String BUS_LOCAL = "local";
+
+    public static final String BUS_TCP = "tcp";
+
+    private final String nodeId;
+
+    private final MessageBus bus;
+
+    private final long presenceIntervalMillis;
+
+    //其他节点最近一次报告的在线人数
+    private final ConcurrentMap<String, RemoteNode> remotes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cluster-presence-"));
+
+    private ClusterNode() {
+        this.nodeId = PropertiesUtil.getString("chat.cluster.nodeId", ManagementFactory.getRuntimeMXBean().getName());
+        this.presenceIntervalMillis = PropertiesUtil.getLong("chat.cluster.presenceIntervalMillis", 1000L);
+        this.bus = createBus(PropertiesUtil.getString("chat.cluster.bus", BUS_LOCAL));
+        this.bus.start(this.nodeId, this::receive);
+        this.scheduler.scheduleWithFixedDelay(this::publishPresence, this.presenceIntervalMillis, this.presenceIntervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this.bus::close, "cluster-shutdown"));
+    }
+
+    private static class Holder {
+        private static final ClusterNode ME = new ClusterNode();
+    }
+
+    public static ClusterNode me() {
+        return Holder.ME;
+    }
+
+    private static MessageBus createBus(String type) {
+        if (BUS_LOCAL.equalsIgnoreCase(type)) {
+            return new LocalMessageBus();
+        }
+        if (BUS_TCP.equalsIgnoreCase(type)) {
+            return new TcpMessageBus();
+        }
+        try {
+            return (MessageBus) Class.forName(type).newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("无法创建集群总线:" + type, e);
+        }
+    }
+
+    /**
+     * 发一条房间消息，本节点的连接在当前线程里收到，其他节点异步收到
+     * @param user 产生这条消息的人
+     * @param content 不带时间和房间名的内容
+     */
+    public void publishChat(String room, String user, String content) {
+        this.bus.publish(ClusterMessage.chat(this.nodeId, room, user, content));
+    }
+
+    /**
+     * 某人在本节点某个房间的连接数变了，本节点也在当前线程里收到
+     * @param count 连接数，0表示离开
+     */
+    public void publishMember(String room, String user, int count) {
+        this.bus.publish(ClusterMessage.member(this.nodeId, room, user, count));
+    }
+
+    /**
+     * 把私信交给其他节点，收信人在哪个节点上就由哪个节点发给他，本节点的连接由调用方自己发
+     * @param text 收信人看到的完整的一行文本
+     */
+    public void publishDirect(String to, String text) {
+        this.bus.publish(ClusterMessage.direct(this.nodeId, to, text));
+    }
+
+    /**
+     * @return 本节点加上其他节点的在线人数，超过三个上报周期没有消息的节点不算
+     */
+    public int getOnlineCount() {
+        int count = WebSocketCache.me().size();
+        long now = System.nanoTime();
+        for (RemoteNode remote : this.remotes.values()) {
+            if (!remote.isExpired(now)) {
+                count += remote.count;
+            }
+        }
+        return count;
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return 最近上报过在线人数的其他节点数
+     */
+    public int getRemoteNodeCount() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (RemoteNode remote : this.remotes.values()) {
+            if (!remote.isExpired(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public MessageBus getBus() {
+        return this.bus;
+    }
+
+    private void receive(ClusterMessage message) {
+        switch (message.getKind()) {
+            case CHAT:
+                deliver(message);
+                break;
+            case PRESENCE:
+                if (this.nodeId.equals(message.getNodeId())) {
+                    break;
+                }
+                RemoteNode previous = this.remotes.put(message.getNodeId(), new RemoteNode(message.getCount(), System.nanoTime()));
+                if (null == previous || previous.count != message.getCount()) {
+                    OnlineCountPusher.me().onChange();
+                }
+                if (null == previous) {
+                    //新节点(或者超时后又回来的节点)不知道本节点上已经在房间里的人
+                    PresenceTracker.me().republish();
+                }
+                break;
+            case MEMBER:
+                PresenceTracker.me().apply(message.getNodeId(), message.getRoom(), message.getUser(), message.getCount());
+                break;
+            case DIRECT:
+                if (!this.nodeId.equals(message.getNodeId())) {
+                    deliverDirect(message.getUser(), message.getContent());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 记入本节点的历史再发给本节点房间里的人，序号由各个节点自己分配
+     */
+    private void deliver(ClusterMessage message) {
+        String room = message.getRoom();
+        HistoryEntry entry = HistoryRegistry.me().append(room, message.getUser(), message.getContent(), message.getTimestamp());
+        BroadcastBatcher.me().submit(room, () -> RoomRegistry.me().getSessions(room),
+                new Envelope(MessageType.CHAT, entry.getSeq(), entry.getRoom(), entry.getText()));
+    }
+
+    /**
+     * 发给收信人在本节点上的所有连接，不在本节点上时忽略，离线私信由发信人所在的节点处理
+     */
+    private void deliverDirect(String to, String text) {
+        Envelope envelope = Envelope.direct(text);
+        for (ChatUser receiver : WebSocketCache.me().getUsersByName(to)) {
+            WebSocketSession session = receiver.getSession();
+            BroadcastEngine.me().send(session, MessageFormat.of(session).getCodec().encode(envelope));
+        }
+    }
+
+    private void publishPresence() {
+        try {
+            this.bus.publish(ClusterMessage.presence(this.nodeId, WebSocketCache.me().size()));
+            long now = System.nanoTime();
+            boolean removed = false;
+            Iterator<Map.Entry<String, RemoteNode>> iterator = this.remotes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, RemoteNode> entry = iterator.next();
+                if (entry.getValue().isExpired(now)) {
+                    iterator.remove();
+                    //这个节点上的人都算离开房间
+                    PresenceTracker.me().removeNode(entry.getKey());
+                    removed = true;
+                }
+            }
+            if (removed) {
+                log.info("有集群节点超时未上报在线人数，已移除");
+                OnlineCountPusher.me().onChange();
+            }
+        } catch (Exception e) {
+            log.error("上报在线人数异常", e);
+        }
+    }
+
+    private final class RemoteNode {
+
+        private final int count;
+
+        private final long receivedNanos;
+
+        private RemoteNode(int count, long receivedNanos) {
+            this.count = count;
+            this.receivedNanos = receivedNanos;
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.receivedNanos > TimeUnit.MILLISECONDS.toNanos(ClusterNode.this.presenceIntervalMillis * 3);
+        }
+    }
+}
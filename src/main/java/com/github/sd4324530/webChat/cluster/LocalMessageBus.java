@@ -0,0 +1,48 @@
+package com.github.sd4324530.webChat.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的总线，单机部署时的默认实现；
+ * 同一个JVM里创建的多个实例互相连通，可以在一个进程里模拟多个节点
+ * @author peiyu
+ */
+public class LocalMessageBus implements MessageBus {
+
+    private static final List<LocalMessageBus> MEMBERS = new CopyOnWriteArrayList<>();
+
+    private volatile Consumer<ClusterMessage> subscriber;
+
+    @Override
+    public void start(String nodeId, Consumer<ClusterMessage> subscriber) {
+        this.subscriber = subscriber;
+        MEMBERS.add(this);
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        Consumer<ClusterMessage> self = this.subscriber;
+        if (null != self) {
+            self.accept(message);
+        }
+        for (LocalMessageBus member : MEMBERS) {
+            Consumer<ClusterMessage> other = member.subscriber;
+            if (member != this && null != other) {
+                other.accept(message);
+            }
+        }
+    }
+
+    @Override
+    public int getConnectedPeers() {
+        return Math.max(0, MEMBERS.size() - 1);
+    }
+
+    @Override
+    public void close() {
+        MEMBERS.remove(this);
+        this.subscriber = null;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.sd4324530.webChat.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * 集群消息总线，节点把消息发布到总线上，所有节点(包括自己)都会收到，各自发给本节点上的连接。
+ * 实现类需要有无参构造方法，通过chat.cluster.bus配置
+ * @author peiyu
+ */
+public interface MessageBus {
+
+    /**
+     * 开始收发消息，只调用一次
+     * @param nodeId 本节点的标识
+     * @param subscriber 收到消息时调用，可能在总线自己的线程里调用，不能阻塞
+     */
+    void start(String nodeId, Consumer<ClusterMessage> subscriber);
+
+    /**
+     * 发布消息，本节点的subscriber会在当前线程里同步收到，其他节点异步收到；不保证送达
+     */
+    void publish(ClusterMessage message);
+
+    /**
+     * @return 当前连接上的其他节点数，用于监控
+     */
+    int getConnectedPeers();
+
+    void close();
+}
@@ -0,0 +1,434 @@
+package com.github.sd4324530.webChat.cluster;
+
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 基于TCP的总线，所有节点两两相连：每个节点监听一个端口，并主动连接配置里的每个其他节点，
+ * 消息只发给直接相连的节点，不转发。每个对端一个有长度限制的发送队列和一个发送线程，
+ * 断开后自动重连，队列满了丢弃新消息。同一台机器上用不同端口就可以跑多个节点
+ * 握手是双向的：被连接方发16字节随机数a；连接方发自己的16字节随机数b和 HmacSHA256(共享密钥, 1|a|b)；
+ * 被连接方校验通过后回 HmacSHA256(共享密钥, 2|b|a)，连接方校验通过后才开始发消息，被连接方也只在校验通过后接收消息。
+ * 没有配置共享密钥时只允许监听回环地址；握手之后的帧既不加密也不逐帧签名，跨机器部署应该放在内网里
+ * 帧格式：int 长度 | ClusterMessage
+ * @author peiyu
+ */
+public class TcpMessageBus implements MessageBus {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpMessageBus.class);
+
+    private static final int MAX_FRAME = 1024 * 1024;
+
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+    private static final int NONCE_LENGTH = 16;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 3000;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int MAC_LENGTH = 32;
+
+    private static final byte CONNECTOR = 1;
+
+    private static final byte LISTENER = 2;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final String host;
+
+    private final int port;
+
+    private final List<InetSocketAddress> peerAddresses;
+
+    private final int queueCapacity;
+
+    //握手用的密钥，没有配置共享密钥时用固定的前缀，只在回环地址上允许
+    private final SecretKeySpec key;
+
+    private final List<Peer> peers = new ArrayList<>();
+
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService threads = Executors.newCachedThreadPool(new NamedThreadFactory("cluster-tcp-"));
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean running;
+
+    private volatile ServerSocket server;
+
+    private String nodeId;
+
+    private Consumer<ClusterMessage> subscriber;
+
+    public TcpMessageBus() {
+        this.host = PropertiesUtil.getString("chat.cluster.tcp.host", "127.0.0.1");
+        this.port = PropertiesUtil.getInt("chat.cluster.tcp.port", 9301);
+        this.queueCapacity = PropertiesUtil.getInt("chat.cluster.tcp.queueCapacity", 10000);
+        this.peerAddresses = parsePeers(PropertiesUtil.getString("chat.cluster.tcp.peers", ""));
+        String secret = PropertiesUtil.getString("chat.cluster.tcp.secret", "");
+        if (secret.isEmpty() && !isLoopback(this.host)) {
+            throw new IllegalStateException("集群总线监听" + this.host + "不是回环地址，必须配置chat.cluster.tcp.secret");
+        }
+        this.key = new SecretKeySpec(("webChat-cluster:" + secret).getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+    }
+
+    private static boolean isLoopback(String host) {
+        try {
+            return InetAddress.getByName(host).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("集群总线监听地址无法解析:" + host, e);
+        }
+    }
+
+    /**
+     * @param peers 逗号分隔的 host:port
+     */
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            String value = peer.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int index = value.lastIndexOf(':');
+            if (index <= 0) {
+                throw new IllegalArgumentException("集群节点地址格式应该是host:port:" + value);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(value.substring(0, index), Integer.parseInt(value.substring(index + 1))));
+        }
+        return addresses;
+    }
+
+    @Override
+    public void start(String nodeId, Consumer<ClusterMessage> subscriber) {
+        this.nodeId = nodeId;
+        this.subscriber = subscriber;
+        try {
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(this.host, this.port));
+            this.server = serverSocket;
+        } catch (IOException e) {
+            throw new IllegalStateException("集群端口" + this.host + ":" + this.port + "监听失败", e);
+        }
+        this.running = true;
+        this.threads.execute(this::acceptLoop);
+        for (InetSocketAddress address : this.peerAddresses) {
+            Peer peer = new Peer(address);
+            this.peers.add(peer);
+            this.threads.execute(peer::writeLoop);
+        }
+        log.info("集群总线启动，节点:{}，监听{}:{}，其他节点:{}", nodeId, this.host, this.port, this.peers.size());
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        this.subscriber.accept(message);
+        if (this.peers.isEmpty()) {
+            return;
+        }
+        byte[] frame = message.encode();
+        for (Peer peer : this.peers) {
+            if (!peer.queue.offer(frame)) {
+                this.dropped.increment();
+            }
+        }
+    }
+
+    @Override
+    public int getConnectedPeers() {
+        int count = 0;
+        for (Peer peer : this.peers) {
+            if (null != peer.socket) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getSentCount() {
+        return this.sent.sum();
+    }
+
+    public long getReceivedCount() {
+        return this.received.sum();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        closeQuietly(this.server);
+        for (Socket socket : this.inbound) {
+            closeQuietly(socket);
+        }
+        for (Peer peer : this.peers) {
+            closeQuietly(peer.socket);
+        }
+        this.threads.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (this.running) {
+            try {
+                Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                this.inbound.add(socket);
+                this.threads.execute(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (this.running) {
+                    log.error("接受集群连接异常", e);
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (!authenticate(socket, in)) {
+                log.warn("集群连接{}认证失败，断开", socket.getRemoteSocketAddress());
+                return;
+            }
+            log.info("集群节点{}已连接", socket.getRemoteSocketAddress());
+            while (this.running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME) {
+                    throw new IOException("集群消息长度不对:" + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                ClusterMessage message = ClusterMessage.decode(frame);
+                this.received.increment();
+                if (this.nodeId.equals(message.getNodeId())) {
+                    continue;
+                }
+                try {
+                    this.subscriber.accept(message);
+                } catch (Exception e) {
+                    log.error("处理集群消息异常", e);
+                }
+            }
+        } catch (EOFException e) {
+            log.info("集群节点{}断开", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            if (this.running) {
+                log.warn("集群连接{}异常断开:{}", socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        } finally {
+            this.inbound.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 被连接方的握手：发随机数，校验对方的MAC，通过后回自己的MAC
+     */
+    private boolean authenticate(Socket socket, DataInputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        OutputStream out = socket.getOutputStream();
+        out.write(nonce);
+        out.flush();
+        byte[] peerNonce = new byte[NONCE_LENGTH];
+        in.readFully(peerNonce);
+        byte[] answer = new byte[MAC_LENGTH];
+        in.readFully(answer);
+        if (!MessageDigest.isEqual(mac(CONNECTOR, nonce, peerNonce), answer)) {
+            return false;
+        }
+        out.write(mac(LISTENER, peerNonce, nonce));
+        out.flush();
+        socket.setSoTimeout(0);
+        return true;
+    }
+
+    /**
+     * 两个方向用不同的前缀，对方不能把收到的MAC原样发回来冒充
+     * @param role CONNECTOR或者LISTENER
+     * @param challenge 收到这个MAC的一方发出的随机数
+     * @param own 发出这个MAC的一方自己的随机数
+     */
+    private byte[] mac(byte role, byte[] challenge, byte[] own) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(this.key);
+            mac.update(role);
+            mac.update(challenge);
+            return mac.doFinal(own);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("集群握手签名失败", e);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (null == closeable) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.debug("关闭集群连接异常", e);
+        }
+    }
+
+    /**
+     * 连接到另一个节点的发送端
+     */
+    private final class Peer {
+
+        private final InetSocketAddress address;
+
+        private final String name;
+
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(TcpMessageBus.this.queueCapacity);
+
+        private volatile Socket socket;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        /**
+         * 取出队列里的消息写到连接上，积压的消息连续写完再flush；断开后按指数退避重连
+         */
+        private void writeLoop() {
+            long backoff = 100L;
+            while (TcpMessageBus.this.running) {
+                DataOutputStream out;
+                try {
+                    out = connect();
+                    backoff = 100L;
+                } catch (IOException e) {
+                    log.debug("连接集群节点{}失败:{}，{}ms后重试", this.name, e.getMessage(), backoff);
+                    if (!sleep(backoff)) {
+                        return;
+                    }
+                    backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+                    continue;
+                }
+                try {
+                    while (TcpMessageBus.this.running) {
+                        byte[] frame = this.queue.poll(1, TimeUnit.SECONDS);
+                        if (null == frame) {
+                            continue;
+                        }
+                        do {
+                            out.writeInt(frame.length);
+                            out.write(frame);
+                            TcpMessageBus.this.sent.increment();
+                        } while (null != (frame = this.queue.poll()));
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    log.warn("集群节点{}连接断开:{}", this.name, e.getMessage());
+                    TcpMessageBus.this.dropped.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    closeQuietly(this.socket);
+                    this.socket = null;
+                }
+            }
+        }
+
+        private DataOutputStream connect() throws IOException {
+            Socket connection = new Socket();
+            try {
+                connection.setTcpNoDelay(true);
+                connection.connect(new InetSocketAddress(this.address.getHostString(), this.address.getPort()), 3000);
+            } catch (IOException e) {
+                closeQuietly(connection);
+                throw e;
+            }
+            try {
+                handshake(connection);
+            } catch (IOException e) {
+                closeQuietly(connection);
+                throw e;
+            }
+            this.socket = connection;
+            log.info("已连接集群节点{}", this.name);
+            return new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+        }
+
+        /**
+         * 连接方的握手：读对方的随机数，发自己的随机数和MAC，校验对方回的MAC之后才能发消息
+         */
+        private void handshake(Socket connection) throws IOException {
+            connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            byte[] challenge = new byte[NONCE_LENGTH];
+            in.readFully(challenge);
+            byte[] nonce = new byte[NONCE_LENGTH];
+            TcpMessageBus.this.random.nextBytes(nonce);
+            OutputStream out = connection.getOutputStream();
+            out.write(nonce);
+            out.write(mac(CONNECTOR, challenge, nonce));
+            out.flush();
+            byte[] answer = new byte[MAC_LENGTH];
+            try {
+                in.readFully(answer);
+            } catch (EOFException e) {
+                throw new IOException("集群节点" + this.name + "拒绝了认证，检查两边的chat.cluster.tcp.secret");
+            }
+            if (!MessageDigest.isEqual(mac(LISTENER, nonce, challenge), answer)) {
+                throw new IOException("集群节点" + this.name + "认证失败，对方不知道共享密钥，检查两边的chat.cluster.tcp.secret");
+            }
+            connection.setSoTimeout(0);
+        }
+
+        private boolean sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
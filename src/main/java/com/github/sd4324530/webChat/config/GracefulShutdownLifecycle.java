@@ -0,0 +1,60 @@
+package com.github.sd4324530.webChat.config;
+
+import com.github.sd4324530.webChat.lifecycle.GracefulShutdown;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.web.context.ServletContextAware;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Spring容器关闭时执行优雅停机，比其他组件都先停，这时连接和发送线程都还在
+ * 根容器和mvc容器各有一个，GracefulShutdown保证只执行一次
+ * @author peiyu
+ */
+public class GracefulShutdownLifecycle implements SmartLifecycle, ServletContextAware {
+
+    private volatile boolean running;
+
+    @Override
+    public void setServletContext(ServletContext servletContext) {
+        GracefulShutdown.me().bind(servletContext);
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        GracefulShutdown.me().drain();
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        try {
+            stop();
+        } finally {
+            callback.run();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * 最后启动，最先停止
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+}
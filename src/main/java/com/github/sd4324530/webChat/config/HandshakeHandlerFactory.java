@@ -0,0 +1,49 @@
+package com.github.sd4324530.webChat.config;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.socket.server.HandshakeHandler;
+import org.springframework.web.socket.server.jetty.JettyRequestUpgradeStrategy;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+/**
+ * 创建握手处理器，运行在jetty上时把消息大小和缓冲区大小的限制交给容器的WebSocketPolicy，
+ * 超过限制的消息由容器直接关闭连接(1009)，不会读进内存
+ * @author peiyu
+ */
+final class HandshakeHandlerFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(HandshakeHandlerFactory.class);
+
+    private HandshakeHandlerFactory() {
+    }
+
+    static HandshakeHandler create() {
+        if (ClassUtils.isPresent("org.eclipse.jetty.websocket.server.WebSocketServerFactory", HandshakeHandlerFactory.class.getClassLoader())) {
+            return Jetty.create();
+        }
+        log.info("不是运行在jetty上，websocket消息大小限制使用容器的默认值");
+        return new DefaultHandshakeHandler();
+    }
+
+    /**
+     * 单独放一个类里，不在jetty上时不会加载jetty的类
+     */
+    private static class Jetty {
+
+        static HandshakeHandler create() {
+            WebSocketPolicy policy = WebSocketPolicy.newServerPolicy();
+            policy.setMaxTextMessageSize(PropertiesUtil.getInt("chat.websocket.maxTextMessageSize", 8192));
+            policy.setMaxBinaryMessageSize(PropertiesUtil.getInt("chat.websocket.maxBinaryMessageSize", 8192));
+            policy.setMaxTextMessageBufferSize(PropertiesUtil.getInt("chat.websocket.textMessageBufferSize", 8192));
+            policy.setMaxBinaryMessageBufferSize(PropertiesUtil.getInt("chat.websocket.binaryMessageBufferSize", 8192));
+            policy.setInputBufferSize(PropertiesUtil.getInt("chat.websocket.inputBufferSize", 4096));
+            log.info("websocket policy，文本消息最大{}，二进制消息最大{}，读缓冲{}",
+                    policy.getMaxTextMessageSize(), policy.getMaxBinaryMessageSize(), policy.getInputBufferSize());
+            return new DefaultHandshakeHandler(new JettyRequestUpgradeStrategy(policy));
+        }
+    }
+}
@@ -10,7 +10,7 @@ import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
-import org.springframework.web.socket.handler.PerConnectionWebSocketHandler;
+import org.springframework.web.socket.server.HandshakeHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
 
 /**
@@ -22,13 +22,12 @@ public class WebSocketConfig extends WebMvcConfigurerAdapter implements WebSocke
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(echoWebSocketHandler(), "/echo"); //提供符合W3C标准的Websocket数据
-        registry.addHandler(snakeWebSocketHandler(), "/snake");
-        registry.addHandler(snakeWebSocketHandler(), "/websocket");
-
-        registry.addHandler(echoWebSocketHandler(), "/sockjs/echo").addInterceptors(handshakeInterceptor()).withSockJS();//提供符合SockJS的数据
-        registry.addHandler(snakeWebSocketHandler(), "/sockjs/snake").addInterceptors(handshakeInterceptor()).withSockJS();
-        registry.addHandler(snakeWebSocketHandler(), "/sockjs/websocket").addInterceptors(handshakeInterceptor()).withSockJS();
+        //所有地址共用同一个无状态的EchoHandler，每个连接的状态在ConnectionContext里
+        WebSocketHandler handler = echoWebSocketHandler();
+        //消息大小和缓冲区大小的限制，SockJS的websocket传输也用同一个
+        HandshakeHandler handshakeHandler = HandshakeHandlerFactory.create();
+        registry.addHandler(handler, "/echo", "/snake", "/websocket").setHandshakeHandler(handshakeHandler).addInterceptors(handshakeInterceptor()); //提供符合W3C标准的Websocket数据
+        registry.addHandler(handler, "/sockjs/echo", "/sockjs/snake", "/sockjs/websocket").setHandshakeHandler(handshakeHandler).addInterceptors(handshakeInterceptor()).withSockJS();//提供符合SockJS的数据
     }
 
     @Bean
@@ -37,8 +36,8 @@ public class WebSocketConfig extends WebMvcConfigurerAdapter implements WebSocke
     }
 
     @Bean
-    public WebSocketHandler snakeWebSocketHandler() {
-        return new PerConnectionWebSocketHandler(EchoHandler.class);
+    public GracefulShutdownLifecycle gracefulShutdownLifecycle() {
+        return new GracefulShutdownLifecycle();
     }
 
     @Bean
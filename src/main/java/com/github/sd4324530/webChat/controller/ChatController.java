@@ -1,6 +1,6 @@
 package com.github.sd4324530.webChat.controller;
 
-import com.github.sd4324530.webChat.webSocket.WebSocketCache;
+import com.github.sd4324530.webChat.cluster.ClusterNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Controller;
@@ -18,23 +18,22 @@ public class ChatController {
 
     private static final Logger log = LoggerFactory.getLogger(ChatController.class);
 
-    private WebSocketCache cache = WebSocketCache.me();
+    private ClusterNode cluster = ClusterNode.me();
 
     @RequestMapping(method = RequestMethod.GET)
     public String chat(ModelMap map) {
         log.debug("进入聊天室页面......");
-        map.put("msg", this.cache.getAll().size());
+        map.put("msg", this.cluster.getOnlineCount());
         return "chat";
     }
 
     /**
-     * 轮询获取当前在线用户数
+     * 获取整个集群的在线用户数，页面已经改为通过websocket接收推送，保留给旧的客户端轮询
      * @return 在线用户数
      */
     @ResponseBody
     @RequestMapping(value = "/getSum", method = RequestMethod.GET)
     public String getSum() {
-        int size = this.cache.getAll().size();
-        return String.valueOf(size);
+        return String.valueOf(this.cluster.getOnlineCount());
     }
 }
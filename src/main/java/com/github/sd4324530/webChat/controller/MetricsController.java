@@ -0,0 +1,53 @@
+package com.github.sd4324530.webChat.controller;
+
+import com.github.sd4324530.webChat.metrics.ChatMetrics;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+/**
+ * 运行指标，json格式，见ChatMetrics
+ * 指标里有节点、集群和堆内存的信息，默认只允许本机访问，chat.metrics.remoteAccess=true时对外开放
+ * @author peiyu
+ */
+@Controller
+@RequestMapping(value = "metrics")
+public class MetricsController {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsController.class);
+
+    private ChatMetrics metrics = ChatMetrics.me();
+
+    private final boolean remoteAccess = PropertiesUtil.getBoolean("chat.metrics.remoteAccess", false);
+
+    @RequestMapping(method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> metrics(HttpServletRequest request) {
+        if (!this.remoteAccess && !isLoopback(request.getRemoteAddr())) {
+            log.debug("拒绝来自{}的指标请求", request.getRemoteAddr());
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+        return new ResponseEntity<>(this.metrics.snapshot(), HttpStatus.OK);
+    }
+
+    private static boolean isLoopback(String address) {
+        if (null == address) {
+            return false;
+        }
+        try {
+            //getRemoteAddr是ip字面量，不会查dns
+            return InetAddress.getByName(address).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.sd4324530.webChat.direct;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import com.github.sd4324530.webChat.webSocket.ChatUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 发给不在线的人的私信，按收信人昵称存在内存里，上线时一次取走；
+ * 每个人最多存maxPerUser条，最多存maxUsers个人，超过maxAgeMinutes的不再补发；
+ * 存满时先清掉里面的私信都已过期的人(一直没上线的)再判断，收信人必须是合法的昵称
+ * @author peiyu
+ */
+public class OfflineMailbox {
+
+    private static final Logger log = LoggerFactory.getLogger(OfflineMailbox.class);
+
+    //存满时最多每隔这么久清理一次过期的信箱，避免一直满着时每封信都遍历
+    private static final long SWEEP_INTERVAL_MILLIS = 1000L;
+
+    private final OfflinePolicy policy;
+
+    private final int maxPerUser;
+
+    private final int maxUsers;
+
+    private final long maxAgeMillis;
+
+    private final ConcurrentMap<String, Deque<Letter>> boxes = new ConcurrentHashMap<>(64);
+
+    private final LongAdder queued = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final AtomicLong lastSweepMillis = new AtomicLong();
+
+    private OfflineMailbox() {
+        this(PropertiesUtil.getEnum("chat.direct.offlinePolicy", OfflinePolicy.QUEUE),
+                PropertiesUtil.getInt("chat.direct.offline.maxPerUser", 20),
+                PropertiesUtil.getInt("chat.direct.offline.maxUsers", 10000),
+                TimeUnit.MINUTES.toMillis(PropertiesUtil.getLong("chat.direct.offline.maxAgeMinutes", 60L)));
+    }
+
+    /**
+     * 测试用，不读配置文件
+     */
+    OfflineMailbox(OfflinePolicy policy, int maxPerUser, int maxUsers, long maxAgeMillis) {
+        this.policy = policy;
+        this.maxPerUser = maxPerUser;
+        this.maxUsers = maxUsers;
+        this.maxAgeMillis = maxAgeMillis;
+        log.info("离线私信:{}，每人最多{}条", this.policy, this.maxPerUser);
+    }
+
+    private static class Holder {
+        private static final OfflineMailbox ME = new OfflineMailbox();
+    }
+
+    public static OfflineMailbox me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 按配置的策略处理一封发给不在线的人的私信
+     * @return 是否存下来了，策略是REJECT、收信人昵称不合法或者已经存满时返回false
+     */
+    public boolean offer(String to, String text) {
+        if (OfflinePolicy.REJECT == this.policy || !ChatUser.isValidName(to)) {
+            this.rejected.increment();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (this.boxes.size() >= this.maxUsers && !this.boxes.containsKey(to)
+                && (!sweep(now) || this.boxes.size() >= this.maxUsers)) {
+            this.rejected.increment();
+            return false;
+        }
+        boolean[] accepted = {false};
+        this.boxes.compute(to, (name, box) -> {
+            Deque<Letter> current = null == box ? new ArrayDeque<>(4) : box;
+            expire(current, now);
+            if (current.size() < this.maxPerUser) {
+                current.addLast(new Letter(text, now));
+                accepted[0] = true;
+            }
+            return current.isEmpty() ? null : current;
+        });
+        (accepted[0] ? this.queued : this.rejected).increment();
+        return accepted[0];
+    }
+
+    /**
+     * 取走这个人所有没过期的私信
+     */
+    public List<Letter> take(String to) {
+        Deque<Letter> box = this.boxes.remove(to);
+        if (null == box) {
+            return Collections.emptyList();
+        }
+        //compute之外拿到的box不会再被修改
+        expire(box, System.currentTimeMillis());
+        this.delivered.add(box.size());
+        return new ArrayList<>(box);
+    }
+
+    /**
+     * 删掉私信都已过期的信箱，距离上次清理不到SWEEP_INTERVAL_MILLIS时不清理
+     * @return 是否清理了
+     */
+    private boolean sweep(long now) {
+        long last = this.lastSweepMillis.get();
+        if (now - last < SWEEP_INTERVAL_MILLIS || !this.lastSweepMillis.compareAndSet(last, now)) {
+            return false;
+        }
+        int before = this.boxes.size();
+        for (String name : this.boxes.keySet()) {
+            this.boxes.computeIfPresent(name, (key, box) -> {
+                expire(box, now);
+                return box.isEmpty() ? null : box;
+            });
+        }
+        log.debug("清理过期的离线私信，信箱数{}->{}", before, this.boxes.size());
+        return true;
+    }
+
+    private void expire(Deque<Letter> box, long now) {
+        while (!box.isEmpty() && now - box.peekFirst().getTime() > this.maxAgeMillis) {
+            box.pollFirst();
+        }
+    }
+
+    public OfflinePolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * @return 有离线私信的人数
+     */
+    public int getBoxCount() {
+        return this.boxes.size();
+    }
+
+    public long getQueuedCount() {
+        return this.queued.sum();
+    }
+
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    public long getDeliveredCount() {
+        return this.delivered.sum();
+    }
+
+    /**
+     * 一封离线私信
+     */
+    public static final class Letter {
+
+        private final String text;
+
+        private final long time;
+
+        Letter(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+
+        public String getText() {
+            return this.text;
+        }
+
+        public long getTime() {
+            return this.time;
+        }
+    }
+}
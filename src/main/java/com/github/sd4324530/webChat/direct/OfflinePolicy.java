@@ -0,0 +1,12 @@
+package com.github.sd4324530.webChat.direct;
+
+/**
+ * 私信的收信人不在线时的处理方式
+ * @author peiyu
+ */
+public enum OfflinePolicy {
+    //存起来，收信人上线时补发
+    QUEUE,
+    //不发，告诉发信人对方不在线
+    REJECT
+}
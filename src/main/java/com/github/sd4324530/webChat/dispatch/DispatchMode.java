@@ -0,0 +1,23 @@
+package com.github.sd4324530.webChat.dispatch;
+
+/**
+ * 收到的消息在哪里处理
+ * @author peiyu
+ */
+public enum DispatchMode {
+
+    /**
+     * 直接在容器收到消息的线程里处理，和原来一样
+     */
+    INLINE,
+
+    /**
+     * 交给固定大小的线程池处理，同一个session的消息按收到的顺序依次处理
+     */
+    POOL,
+
+    /**
+     * 每个任务一个虚拟线程，同一个session的消息同样依次处理；JDK不支持虚拟线程时退回POOL
+     */
+    VIRTUAL
+}
@@ -0,0 +1,273 @@
+package com.github.sd4324530.webChat.dispatch;
+
+import com.github.sd4324530.webChat.metrics.LatencyHistogram;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 收到的消息的分发：容器线程只负责把消息放进这个session的队列，由后台线程按顺序处理，
+ * 消息突然增多时积压在这里，不会占住jetty的io线程。
+ * 每个session同时最多只有一个任务在执行，所以同一个人的消息顺序不变。
+ * 等待处理的消息总数超过maxPending或者单个session超过maxPerSession时拒绝新消息，由调用方提示客户端；
+ * 连接关闭的处理不受限制，排在这个session已有的消息之后执行。
+ * 每个session的队列在连接建立时由open创建，close之后标记为已关闭，之后收到的消息直接丢弃，不会再建新队列
+ * @author peiyu
+ */
+public class InboundDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundDispatcher.class);
+
+    private final DispatchMode mode;
+
+    //INLINE时为null
+    private final ExecutorService executor;
+
+    private final int maxPending;
+
+    private final int maxPerSession;
+
+    private final int drainBatch;
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>(256);
+
+    //所有session等待处理的消息总数
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final LongAdder executed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    //从放进队列到开始处理的时间
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private InboundDispatcher() {
+        this(PropertiesUtil.getInt("chat.dispatch.maxPending", 10000),
+                PropertiesUtil.getInt("chat.dispatch.maxPerSession", 64),
+                PropertiesUtil.getInt("chat.dispatch.drainBatch", 16));
+    }
+
+    /**
+     * 测试用，分发方式和线程数仍然读配置文件
+     */
+    InboundDispatcher(int maxPending, int maxPerSession, int drainBatch) {
+        this.maxPending = maxPending;
+        this.maxPerSession = maxPerSession;
+        this.drainBatch = drainBatch;
+        DispatchMode configured = PropertiesUtil.getEnum("chat.dispatch.mode", DispatchMode.POOL);
+        ExecutorService virtual = DispatchMode.VIRTUAL == configured ? virtualExecutor() : null;
+        if (DispatchMode.VIRTUAL == configured && null == virtual) {
+            log.warn("当前JDK不支持虚拟线程，使用线程池处理消息");
+            configured = DispatchMode.POOL;
+        }
+        this.mode = configured;
+        if (DispatchMode.POOL == this.mode) {
+            int threads = PropertiesUtil.getInt("chat.dispatch.threads", Runtime.getRuntime().availableProcessors() * 2);
+            //每个session同时最多一个任务在排队，任务数不会超过在线人数，真正的限制是maxPending
+            this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new NamedThreadFactory("inbound-"));
+        } else {
+            this.executor = virtual;
+        }
+        log.info("消息分发方式:{}，最多积压{}条，每个连接最多{}条", this.mode, this.maxPending, this.maxPerSession);
+    }
+
+    private static class Holder {
+        private static final InboundDispatcher ME = new InboundDispatcher();
+    }
+
+    public static InboundDispatcher me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 通过反射创建，编译目标是java 8
+     */
+    private static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 连接建立时调用，创建这个session的队列
+     */
+    public void open(String sessionId) {
+        if (null != this.executor) {
+            this.lanes.computeIfAbsent(sessionId, id -> new Lane());
+        }
+    }
+
+    /**
+     * 处理一个session收到的消息，连接已经开始关闭(或者没有open过)时直接丢弃
+     * @return 是否接受，积压太多时返回false，任务不会执行；丢弃的返回true，已经关闭的连接不用提示
+     */
+    public boolean dispatch(String sessionId, Runnable task) {
+        if (null == this.executor) {
+            run(task);
+            return true;
+        }
+        Lane lane = this.lanes.get(sessionId);
+        if (null == lane || lane.closed) {
+            this.dropped.increment();
+            return true;
+        }
+        if (lane.size.get() >= this.maxPerSession || this.pending.get() >= this.maxPending) {
+            this.rejected.increment();
+            return false;
+        }
+        enqueue(lane, task);
+        return true;
+    }
+
+    /**
+     * 连接关闭时的处理，不受积压限制，在这个session已经收到的消息处理完之后执行，然后删除这个session的队列；
+     * 标记关闭之后这个session再收到的消息都丢弃。同一个连接可能关闭多次(心跳超时之后又收到关闭回调)，
+     * 队列已经删除说明关闭的处理已经执行过，不再执行
+     */
+    public void close(String sessionId, Runnable task) {
+        if (null == this.executor) {
+            run(task);
+            return;
+        }
+        Lane lane = this.lanes.get(sessionId);
+        if (null == lane) {
+            return;
+        }
+        lane.closed = true;
+        enqueue(lane, () -> {
+            try {
+                task.run();
+            } finally {
+                this.lanes.remove(sessionId, lane);
+            }
+        });
+    }
+
+    public DispatchMode getMode() {
+        return this.mode;
+    }
+
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    public int getLaneCount() {
+        return this.lanes.size();
+    }
+
+    public long getExecutedCount() {
+        return this.executed.sum();
+    }
+
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * @return 连接关闭之后才收到、被丢弃的消息数
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    public LatencyHistogram getQueueTime() {
+        return this.queueTime;
+    }
+
+    private void enqueue(Lane lane, Runnable task) {
+        lane.size.incrementAndGet();
+        this.pending.incrementAndGet();
+        lane.tasks.add(new Task(task, System.nanoTime()));
+        schedule(lane);
+    }
+
+    private void schedule(Lane lane) {
+        if (lane.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(() -> drain(lane));
+            } catch (RejectedExecutionException e) {
+                lane.scheduled.set(false);
+                log.warn("消息分发线程池已经关闭");
+            }
+        }
+    }
+
+    /**
+     * 一次最多连续处理drainBatch条，然后让出线程给其他session
+     */
+    private void drain(Lane lane) {
+        try {
+            for (int i = 0; i < this.drainBatch; i++) {
+                Task task = lane.tasks.poll();
+                if (null == task) {
+                    break;
+                }
+                lane.size.decrementAndGet();
+                this.pending.decrementAndGet();
+                this.queueTime.record(System.nanoTime() - task.enqueuedNanos);
+                run(task.runnable);
+            }
+        } finally {
+            lane.scheduled.set(false);
+        }
+        if (!lane.tasks.isEmpty()) {
+            schedule(lane);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("处理消息异常", e);
+        } finally {
+            this.executed.increment();
+        }
+    }
+
+    /**
+     * 一个session等待处理的消息
+     */
+    private static final class Lane {
+
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private volatile boolean closed;
+    }
+
+    private static final class Task {
+
+        private final Runnable runnable;
+
+        private final long enqueuedNanos;
+
+        private Task(Runnable runnable, long enqueuedNanos) {
+            this.runnable = runnable;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.sd4324530.webChat.filter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho–Corasick多模式匹配自动机，一次扫描找出文本里出现的所有词，耗时和词的数量无关；
+ * 忽略大小写。编译好之后不可变，可以被多个线程同时使用，更新词表时重新编译一个整体替换
+ * @author peiyu
+ */
+public final class AhoCorasick {
+
+    private static final AhoCorasick EMPTY = compile(new ArrayList<>(0));
+
+    //状态i的转移是keys/targets里[offsets[i], offsets[i + 1])这一段，按字符排序
+    private final int[] offsets;
+
+    private final char[] keys;
+
+    private final int[] targets;
+
+    //失败时跳转的状态
+    private final int[] fail;
+
+    //在这个状态结束的最长的词的长度，包括通过失败链能到达的词，0表示没有
+    private final int[] matchLength;
+
+    private final int size;
+
+    //词里出现过的字符，一位一个字符共8KB；聊天内容里大部分字符不在任何词里，直接回到初始状态
+    private final long[] alphabet;
+
+    private AhoCorasick(int[] offsets, char[] keys, int[] targets, int[] fail, int[] matchLength, int size) {
+        this.alphabet = new long[(Character.MAX_VALUE + 1) >>> 6];
+        for (char key : keys) {
+            this.alphabet[key >>> 6] |= 1L << key;
+        }
+        this.offsets = offsets;
+        this.keys = keys;
+        this.targets = targets;
+        this.fail = fail;
+        this.matchLength = matchLength;
+        this.size = size;
+    }
+
+    /**
+     * 匹配到一个词时回调
+     */
+    public interface Hit {
+        /**
+         * @param begin 词在文本里的开始位置
+         * @param end 词在文本里的结束位置(不包含)
+         * @return false时停止匹配
+         */
+        boolean onHit(int begin, int end);
+    }
+
+    public static AhoCorasick empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param words 要匹配的词，空的和重复的忽略
+     */
+    public static AhoCorasick compile(Collection<String> words) {
+        //先建一棵普通的字典树
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Integer> depth = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        children.add(new TreeMap<>());
+        depth.add(0);
+        terminal.add(Boolean.FALSE);
+        int size = 0;
+        for (String word : words) {
+            if (null == word || word.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                char c = lowerCase(word.charAt(i));
+                Integer next = children.get(state).get(c);
+                if (null == next) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    depth.add(depth.get(state) + 1);
+                    terminal.add(Boolean.FALSE);
+                    children.get(state).put(c, next);
+                }
+                state = next;
+            }
+            if (!terminal.get(state)) {
+                terminal.set(state, Boolean.TRUE);
+                size++;
+            }
+        }
+        //压成数组
+        int states = children.size();
+        int[] offsets = new int[states + 1];
+        for (int i = 0; i < states; i++) {
+            offsets[i + 1] = offsets[i] + children.get(i).size();
+        }
+        char[] keys = new char[offsets[states]];
+        int[] targets = new int[offsets[states]];
+        for (int i = 0; i < states; i++) {
+            int index = offsets[i];
+            for (Map.Entry<Character, Integer> entry : children.get(i).entrySet()) {
+                keys[index] = entry.getKey();
+                targets[index] = entry.getValue();
+                index++;
+            }
+        }
+        int[] matchLength = new int[states];
+        for (int i = 0; i < states; i++) {
+            matchLength[i] = terminal.get(i) ? depth.get(i) : 0;
+        }
+        //按层遍历计算失败跳转，父状态的失败跳转一定先算好
+        int[] fail = new int[states];
+        AhoCorasick automaton = new AhoCorasick(offsets, keys, targets, fail, matchLength, size);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int i = offsets[0]; i < offsets[1]; i++) {
+            queue.add(targets[i]);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+                int child = targets[i];
+                fail[child] = automaton.next(fail[state], keys[i]);
+                matchLength[child] = Math.max(matchLength[child], matchLength[fail[child]]);
+                queue.add(child);
+            }
+        }
+        return automaton;
+    }
+
+    private static char lowerCase(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * 从state读入c之后的状态，没有转移时沿失败链回退
+     */
+    private int next(int state, char c) {
+        if (0L == (this.alphabet[c >>> 6] & (1L << c))) {
+            return 0;
+        }
+        while (true) {
+            int target = transition(state, c);
+            if (target >= 0) {
+                return target;
+            }
+            if (0 == state) {
+                return 0;
+            }
+            state = this.fail[state];
+        }
+    }
+
+    private int transition(int state, char c) {
+        int low = this.offsets[state];
+        int high = this.offsets[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char key = this.keys[mid];
+            if (key < c) {
+                low = mid + 1;
+            } else if (key > c) {
+                high = mid - 1;
+            } else {
+                return this.targets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 依次回调每个位置上结束的最长的词
+     */
+    public void match(CharSequence text, Hit hit) {
+        if (0 == this.size) {
+            return;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next(state, lowerCase(text.charAt(i)));
+            int length = this.matchLength[state];
+            if (length > 0 && !hit.onHit(i + 1 - length, i + 1)) {
+                return;
+            }
+        }
+    }
+
+    public boolean containsAny(CharSequence text) {
+        if (0 == this.size) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next(state, lowerCase(text.charAt(i)));
+            if (this.matchLength[state] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把匹配到的词替换成mask
+     * @return 没有匹配时返回原字符串
+     */
+    public String mask(String text, char mask) {
+        if (0 == this.size) {
+            return text;
+        }
+        char[] chars = null;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next(state, lowerCase(text.charAt(i)));
+            int length = this.matchLength[state];
+            if (length > 0) {
+                if (null == chars) {
+                    chars = text.toCharArray();
+                }
+                Arrays.fill(chars, i + 1 - length, i + 1, mask);
+            }
+        }
+        return null == chars ? text : new String(chars);
+    }
+
+    /**
+     * @return 词的数量
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return 状态数，用来估计占用的内存
+     */
+    public int getStateCount() {
+        return this.fail.length;
+    }
+}
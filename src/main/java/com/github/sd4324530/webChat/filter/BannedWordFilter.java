@@ -0,0 +1,164 @@
+package com.github.sd4324530.webChat.filter;
+
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 敏感词过滤，词表一行一个，#开头的是注释，忽略大小写。
+ * 词表文件修改后由后台线程重新编译自动机，编译好之后整体替换，处理消息的线程不用等待
+ * @author peiyu
+ */
+public class BannedWordFilter implements MessageFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(BannedWordFilter.class);
+
+    public static final String DEFAULT_WORDS = "bannedWords.txt";
+
+    private final FilterAction action;
+
+    //词表文件，不可以热加载的(比如在jar包里)为null
+    private final File file;
+
+    private volatile AhoCorasick automaton = AhoCorasick.empty();
+
+    private volatile long lastModified;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder reloads = new LongAdder();
+
+    public BannedWordFilter() {
+        this.action = PropertiesUtil.getEnum("chat.filter.bannedWords.action", FilterAction.MASK);
+        this.file = resolve(PropertiesUtil.getString("chat.filter.bannedWords.file", null));
+        if (null != this.file) {
+            reload();
+        } else {
+            //只能读一次的classpath资源
+            load(BannedWordFilter.class.getClassLoader().getResource(DEFAULT_WORDS));
+        }
+        long interval = PropertiesUtil.getLong("chat.filter.bannedWords.reloadSeconds", 10L);
+        if (null != this.file && interval > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("chat-filter-reload"));
+            scheduler.scheduleWithFixedDelay(this::reloadIfModified, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 配置了文件路径时用这个文件，否则用classpath下的bannedWords.txt，在文件系统上的(没有打进jar包)也可以热加载
+     */
+    private static File resolve(String path) {
+        if (null != path) {
+            return new File(path);
+        }
+        URL url = BannedWordFilter.class.getClassLoader().getResource(DEFAULT_WORDS);
+        if (null != url && "file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI());
+            } catch (Exception e) {
+                log.debug("词表路径无法转换成文件:{}", url);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String filter(String user, String text) {
+        AhoCorasick current = this.automaton;
+        if (FilterAction.REJECT == this.action) {
+            if (current.containsAny(text)) {
+                this.hits.increment();
+                return null;
+            }
+            return text;
+        }
+        String masked = current.mask(text, '*');
+        if (masked != text) {
+            this.hits.increment();
+        }
+        return masked;
+    }
+
+    private void reloadIfModified() {
+        try {
+            if (this.file.lastModified() != this.lastModified) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.error("重新加载敏感词异常", e);
+        }
+    }
+
+    /**
+     * 重新读取词表文件，读取失败时继续使用原来的词表
+     */
+    public void reload() {
+        long modified = this.file.lastModified();
+        if (0L == modified) {
+            log.warn("敏感词文件不存在:{}", this.file);
+            this.lastModified = 0L;
+            return;
+        }
+        try (InputStream in = new FileInputStream(this.file)) {
+            swap(IOUtils.readLines(in, StandardCharsets.UTF_8));
+            this.lastModified = modified;
+        } catch (IOException e) {
+            log.error("读取敏感词文件{}异常", this.file, e);
+        }
+    }
+
+    private void load(URL url) {
+        if (null == url) {
+            log.info("没有敏感词表，不过滤");
+            return;
+        }
+        try (InputStream in = url.openStream()) {
+            swap(IOUtils.readLines(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error("读取敏感词表{}异常", url, e);
+        }
+    }
+
+    private void swap(List<String> lines) {
+        List<String> words = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String word = line.trim();
+            if (!word.isEmpty() && !word.startsWith("#")) {
+                words.add(word);
+            }
+        }
+        long begin = System.nanoTime();
+        AhoCorasick compiled = AhoCorasick.compile(words);
+        this.automaton = compiled;
+        this.reloads.increment();
+        log.info("加载敏感词{}个，{}个状态，用时{}ms", compiled.size(), compiled.getStateCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+
+    public int getWordCount() {
+        return this.automaton.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getReloadCount() {
+        return this.reloads.sum();
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.sd4324530.webChat.filter;
+
+/**
+ * 内容命中过滤规则时的处理方式
+ * @author peiyu
+ */
+public enum FilterAction {
+    //命中的部分替换成*
+    MASK,
+    //整条消息不发
+    REJECT
+}
@@ -0,0 +1,53 @@
+package com.github.sd4324530.webChat.filter;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 链接过滤，找到http://、https://、ftp://、www.开头的地方，一直到下一个空白字符都算作链接
+ * @author peiyu
+ */
+public class LinkFilter implements MessageFilter {
+
+    private static final AhoCorasick PREFIXES = AhoCorasick.compile(Arrays.asList("http://", "https://", "ftp://", "www."));
+
+    private final FilterAction action;
+
+    private final LongAdder hits = new LongAdder();
+
+    public LinkFilter() {
+        this.action = PropertiesUtil.getEnum("chat.filter.link.action", FilterAction.MASK);
+    }
+
+    @Override
+    public String filter(String user, String text) {
+        if (FilterAction.REJECT == this.action) {
+            if (PREFIXES.containsAny(text)) {
+                this.hits.increment();
+                return null;
+            }
+            return text;
+        }
+        char[][] chars = new char[1][];
+        PREFIXES.match(text, (begin, end) -> {
+            if (null == chars[0]) {
+                chars[0] = text.toCharArray();
+            }
+            for (int i = begin; i < chars[0].length && !Character.isWhitespace(chars[0][i]); i++) {
+                chars[0][i] = '*';
+            }
+            return true;
+        });
+        if (null == chars[0]) {
+            return text;
+        }
+        this.hits.increment();
+        return new String(chars[0]);
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.sd4324530.webChat.filter;
+
+/**
+ * 聊天内容过滤器，在广播之前依次执行，实现类必须是线程安全的
+ * @author peiyu
+ */
+public interface MessageFilter {
+
+    /**
+     * @param user 发送者昵称
+     * @param text 经过前面的过滤器处理后的内容
+     * @return 处理后的内容，不需要修改时返回text本身；返回null表示拒绝这条消息，后面的过滤器不再执行
+     */
+    String filter(String user, String text);
+}
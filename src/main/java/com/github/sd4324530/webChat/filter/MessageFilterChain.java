@@ -0,0 +1,102 @@
+package com.github.sd4324530.webChat.filter;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天内容在广播之前经过的过滤器链，通过chat.filter.chain按顺序配置，逗号分隔：
+ * bannedWords 敏感词，link 链接，或者实现了MessageFilter且有无参构造方法的类名，none 不过滤
+ * @author peiyu
+ */
+public class MessageFilterChain {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageFilterChain.class);
+
+    public static final String TYPE_NONE = "none";
+
+    public static final String TYPE_BANNED_WORDS = "bannedWords";
+
+    public static final String TYPE_LINK = "link";
+
+    private final MessageFilter[] filters;
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder modified = new LongAdder();
+
+    private MessageFilterChain() {
+        List<MessageFilter> list = new ArrayList<>();
+        for (String type : PropertiesUtil.getString("chat.filter.chain", TYPE_BANNED_WORDS + "," + TYPE_LINK).split(",")) {
+            type = type.trim();
+            if (type.isEmpty() || TYPE_NONE.equalsIgnoreCase(type)) {
+                continue;
+            }
+            list.add(create(type));
+        }
+        this.filters = list.toArray(new MessageFilter[0]);
+        log.info("内容过滤器:{}", list);
+    }
+
+    private static class Holder {
+        private static final MessageFilterChain ME = new MessageFilterChain();
+    }
+
+    public static MessageFilterChain me() {
+        return Holder.ME;
+    }
+
+    private static MessageFilter create(String type) {
+        if (TYPE_BANNED_WORDS.equalsIgnoreCase(type)) {
+            return new BannedWordFilter();
+        }
+        if (TYPE_LINK.equalsIgnoreCase(type)) {
+            return new LinkFilter();
+        }
+        try {
+            return (MessageFilter) Class.forName(type).newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("无法创建内容过滤器:" + type, e);
+        }
+    }
+
+    /**
+     * @return 过滤后的内容，被拒绝时返回null
+     */
+    public String apply(String user, String text) {
+        String result = text;
+        for (MessageFilter filter : this.filters) {
+            result = filter.filter(user, result);
+            if (null == result) {
+                this.rejected.increment();
+                return null;
+            }
+        }
+        if (result != text) {
+            this.modified.increment();
+        }
+        return result;
+    }
+
+    /**
+     * @return 按配置顺序的过滤器，只读
+     */
+    public List<MessageFilter> getFilters() {
+        List<MessageFilter> list = new ArrayList<>(this.filters.length);
+        Collections.addAll(list, this.filters);
+        return Collections.unmodifiableList(list);
+    }
+
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    public long getModifiedCount() {
+        return this.modified.sum();
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.sd4324530.webChat.heartbeat;
+
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 时间轮定时器：所有定时任务按到期的格子挂在一个环上，由一个线程每tickMillis转一格，执行这一格里到期的任务。
+ * 加任务和取消都是O(1)，适合大量连接各自一个、经常重新安排的超时检查，精度是一格。
+ * 任务在时间轮线程里执行，必须很快完成，不能阻塞
+ * @author peiyu
+ */
+public class HashedWheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    //每格最多从新任务队列里搬这么多个，避免一直有新任务时时间轮转不动
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    //每个格子只在时间轮线程里访问，不需要同步
+    private final List<List<Timeout>> wheel;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    private long tick;
+
+    /**
+     * @param ticksPerWheel 一圈的格数，会向上取成2的幂
+     */
+    public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tickMillis和ticksPerWheel必须大于0");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.wheel.add(new ArrayList<>());
+        }
+        this.worker = new NamedThreadFactory(name).newThread(this::run);
+        this.worker.start();
+    }
+
+    /**
+     * 安排一个任务在delay之后执行
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (!this.running) {
+            throw new IllegalStateException("定时器已经停止");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - this.startNanos + unit.toNanos(Math.max(0L, delay)));
+        this.pending.incrementAndGet();
+        this.added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 还没到期也没取消的任务数
+     */
+    public int getPendingTimeouts() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return 一圈的格数
+     */
+    public int getWheelSize() {
+        return this.mask + 1;
+    }
+
+    public void stop() {
+        this.running = false;
+        this.worker.interrupt();
+    }
+
+    private void run() {
+        while (this.running) {
+            long deadline = this.startNanos + this.tickNanos * (this.tick + 1);
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (!this.running) {
+                    return;
+                }
+            }
+            transfer();
+            expire(this.wheel.get((int) (this.tick & this.mask)));
+            this.tick++;
+        }
+    }
+
+    /**
+     * 把新加的任务挂到对应的格子上，已经过期的挂在当前格
+     */
+    private void transfer() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = this.added.poll();
+            if (null == timeout) {
+                return;
+            }
+            if (timeout.isDone()) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / this.tickNanos, this.tick);
+            timeout.remainingRounds = (ticks - this.tick) / (this.mask + 1);
+            this.wheel.get((int) (ticks & this.mask)).add(timeout);
+        }
+    }
+
+    /**
+     * 执行这一格里到期的任务，顺便清掉已经取消的
+     */
+    private void expire(List<Timeout> bucket) {
+        int i = 0;
+        while (i < bucket.size()) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.isDone() || timeout.remainingRounds <= 0) {
+                //和最后一个交换后删除，不需要移动后面的元素
+                int last = bucket.size() - 1;
+                bucket.set(i, bucket.get(last));
+                bucket.remove(last);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * 一个定时任务，可以在到期前取消
+     */
+    public final class Timeout {
+
+        private final Runnable task;
+
+        //相对于定时器启动时间
+        private final long deadline;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return 是否取消成功，已经执行或者已经取消的返回false
+         */
+        public boolean cancel() {
+            if (this.done.compareAndSet(false, true)) {
+                HashedWheelTimer.this.pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isDone() {
+            return this.done.get();
+        }
+
+        private void expire() {
+            if (!this.done.compareAndSet(false, true)) {
+                return;
+            }
+            HashedWheelTimer.this.pending.decrementAndGet();
+            try {
+                this.task.run();
+            } catch (Throwable e) {
+                log.error("定时任务执行异常", e);
+            }
+        }
+    }
+}
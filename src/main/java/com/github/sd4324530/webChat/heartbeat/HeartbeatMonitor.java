@@ -0,0 +1,193 @@
+package com.github.sd4324530.webChat.heartbeat;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 连接心跳：每个连接在时间轮上挂一个检查任务，一段时间没有收到任何消息(包括pong)就发一个ping，
+ * 超过timeoutSeconds还没有动静的认为连接已经断了(比如对方断电、断网导致的半开连接)，交给注册时传入的回调按正常下线处理。
+ * 收到消息时只更新注册时返回的Heartbeat里的时间，不重新安排任务，检查到期时再根据最后的时间决定下一次检查。
+ * SockJS连接有自己的心跳和超时，不在这里检查
+ * @author peiyu
+ */
+public class HeartbeatMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatMonitor.class);
+
+    //只保留最新的一个ping，连接积压时不会攒一堆ping
+    private static final String COALESCE_KEY = "ping";
+
+    private final boolean enabled;
+
+    private final long pingIntervalNanos;
+
+    private final long timeoutNanos;
+
+    private final HashedWheelTimer timer;
+
+    private final ConcurrentMap<String, Heartbeat> heartbeats = new ConcurrentHashMap<>(256);
+
+    private final BroadcastEngine engine = BroadcastEngine.me();
+
+    private final LongAdder pings = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    private HeartbeatMonitor() {
+        this.enabled = PropertiesUtil.getBoolean("chat.heartbeat.enabled", true);
+        this.pingIntervalNanos = TimeUnit.SECONDS.toNanos(PropertiesUtil.getLong("chat.heartbeat.pingIntervalSeconds", 25L));
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(PropertiesUtil.getLong("chat.heartbeat.timeoutSeconds", 60L));
+        this.timer = new HashedWheelTimer("heartbeat-", PropertiesUtil.getLong("chat.heartbeat.tickMillis", 100L),
+                PropertiesUtil.getInt("chat.heartbeat.ticksPerWheel", 512));
+    }
+
+    private static class Holder {
+        private static final HeartbeatMonitor ME = new HeartbeatMonitor();
+    }
+
+    public static HeartbeatMonitor me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 开始检查一个连接
+     * @param onEvict 连接超时后调用，在时间轮线程里执行
+     * @return 收到消息时通过它更新时间；不检查的连接(SockJS或者关闭了心跳)返回null
+     */
+    public Heartbeat register(WebSocketSession session, Consumer<WebSocketSession> onEvict) {
+        if (!this.enabled || session instanceof SockJsSession) {
+            return null;
+        }
+        Heartbeat heartbeat = new Heartbeat(session, onEvict);
+        Heartbeat existing = this.heartbeats.putIfAbsent(session.getId(), heartbeat);
+        if (null != existing) {
+            return existing;
+        }
+        heartbeat.schedule(this.pingIntervalNanos);
+        return heartbeat;
+    }
+
+    /**
+     * 连接关闭后调用，不再检查
+     */
+    public void unregister(String sessionId) {
+        Heartbeat heartbeat = this.heartbeats.remove(sessionId);
+        if (null != heartbeat) {
+            heartbeat.cancel();
+        }
+    }
+
+    /**
+     * @return 正在检查的连接数
+     */
+    public int getMonitoredCount() {
+        return this.heartbeats.size();
+    }
+
+    /**
+     * @return 时间轮上等待执行的检查任务数
+     */
+    public int getPendingTimeouts() {
+        return this.timer.getPendingTimeouts();
+    }
+
+    public int getWheelSize() {
+        return this.timer.getWheelSize();
+    }
+
+    public long getPingCount() {
+        return this.pings.sum();
+    }
+
+    public long getEvictedCount() {
+        return this.evicted.sum();
+    }
+
+    /**
+     * 一个连接的心跳状态
+     */
+    public final class Heartbeat {
+
+        private final WebSocketSession session;
+
+        private final Consumer<WebSocketSession> onEvict;
+
+        private volatile long lastActivityNanos;
+
+        private volatile long lastPongNanos;
+
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private Heartbeat(WebSocketSession session, Consumer<WebSocketSession> onEvict) {
+            this.session = session;
+            this.onEvict = onEvict;
+            this.lastActivityNanos = System.nanoTime();
+            this.lastPongNanos = this.lastActivityNanos;
+        }
+
+        /**
+         * 收到客户端的消息
+         */
+        public void touch() {
+            this.lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 收到客户端的pong
+         */
+        public void pong() {
+            this.lastPongNanos = System.nanoTime();
+        }
+
+        private void schedule(long delayNanos) {
+            this.timeout = HeartbeatMonitor.this.timer.newTimeout(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void cancel() {
+            HashedWheelTimer.Timeout current = this.timeout;
+            if (null != current) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * 超时的下线；太久没有动静的发ping；然后安排到下一次要发ping或者要超时的时候再检查
+         */
+        private void check() {
+            if (HeartbeatMonitor.this.heartbeats.get(this.session.getId()) != this) {
+                return;
+            }
+            long now = System.nanoTime();
+            long lastSeen = Math.max(this.lastActivityNanos, this.lastPongNanos);
+            long idle = now - lastSeen;
+            if (idle >= HeartbeatMonitor.this.timeoutNanos || !this.session.isOpen()) {
+                if (HeartbeatMonitor.this.heartbeats.remove(this.session.getId(), this)) {
+                    HeartbeatMonitor.this.evicted.increment();
+                    log.info("session:{}已经{}秒没有响应，断开连接", this.session.getId(), TimeUnit.NANOSECONDS.toSeconds(idle));
+                    this.onEvict.accept(this.session);
+                }
+                return;
+            }
+            long nextPing;
+            if (idle >= HeartbeatMonitor.this.pingIntervalNanos) {
+                HeartbeatMonitor.this.engine.send(this.session, new PingMessage(), COALESCE_KEY);
+                HeartbeatMonitor.this.pings.increment();
+                nextPing = HeartbeatMonitor.this.pingIntervalNanos;
+            } else {
+                nextPing = HeartbeatMonitor.this.pingIntervalNanos - idle;
+            }
+            schedule(Math.min(nextPing, HeartbeatMonitor.this.timeoutNanos - idle));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.sd4324530.webChat.history;
+
+/**
+ * 一条历史消息，不可变，序号在房间内递增
+ * @author peiyu
+ */
+public final class HistoryEntry {
+
+    private final long seq;
+
+    private final long timestamp;
+
+    private final String room;
+
+    private final String user;
+
+    private final String content;
+
+    private final String text;
+
+    public HistoryEntry(long seq, long timestamp, String room, String user, String content, String text) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.user = user;
+        this.content = content;
+        this.text = text;
+    }
+
+    public long getSeq() {
+        return this.seq;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    /**
+     * @return 产生这条消息的人
+     */
+    public String getUser() {
+        return this.user;
+    }
+
+    /**
+     * @return 不带时间和房间名的内容
+     */
+    public String getContent() {
+        return this.content;
+    }
+
+    /**
+     * @return 广播时发给客户端的完整文本
+     */
+    public String getText() {
+        return this.text;
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.sd4324530.webChat.history;
+
+import com.github.sd4324530.webChat.journal.ChatJournal;
+import com.github.sd4324530.webChat.lifecycle.ShutdownSnapshot;
+import com.github.sd4324530.webChat.room.RoomRegistry;
+import com.github.sd4324530.webChat.utils.TimestampFormatter;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各个房间的消息历史，另外记录刚下线的人在每个房间看到的最后序号，
+ * 短时间内用同一个昵称重连(比如SockJS切换传输方式)时补发离开期间的消息。
+ * 每条消息同时写入持久化日志，启动时从日志恢复；上次是优雅停机并且之后日志没有变过时，直接从停机快照恢复。
+ * 集群里每个节点各自分配序号，新建的房间历史随机取一个纪元，客户端带来的序号不是本节点分配的时候按没有序号处理
+ * @author peiyu
+ */
+public class HistoryRegistry {
+
+    private final ConcurrentMap<String, MessageHistory> histories = new ConcurrentHashMap<>(64);
+
+    //key: 房间 + 昵称
+    private final ConcurrentMap<String, Departure> departures = new ConcurrentHashMap<>(64);
+
+    private final int capacity;
+
+    private final int replayOnJoin;
+
+    private final long reconnectWindowNanos;
+
+    private final int maxDepartures;
+
+    private final String defaultRoom = RoomRegistry.me().getDefaultRoom();
+
+    private final ChatJournal journal = ChatJournal.me();
+
+    private HistoryRegistry() {
+        this.capacity = PropertiesUtil.getInt("chat.history.capacity", 256);
+        this.replayOnJoin = PropertiesUtil.getInt("chat.history.replayOnJoin", 20);
+        this.reconnectWindowNanos = TimeUnit.SECONDS.toNanos(PropertiesUtil.getLong("chat.history.reconnectWindowSeconds", 120L));
+        this.maxDepartures = PropertiesUtil.getInt("chat.history.maxDepartures", 10000);
+        ShutdownSnapshot snapshot = ShutdownSnapshot.restored();
+        if (null != snapshot && snapshot.getJournalMarker().equals(this.journal.getTailMarker())) {
+            snapshot.getHistory().forEach(this::restore);
+            this.journal.start(this::restore, false);
+        } else {
+            this.journal.start(this::restore);
+        }
+    }
+
+    private static class Holder {
+        private static final HistoryRegistry ME = new HistoryRegistry();
+    }
+
+    public static HistoryRegistry me() {
+        return Holder.ME;
+    }
+
+    public MessageHistory get(String room) {
+        MessageHistory history = this.histories.get(room);
+        if (null == history) {
+            history = this.histories.computeIfAbsent(room, r -> new MessageHistory(r, this.capacity,
+                    ThreadLocalRandom.current().nextInt(1, MessageHistory.MAX_EPOCH + 1)));
+        }
+        return history;
+    }
+
+    /**
+     * 记录一条要广播的消息，加上时间，不是默认房间时加上房间名
+     * @param user 产生这条消息的人
+     * @param content 不带时间和房间名的内容
+     * @return 带序号和完整文本的消息
+     */
+    public HistoryEntry append(String room, String user, String content) {
+        return append(room, user, content, System.currentTimeMillis());
+    }
+
+    /**
+     * 记录一条带时间的消息，用于其他节点转发过来的消息，时间以产生消息的节点为准
+     */
+    public HistoryEntry append(String room, String user, String content, long timestamp) {
+        HistoryEntry entry = get(room).append(timestamp, user, content, format(timestamp, room, content));
+        this.journal.append(entry);
+        return entry;
+    }
+
+    private String format(long timestamp, String room, String content) {
+        String time = TimestampFormatter.format(timestamp);
+        return this.defaultRoom.equals(room) ? time + " " + content : time + " [" + room + "] " + content;
+    }
+
+    /**
+     * 从日志恢复一条消息
+     */
+    private void restore(HistoryEntry entry) {
+        get(entry.getRoom()).restore(new HistoryEntry(entry.getSeq(), entry.getTimestamp(), entry.getRoom(), entry.getUser(),
+                entry.getContent(), format(entry.getTimestamp(), entry.getRoom(), entry.getContent())));
+    }
+
+    /**
+     * @return 每个房间缓冲区里还在的消息，写停机快照用
+     */
+    public List<HistoryEntry> snapshot() {
+        List<HistoryEntry> entries = new ArrayList<>();
+        for (MessageHistory history : this.histories.values()) {
+            entries.addAll(history.latest(history.capacity()));
+        }
+        return entries;
+    }
+
+    /**
+     * 记录某人离开房间时看到的最后序号
+     */
+    public void departed(String room, String userName) {
+        if (this.departures.size() >= this.maxDepartures) {
+            long now = System.nanoTime();
+            this.departures.values().removeIf(departure -> departure.isExpired(now, this.reconnectWindowNanos));
+        }
+        this.departures.put(room + '\n' + userName, new Departure(get(room).lastSeq(), System.nanoTime()));
+    }
+
+    /**
+     * 进入房间时需要补发的消息：客户端带了本节点分配的序号时从这个序号之后开始；
+     * 短时间内重连的从上次离开时开始；否则(包括带来的是其他节点或者重启前分配的序号)补发最近的replayOnJoin条
+     * @param since 客户端带来的序号，没有时为负数
+     */
+    public List<HistoryEntry> replay(String room, String userName, long since) {
+        MessageHistory history = this.histories.get(room);
+        if (null == history) {
+            return Collections.emptyList();
+        }
+        if (history.isKnown(since)) {
+            return history.since(since, history.capacity());
+        }
+        Departure departure = this.departures.remove(room + '\n' + userName);
+        if (null != departure && !departure.isExpired(System.nanoTime(), this.reconnectWindowNanos)) {
+            return history.since(departure.seq, history.capacity());
+        }
+        return history.latest(this.replayOnJoin);
+    }
+
+    private static final class Departure {
+
+        private final long seq;
+
+        private final long nanoTime;
+
+        private Departure(long seq, long nanoTime) {
+            this.seq = seq;
+            this.nanoTime = nanoTime;
+        }
+
+        private boolean isExpired(long now, long windowNanos) {
+            return now - this.nanoTime > windowNanos;
+        }
+    }
+}
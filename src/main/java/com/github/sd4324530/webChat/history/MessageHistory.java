@@ -0,0 +1,127 @@
+package com.github.sd4324530.webChat.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 单个房间最近消息的环形缓冲区，容量固定(2的幂)，数组预先分配，新消息按序号覆盖最旧的位置。
+ * 每个位置存放的是带序号的不可变对象，读的时候核对序号就能知道这个位置是不是已经被覆盖或者还没写完，
+ * 所以读完全不加锁，写只需要一次原子自增领取序号。
+ * 序号的高位是纪元：集群里每个节点各自给消息分配序号，客户端重连到另一个节点(或者没有日志的节点重启)后带来的序号
+ * 纪元对不上，说明不是这份历史里的序号，不能用来续传
+ * @author peiyu
+ */
+public class MessageHistory {
+
+    private final String room;
+
+    private final AtomicReferenceArray<HistoryEntry> entries;
+
+    /**
+     * 序号里纪元左移的位数，纪元不超过20位，序号不超过2^52，javascript的number也能精确表示
+     */
+    public static final int EPOCH_SHIFT = 32;
+
+    public static final int MAX_EPOCH = (1 << 20) - 1;
+
+    private final int mask;
+
+    //下一条消息的序号，纪元内从1开始
+    private final AtomicLong next;
+
+    public MessageHistory(String room, int capacity) {
+        this(room, capacity, 0);
+    }
+
+    /**
+     * @param epoch 纪元，0到MAX_EPOCH
+     */
+    public MessageHistory(String room, int capacity, int epoch) {
+        if (epoch < 0 || epoch > MAX_EPOCH) {
+            throw new IllegalArgumentException("纪元超出范围:" + epoch);
+        }
+        this.room = room;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.next = new AtomicLong(((long) epoch << EPOCH_SHIFT) + 1);
+    }
+
+    public static int epochOf(long seq) {
+        return (int) (seq >>> EPOCH_SHIFT);
+    }
+
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * 追加一条消息
+     * @return 带序号的消息
+     */
+    public HistoryEntry append(long timestamp, String user, String content, String text) {
+        long seq = this.next.getAndIncrement();
+        HistoryEntry entry = new HistoryEntry(seq, timestamp, this.room, user, content, text);
+        this.entries.set((int) (seq & this.mask), entry);
+        return entry;
+    }
+
+    /**
+     * 按原有序号写入，用于从持久化的日志恢复，序号必须递增；纪元不同时沿用日志里的纪元
+     */
+    public void restore(HistoryEntry entry) {
+        this.entries.set((int) (entry.getSeq() & this.mask), entry);
+        if (this.next.get() <= entry.getSeq() || epochOf(entry.getSeq()) != epoch()) {
+            this.next.set(entry.getSeq() + 1);
+        }
+    }
+
+    /**
+     * @return 最后一条已分配的序号，没有消息时是纪元的起点(纪元为0时就是0)
+     */
+    public long lastSeq() {
+        return this.next.get() - 1;
+    }
+
+    public int epoch() {
+        return epochOf(lastSeq());
+    }
+
+    /**
+     * @return 序号是不是这份历史分配过的：纪元相同并且不超过最后一条
+     */
+    public boolean isKnown(long seq) {
+        long last = lastSeq();
+        return seq >= 0 && epochOf(seq) == epochOf(last) && seq <= last;
+    }
+
+    /**
+     * 取序号大于since的消息，最多max条，取最新的那些；已经被覆盖或者还没写完的跳过
+     */
+    public List<HistoryEntry> since(long since, int max) {
+        long last = lastSeq();
+        long first = ((long) epochOf(last) << EPOCH_SHIFT) + 1;
+        long from = Math.max(since + 1, Math.max(first, last - Math.min(max, capacity()) + 1));
+        if (from > last) {
+            return Collections.emptyList();
+        }
+        List<HistoryEntry> result = new ArrayList<>((int) (last - from + 1));
+        for (long seq = from; seq <= last; seq++) {
+            HistoryEntry entry = this.entries.get((int) (seq & this.mask));
+            if (null != entry && entry.getSeq() == seq) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 取最近的n条
+     */
+    public List<HistoryEntry> latest(int n) {
+        return since(0, n);
+    }
+}
@@ -0,0 +1,357 @@
+package com.github.sd4324530.webChat.journal;
+
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 聊天消息的持久化日志，只追加不修改
+ * 广播线程只把消息放进无锁队列，由唯一的写线程批量写入内存映射的段文件，一批写完按刷盘策略决定是否fsync(组提交)，
+ * 所以磁盘再慢也不会阻塞广播；段写满后换新文件，旧文件按保留时间和总大小删除；启动时按顺序读一遍所有段，恢复内存里的历史消息
+ * @author peiyu
+ */
+public class ChatJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatJournal.class);
+
+    private final boolean enabled;
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final long fsyncIntervalNanos;
+
+    private final long retentionMillis;
+
+    private final long maxBytes;
+
+    private final int batchSize;
+
+    private final int maxPending;
+
+    private final Queue<HistoryEntry> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder commits = new LongAdder();
+
+    private final LongAdder fsyncs = new LongAdder();
+
+    private volatile boolean running;
+
+    //写线程没事做正在等待时为true，这时才需要唤醒它
+    private volatile boolean waiting;
+
+    private volatile Thread writer;
+
+    //以下字段只由写线程访问(启动恢复时除外)
+    private JournalSegment current;
+
+    private long lastFsyncNanos = System.nanoTime();
+
+    private long lastRetentionMillis;
+
+    private ChatJournal() {
+        this(PropertiesUtil.getBoolean("chat.journal.enabled", true),
+                new File(PropertiesUtil.getString("chat.journal.dir", System.getProperty("java.io.tmpdir") + File.separator + "webChat" + File.separator + "journal")),
+                PropertiesUtil.getInt("chat.journal.segmentBytes", 16 * 1024 * 1024),
+                PropertiesUtil.getEnum("chat.journal.fsyncPolicy", FsyncPolicy.INTERVAL),
+                PropertiesUtil.getLong("chat.journal.fsyncIntervalMillis", 1000L),
+                TimeUnit.HOURS.toMillis(PropertiesUtil.getLong("chat.journal.retentionHours", 72L)),
+                PropertiesUtil.getLong("chat.journal.maxBytes", 512L * 1024 * 1024),
+                PropertiesUtil.getInt("chat.journal.batchSize", 1024),
+                PropertiesUtil.getInt("chat.journal.maxPending", 100000));
+    }
+
+    ChatJournal(boolean enabled, File dir, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                long retentionMillis, long maxBytes, int batchSize, int maxPending) {
+        this.enabled = enabled;
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.retentionMillis = retentionMillis;
+        this.maxBytes = maxBytes;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+    }
+
+    private static class Holder {
+        private static final ChatJournal ME = new ChatJournal();
+    }
+
+    public static ChatJournal me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 按写入顺序读出所有段里的消息交给recovery，然后启动写线程，只有第一次调用生效
+     * @param recovery 恢复出来的每条消息，text为null
+     */
+    public void start(Consumer<HistoryEntry> recovery) {
+        start(recovery, true);
+    }
+
+    /**
+     * @param replay false时不读已有的段，直接从一个新段开始写，用于已经从停机快照恢复了历史的情况
+     */
+    public void start(Consumer<HistoryEntry> recovery, boolean replay) {
+        if (!this.enabled || !this.started.compareAndSet(false, true)) {
+            return;
+        }
+        long begin = System.nanoTime();
+        int[] count = {0};
+        try {
+            if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+                throw new IOException("无法创建目录" + this.dir.getAbsolutePath());
+            }
+            Consumer<HistoryEntry> counting = entry -> {
+                count[0]++;
+                recovery.accept(entry);
+            };
+            List<File> segments = listSegments();
+            long nextIndex = 0;
+            if (replay) {
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    JournalSegment.read(segments.get(i), counting);
+                }
+            }
+            if (!segments.isEmpty()) {
+                File last = segments.get(segments.size() - 1);
+                nextIndex = JournalSegment.parseIndex(last.getName()) + (replay ? 0 : 1);
+            }
+            this.current = JournalSegment.open(this.dir, nextIndex, this.segmentBytes, counting);
+        } catch (IOException e) {
+            log.error("打开消息日志失败，本次运行不做持久化", e);
+            return;
+        }
+        if (replay) {
+            log.info("从{}恢复了{}条消息，耗时{}ms", this.dir.getAbsolutePath(), count[0], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        } else {
+            log.info("历史消息已从停机快照恢复，跳过日志回放，从{}继续写", this.current.getFile().getName());
+        }
+        this.running = true;
+        Thread thread = new Thread(this::runWriter, "journal-writer");
+        thread.setDaemon(true);
+        this.writer = thread;
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "journal-shutdown"));
+    }
+
+    /**
+     * 追加一条消息，只入队不等待写盘；积压太多时丢弃并计数
+     */
+    public void append(HistoryEntry entry) {
+        if (!this.running) {
+            return;
+        }
+        if (this.pending.incrementAndGet() > this.maxPending) {
+            this.pending.decrementAndGet();
+            this.dropped.increment();
+            return;
+        }
+        this.queue.offer(entry);
+        if (this.waiting) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * 停止写线程，把队列里剩下的写完并刷盘
+     */
+    public void close() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        Thread thread = this.writer;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.running;
+    }
+
+    /**
+     * 停机快照里记下这个值，启动时一样才说明快照之后日志没有再写过，可以不回放日志
+     * @return 最新的段的文件名和修改时间，没有开启或者没有段时返回空字符串
+     */
+    public String getTailMarker() {
+        if (!this.enabled) {
+            return "";
+        }
+        List<File> segments = listSegments();
+        if (segments.isEmpty()) {
+            return "";
+        }
+        File last = segments.get(segments.size() - 1);
+        return last.getName() + ':' + last.lastModified();
+    }
+
+    public File getDir() {
+        return this.dir;
+    }
+
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    public long getWrittenCount() {
+        return this.written.sum();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    public long getCommitCount() {
+        return this.commits.sum();
+    }
+
+    public long getFsyncCount() {
+        return this.fsyncs.sum();
+    }
+
+    private void runWriter() {
+        while (this.running || !this.queue.isEmpty()) {
+            int count = 0;
+            HistoryEntry entry;
+            while (count < this.batchSize && null != (entry = this.queue.poll())) {
+                this.pending.decrementAndGet();
+                write(entry);
+                count++;
+            }
+            if (count > 0) {
+                this.commits.increment();
+                if (FsyncPolicy.ALWAYS == this.fsyncPolicy) {
+                    fsync();
+                }
+            }
+            if (FsyncPolicy.INTERVAL == this.fsyncPolicy && System.nanoTime() - this.lastFsyncNanos >= this.fsyncIntervalNanos) {
+                fsync();
+            }
+            retention();
+            if (0 == count && this.running) {
+                this.waiting = true;
+                if (this.queue.isEmpty()) {
+                    LockSupport.parkNanos(this, Math.min(this.fsyncIntervalNanos, TimeUnit.MILLISECONDS.toNanos(100)));
+                }
+                this.waiting = false;
+            }
+        }
+        if (FsyncPolicy.NEVER != this.fsyncPolicy) {
+            fsync();
+        }
+        log.info("消息日志已关闭，共写入{}条", this.written.sum());
+    }
+
+    private void write(HistoryEntry entry) {
+        try {
+            if (!this.current.append(entry)) {
+                roll();
+                if (!this.current.append(entry)) {
+                    log.warn("消息太长，超过了段文件大小，丢弃，seq:{}", entry.getSeq());
+                    this.dropped.increment();
+                    return;
+                }
+            }
+            this.written.increment();
+        } catch (Exception e) {
+            this.dropped.increment();
+            log.error("写消息日志异常", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        this.current.force();
+        long index = this.current.getIndex() + 1;
+        this.current = JournalSegment.open(this.dir, index, this.segmentBytes, entry -> {
+        });
+        log.debug("消息日志切换到新文件{}", this.current.getFile().getName());
+        this.lastRetentionMillis = 0;
+    }
+
+    private void fsync() {
+        try {
+            if (this.current.isDirty()) {
+                this.current.force();
+                this.fsyncs.increment();
+            }
+        } catch (Exception e) {
+            log.error("消息日志刷盘异常", e);
+        }
+        this.lastFsyncNanos = System.nanoTime();
+    }
+
+    /**
+     * 每分钟最多检查一次，删除超过保留时间的段，以及总大小超限时最旧的段，正在写的段不删
+     */
+    private void retention() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastRetentionMillis < TimeUnit.MINUTES.toMillis(1)) {
+            return;
+        }
+        this.lastRetentionMillis = now;
+        List<File> segments = listSegments();
+        long total = 0;
+        for (File file : segments) {
+            total += file.length();
+        }
+        for (File file : segments) {
+            if (file.equals(this.current.getFile())) {
+                break;
+            }
+            if (total <= this.maxBytes && now - file.lastModified() <= this.retentionMillis) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                log.info("删除过期的消息日志{}", file.getName());
+            } else {
+                log.warn("删除消息日志{}失败", file.getName());
+                break;
+            }
+        }
+    }
+
+    private List<File> listSegments() {
+        File[] files = this.dir.listFiles((d, name) -> name.startsWith(JournalSegment.PREFIX) && name.endsWith(JournalSegment.SUFFIX));
+        if (null == files) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(JournalSegment.parseIndex(a.getName()), JournalSegment.parseIndex(b.getName())));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
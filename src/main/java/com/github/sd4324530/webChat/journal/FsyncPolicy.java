@@ -0,0 +1,23 @@
+package com.github.sd4324530.webChat.journal;
+
+/**
+ * 日志刷盘策略
+ * @author peiyu
+ */
+public enum FsyncPolicy {
+
+    /**
+     * 每批写完都刷盘，最安全也最慢
+     */
+    ALWAYS,
+
+    /**
+     * 距离上次刷盘超过配置的间隔才刷，宕机最多丢这个间隔内的消息
+     */
+    INTERVAL,
+
+    /**
+     * 从不主动刷盘，交给操作系统
+     */
+    NEVER
+}
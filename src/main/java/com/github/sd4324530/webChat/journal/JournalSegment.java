@@ -0,0 +1,174 @@
+package com.github.sd4324530.webChat.journal;
+
+import com.github.sd4324530.webChat.history.HistoryEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 日志段文件，整个文件映射到内存，只在末尾追加，只由写线程访问。
+ * 记录格式：int 负载长度 | int 负载的CRC32 | 负载
+ * 负载格式：long 序号 | long 时间戳 | short+UTF-8 房间 | short+UTF-8 昵称 | int+UTF-8 内容
+ * 新文件内容全是0，读到长度为0的记录就是末尾
+ * @author peiyu
+ */
+class JournalSegment {
+
+    static final String PREFIX = "journal-";
+
+    static final String SUFFIX = ".seg";
+
+    private static final int HEADER_BYTES = 8;
+
+    private final File file;
+
+    private final long index;
+
+    private final MappedByteBuffer buffer;
+
+    private final CRC32 crc = new CRC32();
+
+    private boolean dirty;
+
+    private JournalSegment(File file, long index, MappedByteBuffer buffer) {
+        this.file = file;
+        this.index = index;
+        this.buffer = buffer;
+    }
+
+    static String fileName(long index) {
+        return String.format("%s%020d%s", PREFIX, index, SUFFIX);
+    }
+
+    static long parseIndex(String fileName) {
+        return Long.parseLong(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    }
+
+    /**
+     * 创建或打开一个段用于追加，已有的内容会先读一遍，定位到最后一条完整的记录之后
+     */
+    static JournalSegment open(File dir, long index, int size, Consumer<HistoryEntry> consumer) throws IOException {
+        File file = new File(dir, fileName(index));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            long mapSize = Math.max(size, channel.size());
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+            JournalSegment segment = new JournalSegment(file, index, buffer);
+            segment.scan(consumer);
+            return segment;
+        }
+    }
+
+    /**
+     * 只读地读一遍已经写满的段
+     */
+    static void read(File file, Consumer<HistoryEntry> consumer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            new JournalSegment(file, parseIndex(file.getName()), buffer).scan(consumer);
+        }
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    long getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return 空间不够时返回false，需要换新的段
+     */
+    boolean append(HistoryEntry entry) {
+        byte[] room = entry.getRoom().getBytes(StandardCharsets.UTF_8);
+        byte[] user = null == entry.getUser() ? new byte[0] : entry.getUser().getBytes(StandardCharsets.UTF_8);
+        byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+        int payload = 8 + 8 + 2 + room.length + 2 + user.length + 4 + content.length;
+        //末尾至少留4个字节的0作为结束标记
+        if (this.buffer.remaining() < HEADER_BYTES + payload + 4) {
+            return false;
+        }
+        int start = this.buffer.position();
+        this.buffer.position(start + HEADER_BYTES);
+        this.buffer.putLong(entry.getSeq());
+        this.buffer.putLong(entry.getTimestamp());
+        this.buffer.putShort((short) room.length).put(room);
+        this.buffer.putShort((short) user.length).put(user);
+        this.buffer.putInt(content.length).put(content);
+        int end = this.buffer.position();
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(start + HEADER_BYTES).limit(end);
+        this.crc.reset();
+        this.crc.update(view);
+        //最后写长度，写到一半宕机时这条记录的长度仍然是0
+        this.buffer.putInt(start + 4, (int) this.crc.getValue());
+        this.buffer.putInt(start, payload);
+        this.dirty = true;
+        return true;
+    }
+
+    void force() {
+        if (this.dirty) {
+            this.buffer.force();
+            this.dirty = false;
+        }
+    }
+
+    boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * 从头读到第一条不完整或者校验失败的记录为止，position停在它的位置，之后从这里继续追加
+     */
+    private void scan(Consumer<HistoryEntry> consumer) {
+        this.buffer.position(0);
+        while (this.buffer.remaining() >= HEADER_BYTES) {
+            int start = this.buffer.position();
+            int payload = this.buffer.getInt(start);
+            if (payload <= 0 || payload > this.buffer.limit() - start - HEADER_BYTES) {
+                break;
+            }
+            int checksum = this.buffer.getInt(start + 4);
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + payload);
+            this.crc.reset();
+            this.crc.update(view.duplicate());
+            if ((int) this.crc.getValue() != checksum) {
+                break;
+            }
+            HistoryEntry entry = decode(view);
+            if (null == entry) {
+                break;
+            }
+            consumer.accept(entry);
+            this.buffer.position(start + HEADER_BYTES + payload);
+        }
+    }
+
+    private static HistoryEntry decode(ByteBuffer view) {
+        try {
+            long seq = view.getLong();
+            long timestamp = view.getLong();
+            String room = readString(view, view.getShort() & 0xFFFF);
+            String user = readString(view, view.getShort() & 0xFFFF);
+            String content = readString(view, view.getInt());
+            return new HistoryEntry(seq, timestamp, room, user.isEmpty() ? null : user, content, null);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer view, int length) {
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.sd4324530.webChat.lifecycle;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastBatcher;
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import com.github.sd4324530.webChat.history.HistoryRegistry;
+import com.github.sd4324530.webChat.journal.ChatJournal;
+import com.github.sd4324530.webChat.limit.ConnectionLimiter;
+import com.github.sd4324530.webChat.presence.PresenceTracker;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 优雅停机，滚动发布时避免所有人同一时刻断线又同一时刻重连：
+ * 1. 拒绝新的握手(503 + Retry-After)
+ * 2. 发出还在合并的消息，等发送队列清空
+ * 3. 给每个连接发关闭帧，状态码4012，原因里带上随机的重连等待时间，连接越多等待的范围越大
+ * 4. 把各房间最近的消息和房间成员写到本地的停机快照，下次启动直接读回来，见ShutdownSnapshot
+ * Spring容器关闭时执行；在Jetty里容器关闭之前连接器就已经断开了所有连接，所以还会在Jetty服务器开始停止时执行，只执行一次
+ * @author peiyu
+ */
+public class GracefulShutdown {
+
+    private static final Logger log = LoggerFactory.getLogger(GracefulShutdown.class);
+
+    /**
+     * 服务器重启的关闭码，原因是 {"reconnect":毫秒}。
+     * 标准的1012(SERVICE_RESTARTED)在Jetty 9.3里不是合法的关闭码，客户端解析时会当作协议错误，所以用应用自定义的4012
+     */
+    public static final int CLOSE_RESTARTING = 4012;
+
+    private final boolean enabled;
+
+    private final long flushTimeoutMillis;
+
+    private final long closeTimeoutMillis;
+
+    private final long reconnectMinMillis;
+
+    private final long reconnectSpreadMillis;
+
+    private final int reconnectPerSecond;
+
+    private final AtomicBoolean drained = new AtomicBoolean();
+
+    private final AtomicBoolean bound = new AtomicBoolean();
+
+    //从Jetty服务器上取消监听，没有注册时为null
+    private volatile Runnable unbind;
+
+    private GracefulShutdown() {
+        this.enabled = PropertiesUtil.getBoolean("chat.shutdown.enabled", true);
+        this.flushTimeoutMillis = PropertiesUtil.getLong("chat.shutdown.flushTimeoutMillis", 3000L);
+        this.closeTimeoutMillis = PropertiesUtil.getLong("chat.shutdown.closeTimeoutMillis", 3000L);
+        this.reconnectMinMillis = PropertiesUtil.getLong("chat.shutdown.reconnectMinMillis", 1000L);
+        this.reconnectSpreadMillis = PropertiesUtil.getLong("chat.shutdown.reconnectSpreadMillis", 10000L);
+        this.reconnectPerSecond = Math.max(1, PropertiesUtil.getInt("chat.shutdown.reconnectPerSecond", 500));
+    }
+
+    private static class Holder {
+        private static final GracefulShutdown ME = new GracefulShutdown();
+    }
+
+    public static GracefulShutdown me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 运行在Jetty里时，在服务器开始停止、连接器断开之前执行停机流程，只有第一次调用生效
+     */
+    public void bind(ServletContext servletContext) {
+        if (this.enabled && this.bound.compareAndSet(false, true)) {
+            this.unbind = JettyStopHook.register(servletContext, this::drain);
+        }
+    }
+
+    /**
+     * 执行停机流程，只有第一次调用生效，后面的调用直接返回
+     */
+    public void drain() {
+        Runnable hook = this.unbind;
+        if (null != hook) {
+            this.unbind = null;
+            hook.run();
+        }
+        if (!this.enabled || !this.drained.compareAndSet(false, true)) {
+            return;
+        }
+        long begin = System.nanoTime();
+        ConnectionLimiter.me().startDraining();
+        long stopped = System.nanoTime();
+
+        long pending = flush();
+        long flushed = System.nanoTime();
+
+        //关闭之后这些人就从房间里离开了，先记下来
+        List<String[]> members = PresenceTracker.me().localMembers();
+        int closed = closeAll();
+        long closedAt = System.nanoTime();
+
+        int messages = writeSnapshot(members, begin);
+        long end = System.nanoTime();
+        log.info("优雅停机完成，共{}ms：拒绝握手{}ms，清空发送队列{}ms(剩余{}条)，关闭{}个连接{}ms，快照{}条消息{}个成员{}ms",
+                millis(begin, end), millis(begin, stopped), millis(stopped, flushed), pending, closed, millis(flushed, closedAt),
+                messages, members.size(), millis(closedAt, end));
+    }
+
+    /**
+     * @return 超时后还没发出去的条数
+     */
+    private long flush() {
+        BroadcastBatcher.me().flushAll();
+        BroadcastEngine engine = BroadcastEngine.me();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushTimeoutMillis);
+        while (engine.getTotalQueueDepth() > 0 && System.nanoTime() < deadline) {
+            if (!sleep()) {
+                break;
+            }
+        }
+        return engine.getTotalQueueDepth();
+    }
+
+    /**
+     * 重连等待时间在[min, min + spread)里均匀分布，连接多时把spread拉长到按reconnectPerSecond的速度重连完；
+     * 没有登录的连接也要关，否则Jetty停止时直接断开，这些连接会同时重连
+     * @return 发了关闭帧的连接数
+     */
+    private int closeAll() {
+        BroadcastEngine engine = BroadcastEngine.me();
+        List<WebSocketSession> sessions = engine.getSessions();
+        long spread = Math.max(this.reconnectSpreadMillis, sessions.size() * 1000L / this.reconnectPerSecond);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int closed = 0;
+        for (WebSocketSession session : sessions) {
+            long delay = this.reconnectMinMillis + random.nextLong(Math.max(1L, spread));
+            try {
+                if (session.isOpen()) {
+                    session.close(new CloseStatus(CLOSE_RESTARTING, "{\"reconnect\":" + delay + "}"));
+                    closed++;
+                }
+            } catch (Exception e) {
+                log.debug("停机时关闭连接异常，sessionid:{}", session.getId(), e);
+            }
+        }
+        //等连接关闭的回调把人从房间里移走，其他节点能收到这些人离开
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.closeTimeoutMillis);
+        while (engine.getSessionCount() > 0 && System.nanoTime() < deadline) {
+            if (!sleep()) {
+                break;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * 先关闭消息日志，快照里记下日志末尾，下次启动时核对
+     * @return 写入快照的消息数
+     */
+    private int writeSnapshot(List<String[]> members, long begin) {
+        ChatJournal journal = ChatJournal.me();
+        journal.close();
+        File file = ShutdownSnapshot.file();
+        try {
+            List<HistoryEntry> history = HistoryRegistry.me().snapshot();
+            new ShutdownSnapshot(System.currentTimeMillis(), millis(begin, System.nanoTime()), journal.getTailMarker(), history, members).write(file);
+            return history.size();
+        } catch (Exception e) {
+            log.error("写停机快照{}失败，下次启动从消息日志恢复", file.getAbsolutePath(), e);
+            return 0;
+        }
+    }
+
+    public boolean isDrained() {
+        return this.drained.get();
+    }
+
+    private static long millis(long from, long to) {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+
+    /**
+     * @return 被中断时返回false，不再等待
+     */
+    private static boolean sleep() {
+        try {
+            Thread.sleep(10L);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.sd4324530.webChat.lifecycle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContext;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Jetty停止时先停连接器(会直接断开所有连接)再停web应用，Spring容器关闭时已经没有连接可以发关闭帧了，
+ * 所以在Jetty的Server上注册一个LifeCycle.Listener，服务器一开始停止就执行。
+ * web应用看不到Jetty服务器的类，只能通过反射和动态代理注册
+ * @author peiyu
+ */
+final class JettyStopHook {
+
+    private static final Logger log = LoggerFactory.getLogger(JettyStopHook.class);
+
+    private static final String LISTENER_CLASS = "org.eclipse.jetty.util.component.LifeCycle$Listener";
+
+    private JettyStopHook() {
+    }
+
+    /**
+     * @param action 服务器开始停止时在停止的线程里执行
+     * @return 取消注册，不是运行在Jetty里或者注册失败时返回null
+     */
+    static Runnable register(ServletContext servletContext, Runnable action) {
+        try {
+            Method getContextHandler = servletContext.getClass().getMethod("getContextHandler");
+            Object handler = getContextHandler.invoke(servletContext);
+            Object server = handler.getClass().getMethod("getServer").invoke(handler);
+            if (null == server) {
+                return null;
+            }
+            Class<?> listenerType = Class.forName(LISTENER_CLASS, false, server.getClass().getClassLoader());
+            Object listener = Proxy.newProxyInstance(listenerType.getClassLoader(), new Class<?>[]{listenerType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "lifeCycleStopping":
+                        try {
+                            action.run();
+                        } catch (Throwable e) {
+                            log.error("Jetty停止前执行优雅停机异常", e);
+                        }
+                        return null;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return JettyStopHook.class.getName();
+                    default:
+                        return null;
+                }
+            });
+            server.getClass().getMethod("addLifeCycleListener", listenerType).invoke(server, listener);
+            Method remove = server.getClass().getMethod("removeLifeCycleListener", listenerType);
+            log.info("运行在Jetty里，服务器停止前先执行优雅停机");
+            return () -> {
+                try {
+                    remove.invoke(server, listener);
+                } catch (Exception e) {
+                    log.debug("取消Jetty停止监听失败", e);
+                }
+            };
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            log.debug("不是运行在Jetty里，只在Spring容器关闭时执行优雅停机");
+            return null;
+        } catch (Exception e) {
+            log.warn("注册Jetty停止监听失败，只在Spring容器关闭时执行优雅停机", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.sd4324530.webChat.lifecycle;
+
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import com.github.sd4324530.webChat.journal.ChatJournal;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 停机快照：优雅停机的最后一步把各房间最近的消息和当时在房间里的人写到本地文件，下次启动时读回来，
+ * 不用回放整个消息日志，重连回来的人也不会让成员列表先清空再一个个加回来。
+ * 文件格式：int 魔数 | int 版本 | int 内容的CRC32 | int 内容长度 | 内容
+ * 内容格式：long 写入时间 | long 停机耗时 | UTF 日志末尾标记 | int 消息数 | 每条(long 序号 | long 时间戳 | UTF 房间 | UTF 昵称(系统消息为空) | int+UTF-8 内容) | int 成员数 | 每个(UTF 房间 | UTF 昵称)
+ * 启动时只读一次，读完就删除，之后崩溃重启不会用到过期的快照
+ * @author peiyu
+ */
+public final class ShutdownSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(ShutdownSnapshot.class);
+
+    private static final int MAGIC = 0x57435353;
+
+    private static final int VERSION = 1;
+
+    private final long createdMillis;
+
+    private final long drainMillis;
+
+    private final String journalMarker;
+
+    private final List<HistoryEntry> history;
+
+    //每个元素是 {房间, 昵称}
+    private final List<String[]> members;
+
+    public ShutdownSnapshot(long createdMillis, long drainMillis, String journalMarker, List<HistoryEntry> history, List<String[]> members) {
+        this.createdMillis = createdMillis;
+        this.drainMillis = drainMillis;
+        this.journalMarker = journalMarker;
+        this.history = history;
+        this.members = members;
+    }
+
+    private static class Holder {
+        private static final ShutdownSnapshot RESTORED = load();
+    }
+
+    /**
+     * @return 上次停机留下的快照，没有或者读取失败时返回null；第一次调用时读取
+     */
+    public static ShutdownSnapshot restored() {
+        return Holder.RESTORED;
+    }
+
+    /**
+     * @return 快照文件的位置，默认放在消息日志的目录里，同一台机器上的多个节点各用各的
+     */
+    public static File file() {
+        String path = PropertiesUtil.getString("chat.shutdown.snapshotFile", null);
+        return null == path ? new File(ChatJournal.me().getDir(), "shutdown.snapshot") : new File(path);
+    }
+
+    private static ShutdownSnapshot load() {
+        File file = file();
+        if (!file.isFile()) {
+            return null;
+        }
+        long begin = System.nanoTime();
+        try {
+            ShutdownSnapshot snapshot = read(Files.readAllBytes(file.toPath()));
+            log.info("读取停机快照{}，{}条消息，{}个成员，耗时{}ms，上次停机耗时{}ms", file.getAbsolutePath(), snapshot.history.size(),
+                    snapshot.members.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), snapshot.drainMillis);
+            return snapshot;
+        } catch (Exception e) {
+            log.warn("停机快照{}无法读取，忽略", file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            if (!file.delete()) {
+                log.warn("删除停机快照{}失败", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，停机过程中被强制结束也不会留下写了一半的快照
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeLong(this.createdMillis);
+            out.writeLong(this.drainMillis);
+            out.writeUTF(this.journalMarker);
+            out.writeInt(this.history.size());
+            for (HistoryEntry entry : this.history) {
+                out.writeLong(entry.getSeq());
+                out.writeLong(entry.getTimestamp());
+                out.writeUTF(entry.getRoom());
+                out.writeUTF(null == entry.getUser() ? "" : entry.getUser());
+                byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(content.length);
+                out.write(content);
+            }
+            out.writeInt(this.members.size());
+            for (String[] member : this.members) {
+                out.writeUTF(member[0]);
+                out.writeUTF(member[1]);
+            }
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(MAGIC).putInt(VERSION).putInt((int) crc.getValue()).putInt(bytes.length);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录" + dir.getAbsolutePath());
+        }
+        File temp = new File(dir, file.getName() + ".tmp");
+        ByteArrayOutputStream all = new ByteArrayOutputStream(header.capacity() + bytes.length);
+        all.write(header.array());
+        all.write(bytes);
+        Files.write(temp.toPath(), all.toByteArray());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @throws IOException 格式不对或者校验失败
+     */
+    static ShutdownSnapshot read(byte[] data) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(data);
+        if (data.length < 16 || header.getInt() != MAGIC) {
+            throw new IOException("不是停机快照文件");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("不认识的停机快照版本:" + version);
+        }
+        int checksum = header.getInt();
+        int length = header.getInt();
+        if (length != data.length - 16) {
+            throw new IOException("停机快照长度不对");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 16, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("停机快照校验失败");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 16, length))) {
+            long createdMillis = in.readLong();
+            long drainMillis = in.readLong();
+            String journalMarker = in.readUTF();
+            int count = in.readInt();
+            List<HistoryEntry> history = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long seq = in.readLong();
+                long timestamp = in.readLong();
+                String room = in.readUTF();
+                String user = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                history.add(new HistoryEntry(seq, timestamp, room, user.isEmpty() ? null : user, new String(content, StandardCharsets.UTF_8), null));
+            }
+            count = in.readInt();
+            List<String[]> members = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                members.add(new String[]{in.readUTF(), in.readUTF()});
+            }
+            return new ShutdownSnapshot(createdMillis, drainMillis, journalMarker, history, members);
+        }
+    }
+
+    public long getCreatedMillis() {
+        return this.createdMillis;
+    }
+
+    /**
+     * @return 上次停机从开始到写完快照的耗时
+     */
+    public long getDrainMillis() {
+        return this.drainMillis;
+    }
+
+    public String getJournalMarker() {
+        return this.journalMarker;
+    }
+
+    /**
+     * @return 各房间最近的消息，同一个房间按序号递增，text为null
+     */
+    public List<HistoryEntry> getHistory() {
+        return Collections.unmodifiableList(this.history);
+    }
+
+    /**
+     * @return 停机时在房间里的人，每个元素是 {房间, 昵称}
+     */
+    public List<String[]> getMembers() {
+        return Collections.unmodifiableList(this.members);
+    }
+}
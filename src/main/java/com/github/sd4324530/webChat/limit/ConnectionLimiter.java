@@ -0,0 +1,237 @@
+package com.github.sd4324530.webChat.limit;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接准入：限制本节点的连接总数和每个ip的连接数，堆内存紧张时暂时拒绝新连接，停机时不再接受新连接。
+ * 握手时申请一个Permit，连接关闭时释放；和RateLimiters的握手限流不同，这里限制的是同时存在的连接数
+ * @author peiyu
+ */
+public class ConnectionLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionLimiter.class);
+
+    /**
+     * 申请结果
+     */
+    public enum Result {
+        ACCEPTED,
+        //连接总数已满
+        SESSIONS_FULL,
+        //这个ip的连接数已满
+        IP_FULL,
+        //堆内存紧张，稍后可以重试
+        HEAP_PRESSURE,
+        //正在停机，换个节点或者等重启完成
+        DRAINING
+    }
+
+    private final int maxSessions;
+
+    private final int maxPerIp;
+
+    private final double maxHeapRatio;
+
+    private final int retryAfterSeconds;
+
+    //老年代，最近一次gc之后还占着的内存比例能反映真正存活的对象
+    private final List<MemoryPoolMXBean> tenuredPools = new ArrayList<>(2);
+
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    //只记录有连接的ip，连接数减到0时删除
+    private final ConcurrentMap<String, AtomicInteger> perIp = new ConcurrentHashMap<>(256);
+
+    private final LongAdder rejectedSessions = new LongAdder();
+
+    private final LongAdder rejectedIp = new LongAdder();
+
+    private final LongAdder rejectedHeap = new LongAdder();
+
+    private final LongAdder rejectedDraining = new LongAdder();
+
+    private volatile boolean draining;
+
+    private ConnectionLimiter() {
+        this.maxSessions = PropertiesUtil.getInt("chat.connection.maxSessions", 10000);
+        this.maxPerIp = PropertiesUtil.getInt("chat.connection.maxPerIp", 0);
+        this.maxHeapRatio = PropertiesUtil.getDouble("chat.connection.maxHeapRatio", 0.9);
+        this.retryAfterSeconds = PropertiesUtil.getInt("chat.connection.retryAfterSeconds", 5);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            //新生代不支持usage threshold，剩下的堆内存池就是老年代
+            if (MemoryType.HEAP == pool.getType() && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                this.tenuredPools.add(pool);
+            }
+        }
+        log.info("连接准入，最多{}个连接，每个ip最多{}个(0不限制)，堆内存超过{}%时拒绝新连接", this.maxSessions, this.maxPerIp, this.maxHeapRatio * 100);
+    }
+
+    private static class Holder {
+        private static final ConnectionLimiter ME = new ConnectionLimiter();
+    }
+
+    public static ConnectionLimiter me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 申请一个连接名额，申请到的名额在连接关闭时必须释放
+     * @param ip 客户端ip，拿不到时为null，只检查总数
+     * @return 没申请到时isAccepted()为false，getResult()是拒绝的原因
+     */
+    public Permit tryAcquire(String ip) {
+        if (this.draining) {
+            this.rejectedDraining.increment();
+            return new Permit(Result.DRAINING, null);
+        }
+        if (isHeapPressured()) {
+            this.rejectedHeap.increment();
+            return new Permit(Result.HEAP_PRESSURE, null);
+        }
+        if (this.sessions.incrementAndGet() > this.maxSessions) {
+            this.sessions.decrementAndGet();
+            this.rejectedSessions.increment();
+            return new Permit(Result.SESSIONS_FULL, null);
+        }
+        if (null != ip && this.maxPerIp > 0) {
+            boolean[] accepted = {false};
+            this.perIp.compute(ip, (key, count) -> {
+                AtomicInteger current = null == count ? new AtomicInteger() : count;
+                if (current.get() < this.maxPerIp) {
+                    current.incrementAndGet();
+                    accepted[0] = true;
+                }
+                return current.get() == 0 ? null : current;
+            });
+            if (!accepted[0]) {
+                this.sessions.decrementAndGet();
+                this.rejectedIp.increment();
+                return new Permit(Result.IP_FULL, null);
+            }
+        }
+        return new Permit(Result.ACCEPTED, this.maxPerIp > 0 ? ip : null);
+    }
+
+    /**
+     * @return 老年代在最近一次gc之后的占用超过阈值；拿不到老年代时按整个堆的当前占用算
+     */
+    public boolean isHeapPressured() {
+        if (this.maxHeapRatio <= 0D || this.maxHeapRatio >= 1D) {
+            return false;
+        }
+        return heapRatio() > this.maxHeapRatio;
+    }
+
+    public double heapRatio() {
+        double ratio = 0D;
+        for (MemoryPoolMXBean pool : this.tenuredPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (null != usage && usage.getMax() > 0) {
+                ratio = Math.max(ratio, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        if (this.tenuredPools.isEmpty()) {
+            Runtime runtime = Runtime.getRuntime();
+            ratio = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+        }
+        return ratio;
+    }
+
+    private void release(String ip) {
+        this.sessions.decrementAndGet();
+        if (null != ip) {
+            this.perIp.computeIfPresent(ip, (key, count) -> count.decrementAndGet() <= 0 ? null : count);
+        }
+    }
+
+    /**
+     * 停机开始，之后的握手全部拒绝，已有的连接不受影响
+     */
+    public void startDraining() {
+        this.draining = true;
+    }
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    public int getRetryAfterSeconds() {
+        return this.retryAfterSeconds;
+    }
+
+    public int getSessionCount() {
+        return this.sessions.get();
+    }
+
+    public int getMaxSessions() {
+        return this.maxSessions;
+    }
+
+    /**
+     * @return 当前有连接的ip数
+     */
+    public int getIpCount() {
+        return this.perIp.size();
+    }
+
+    public long getRejectedSessionsCount() {
+        return this.rejectedSessions.sum();
+    }
+
+    public long getRejectedIpCount() {
+        return this.rejectedIp.sum();
+    }
+
+    public long getRejectedHeapCount() {
+        return this.rejectedHeap.sum();
+    }
+
+    public long getRejectedDrainingCount() {
+        return this.rejectedDraining.sum();
+    }
+
+    /**
+     * 一个连接占用的名额，重复释放只算一次
+     */
+    public final class Permit {
+
+        private final Result result;
+
+        private final String ip;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Result result, String ip) {
+            this.result = result;
+            this.ip = ip;
+        }
+
+        public Result getResult() {
+            return this.result;
+        }
+
+        public boolean isAccepted() {
+            return Result.ACCEPTED == this.result;
+        }
+
+        public void release() {
+            if (isAccepted() && this.released.compareAndSet(false, true)) {
+                ConnectionLimiter.this.release(this.ip);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.sd4324530.webChat.limit;
+
+/**
+ * 限流器，按key(session id、ip等)独立计数
+ * @author peiyu
+ */
+public interface RateLimiter {
+
+    /**
+     * 尝试获取一次许可
+     * @param key 限流的维度
+     * @return 是否允许
+     */
+    boolean tryAcquire(String key);
+
+    /**
+     * 清掉这个key的状态，比如session关闭后
+     * @param key 限流的维度
+     */
+    void remove(String key);
+
+    /**
+     * @return 被拒绝的总次数
+     */
+    long getRejectedCount();
+}
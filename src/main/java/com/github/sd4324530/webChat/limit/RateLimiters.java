@@ -0,0 +1,79 @@
+package com.github.sd4324530.webChat.limit;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 限流器的创建和全局实例，通过配置切换实现：
+ * none 不限流，tokenBucket 令牌桶，或者填一个实现了RateLimiter且有无参构造方法的类名
+ * @author peiyu
+ */
+public abstract class RateLimiters {
+
+    private static final Logger log = LoggerFactory.getLogger(RateLimiters.class);
+
+    public static final String TYPE_NONE = "none";
+
+    public static final String TYPE_TOKEN_BUCKET = "tokenBucket";
+
+    //不限流，必须在下面两个实例之前初始化
+    private static final RateLimiter NONE = new RateLimiter() {
+        @Override
+        public boolean tryAcquire(String key) {
+            return true;
+        }
+
+        @Override
+        public void remove(String key) {
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return 0;
+        }
+    };
+
+    //默认和原来一样，每个session两秒一条
+    private static final RateLimiter MESSAGE = create("chat.limit.message", TYPE_TOKEN_BUCKET, 0.5, 1);
+
+    //握手按ip限流，默认不开启
+    private static final RateLimiter HANDSHAKE = create("chat.limit.handshake", TYPE_NONE, 5, 20);
+
+    /**
+     * @return 按session限制发言频率的限流器
+     */
+    public static RateLimiter message() {
+        return MESSAGE;
+    }
+
+    /**
+     * @return 按ip限制握手频率的限流器
+     */
+    public static RateLimiter handshake() {
+        return HANDSHAKE;
+    }
+
+    /**
+     * 根据配置创建限流器，读取prefix.type、prefix.permitsPerSecond、prefix.burst
+     */
+    public static RateLimiter create(String prefix, String defaultType, double defaultRate, int defaultBurst) {
+        String type = PropertiesUtil.getString(prefix + ".type", defaultType);
+        RateLimiter limiter;
+        if (TYPE_NONE.equalsIgnoreCase(type)) {
+            limiter = NONE;
+        } else if (TYPE_TOKEN_BUCKET.equalsIgnoreCase(type)) {
+            double rate = PropertiesUtil.getDouble(prefix + ".permitsPerSecond", defaultRate);
+            int burst = PropertiesUtil.getInt(prefix + ".burst", defaultBurst);
+            limiter = new TokenBucketRateLimiter(rate, burst);
+            log.info("{}使用令牌桶限流，每秒{}个，突发{}个", prefix, rate, burst);
+        } else {
+            try {
+                limiter = (RateLimiter) Class.forName(type).newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("无法创建限流器:" + type, e);
+            }
+        }
+        return limiter;
+    }
+}
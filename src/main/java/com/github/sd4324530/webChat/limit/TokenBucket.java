@@ -0,0 +1,45 @@
+package com.github.sd4324530.webChat.limit;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 令牌桶，状态只有一个long：下一个令牌的理论到达时间(nanoTime)，
+ * 桶里的令牌数由它和当前时间的差值推算，获取令牌就是CAS把它往后推一个间隔，不加锁也不产生新对象
+ * @author peiyu
+ */
+final class TokenBucket {
+
+    private static final AtomicLongFieldUpdater<TokenBucket> TAT = AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "tat");
+
+    private volatile long tat;
+
+    TokenBucket(long now) {
+        this.tat = now;
+    }
+
+    /**
+     * @param now 当前nanoTime
+     * @param intervalNanos 生成一个令牌需要的时间
+     * @param toleranceNanos 允许提前透支的时间，即(桶容量-1)*intervalNanos
+     * @return 是否拿到令牌
+     */
+    boolean tryAcquire(long now, long intervalNanos, long toleranceNanos) {
+        for (;;) {
+            long current = this.tat;
+            long base = current - now > 0 ? current : now;
+            if (base - now > toleranceNanos) {
+                return false;
+            }
+            if (TAT.compareAndSet(this, current, base + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 桶是否已经装满，装满的桶和新建的没有区别，可以回收
+     */
+    boolean isFull(long now) {
+        return this.tat - now <= 0;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.sd4324530.webChat.limit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 令牌桶限流，每个key一个桶，只在第一次见到这个key时创建对象
+ * @author peiyu
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>(256);
+
+    private final long intervalNanos;
+
+    private final long toleranceNanos;
+
+    //超过这个数量的key时顺手清理已经装满的桶，防止按ip限流时map无限增长
+    private final int maxIdleKeys;
+
+    //超过maxIdleKeys之后每新建这么多个桶才清理一次，不然桶都还在用时每个新key都要扫一遍整个map
+    private final int sweepInterval;
+
+    //上次清理之后新建的桶数
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param burst 桶容量，即允许的突发次数
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, 10000);
+    }
+
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst, int maxIdleKeys) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.toleranceNanos = this.intervalNanos * (burst - 1);
+        this.maxIdleKeys = maxIdleKeys;
+        this.sweepInterval = Math.max(1, maxIdleKeys / 4);
+    }
+
+    @Override
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        TokenBucket bucket = this.buckets.get(key);
+        if (null == bucket) {
+            if (this.buckets.size() >= this.maxIdleKeys && this.created.get() >= this.sweepInterval) {
+                evictFull(now);
+            }
+            bucket = this.buckets.computeIfAbsent(key, k -> {
+                this.created.incrementAndGet();
+                return new TokenBucket(now);
+            });
+        }
+        if (bucket.tryAcquire(now, this.intervalNanos, this.toleranceNanos)) {
+            return true;
+        }
+        this.rejected.increment();
+        return false;
+    }
+
+    @Override
+    public void remove(String key) {
+        this.buckets.remove(key);
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    public int size() {
+        return this.buckets.size();
+    }
+
+    /**
+     * 一次清掉所有已经装满的桶，两次清理之间至少新建sweepInterval个桶，扫描的开销分摊到每个新key上是常数
+     */
+    private void evictFull(long now) {
+        this.created.set(0);
+        this.buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+}
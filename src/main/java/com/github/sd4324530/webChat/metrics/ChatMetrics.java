@@ -0,0 +1,267 @@
+package com.github.sd4324530.webChat.metrics;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastBatcher;
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.cluster.ClusterNode;
+import com.github.sd4324530.webChat.cluster.MessageBus;
+import com.github.sd4324530.webChat.cluster.TcpMessageBus;
+import com.github.sd4324530.webChat.direct.OfflineMailbox;
+import com.github.sd4324530.webChat.dispatch.InboundDispatcher;
+import com.github.sd4324530.webChat.filter.BannedWordFilter;
+import com.github.sd4324530.webChat.filter.LinkFilter;
+import com.github.sd4324530.webChat.filter.MessageFilter;
+import com.github.sd4324530.webChat.filter.MessageFilterChain;
+import com.github.sd4324530.webChat.heartbeat.HeartbeatMonitor;
+import com.github.sd4324530.webChat.journal.ChatJournal;
+import com.github.sd4324530.webChat.lifecycle.ShutdownSnapshot;
+import com.github.sd4324530.webChat.limit.ConnectionLimiter;
+import com.github.sd4324530.webChat.limit.RateLimiters;
+import com.github.sd4324530.webChat.presence.PresenceTracker;
+import com.github.sd4324530.webChat.room.RoomRegistry;
+import com.github.sd4324530.webChat.webSocket.WebSocketCache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 聊天室各个模块的指标，把各模块已有的计数器和直方图登记到MetricsRegistry，
+ * 由MetricsController输出。在处理消息的地方直接记录的指标名字也定义在这里
+ * @author peiyu
+ */
+public class ChatMetrics {
+
+    //收到客户端的消息帧
+    public static final String MESSAGES_IN = "messages.in";
+
+    //写到连接上的消息帧
+    public static final String MESSAGES_OUT = "messages.out";
+
+    //handleTransportError收到的异常
+    public static final String TRANSPORT_ERRORS = "websocket.transportErrors";
+
+    //握手开始到握手完成
+    public static final String HANDSHAKE_DURATION = "handshake.duration";
+
+    //握手时被拒绝的连接
+    public static final String HANDSHAKE_REJECTED = "handshake.rejected";
+
+    private final MetricsRegistry registry = MetricsRegistry.me();
+
+    private ChatMetrics() {
+        BroadcastEngine engine = BroadcastEngine.me();
+        this.registry.meter(MESSAGES_OUT, engine::getSentCount);
+        this.registry.histogram("broadcast.deliveryLatency", engine.getDeliveryLatency());
+        this.registry.histogram("broadcast.fanout", engine.getFanoutLatency());
+        this.registry.histogram("dispatch.queueTime", InboundDispatcher.me().getQueueTime());
+        this.registry.gauge("sessions", this::sessions);
+        this.registry.gauge("broadcast", this::broadcast);
+        this.registry.gauge("broadcast.queueDepth", this::queueDepth);
+        this.registry.gauge("dispatch", this::dispatch);
+        this.registry.gauge("rateLimit", this::rateLimit);
+        this.registry.gauge("admission", this::admission);
+        this.registry.gauge("filter", this::filter);
+        this.registry.gauge("direct.offline", this::offlineMailbox);
+        this.registry.gauge("presence", this::presence);
+        this.registry.gauge("restart", this::restart);
+        this.registry.gauge("heartbeat", this::heartbeat);
+        this.registry.gauge("journal", this::journal);
+        this.registry.gauge("cluster", this::cluster);
+        this.registry.gauge("jvm", this::jvm);
+    }
+
+    private static class Holder {
+        private static final ChatMetrics ME = new ChatMetrics();
+    }
+
+    public static ChatMetrics me() {
+        return Holder.ME;
+    }
+
+    public Map<String, Object> snapshot() {
+        return this.registry.snapshot();
+    }
+
+    private Map<String, Object> sessions() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("online", WebSocketCache.me().size());
+        map.put("connections", BroadcastEngine.me().getSessionCount());
+        map.put("rooms", RoomRegistry.me().getRoomCount());
+        return map;
+    }
+
+    private Map<String, Object> broadcast() {
+        BroadcastEngine engine = BroadcastEngine.me();
+        BroadcastBatcher batcher = BroadcastBatcher.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enqueued", engine.getEnqueuedCount());
+        map.put("sent", engine.getSentCount());
+        map.put("coalesced", engine.getCoalescedCount());
+        map.put("dropped", engine.getDroppedCount());
+        map.put("disconnected", engine.getDisconnectedCount());
+        map.put("failed", engine.getFailedCount());
+        map.put("batchedFrames", batcher.getBatchedFrameCount());
+        map.put("batchedMessages", batcher.getBatchedMessageCount());
+        return map;
+    }
+
+    /**
+     * 各个session待发送条数的分布
+     */
+    private Map<String, Object> queueDepth() {
+        BroadcastEngine engine = BroadcastEngine.me();
+        int[] depths = engine.getQueueDepths();
+        Arrays.sort(depths);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("capacity", engine.getQueueCapacity());
+        map.put("total", engine.getTotalQueueDepth());
+        map.put("p50", percentile(depths, 50));
+        map.put("p99", percentile(depths, 99));
+        map.put("max", 0 == depths.length ? 0 : depths[depths.length - 1]);
+        return map;
+    }
+
+    private static int percentile(int[] sorted, double percentile) {
+        if (0 == sorted.length) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile / 100D) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private Map<String, Object> dispatch() {
+        InboundDispatcher dispatcher = InboundDispatcher.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("mode", dispatcher.getMode());
+        map.put("pending", dispatcher.getPendingCount());
+        map.put("sessions", dispatcher.getLaneCount());
+        map.put("executed", dispatcher.getExecutedCount());
+        map.put("rejected", dispatcher.getRejectedCount());
+        map.put("dropped", dispatcher.getDroppedCount());
+        return map;
+    }
+
+    private Map<String, Object> rateLimit() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("messageRejected", RateLimiters.message().getRejectedCount());
+        map.put("handshakeRejected", RateLimiters.handshake().getRejectedCount());
+        return map;
+    }
+
+    private Map<String, Object> admission() {
+        ConnectionLimiter limiter = ConnectionLimiter.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("sessions", limiter.getSessionCount());
+        map.put("maxSessions", limiter.getMaxSessions());
+        map.put("ips", limiter.getIpCount());
+        map.put("heapRatio", limiter.heapRatio());
+        map.put("rejectedSessions", limiter.getRejectedSessionsCount());
+        map.put("rejectedIp", limiter.getRejectedIpCount());
+        map.put("rejectedHeap", limiter.getRejectedHeapCount());
+        map.put("draining", limiter.isDraining());
+        map.put("rejectedDraining", limiter.getRejectedDrainingCount());
+        return map;
+    }
+
+    private Map<String, Object> filter() {
+        MessageFilterChain chain = MessageFilterChain.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("rejected", chain.getRejectedCount());
+        map.put("modified", chain.getModifiedCount());
+        for (MessageFilter filter : chain.getFilters()) {
+            if (filter instanceof BannedWordFilter) {
+                BannedWordFilter bannedWords = (BannedWordFilter) filter;
+                map.put("bannedWords", bannedWords.getWordCount());
+                map.put("bannedWordHits", bannedWords.getHitCount());
+                map.put("bannedWordReloads", bannedWords.getReloadCount());
+            } else if (filter instanceof LinkFilter) {
+                map.put("linkHits", ((LinkFilter) filter).getHitCount());
+            }
+        }
+        return map;
+    }
+
+    private Map<String, Object> offlineMailbox() {
+        OfflineMailbox mailbox = OfflineMailbox.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("policy", mailbox.getPolicy());
+        map.put("boxes", mailbox.getBoxCount());
+        map.put("queued", mailbox.getQueuedCount());
+        map.put("delivered", mailbox.getDeliveredCount());
+        map.put("rejected", mailbox.getRejectedCount());
+        return map;
+    }
+
+    private Map<String, Object> presence() {
+        PresenceTracker presence = PresenceTracker.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("rooms", presence.getRoomCount());
+        map.put("changes", presence.getChangeCount());
+        map.put("diffs", presence.getDiffCount());
+        return map;
+    }
+
+    private Map<String, Object> restart() {
+        ShutdownSnapshot snapshot = ShutdownSnapshot.restored();
+        PresenceTracker presence = PresenceTracker.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("fromSnapshot", null != snapshot);
+        map.put("lastDrainMillis", null == snapshot ? -1L : snapshot.getDrainMillis());
+        map.put("expectedUsers", presence.getRestoredUserCount());
+        map.put("returnedUsers", presence.getReturnedUserCount());
+        map.put("halfReturnedMillis", presence.getHalfReturnedMillis());
+        map.put("mostReturnedMillis", presence.getMostReturnedMillis());
+        map.put("allReturnedMillis", presence.getAllReturnedMillis());
+        return map;
+    }
+
+    private Map<String, Object> heartbeat() {
+        HeartbeatMonitor heartbeat = HeartbeatMonitor.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("monitored", heartbeat.getMonitoredCount());
+        map.put("pings", heartbeat.getPingCount());
+        map.put("evicted", heartbeat.getEvictedCount());
+        map.put("pendingTimeouts", heartbeat.getPendingTimeouts());
+        map.put("wheelSize", heartbeat.getWheelSize());
+        return map;
+    }
+
+    private Map<String, Object> journal() {
+        ChatJournal journal = ChatJournal.me();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("pending", journal.getPendingCount());
+        map.put("written", journal.getWrittenCount());
+        map.put("dropped", journal.getDroppedCount());
+        map.put("commits", journal.getCommitCount());
+        map.put("fsyncs", journal.getFsyncCount());
+        return map;
+    }
+
+    private Map<String, Object> cluster() {
+        ClusterNode node = ClusterNode.me();
+        MessageBus bus = node.getBus();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("nodeId", node.getNodeId());
+        map.put("online", node.getOnlineCount());
+        map.put("remoteNodes", node.getRemoteNodeCount());
+        map.put("connectedPeers", bus.getConnectedPeers());
+        if (bus instanceof TcpMessageBus) {
+            TcpMessageBus tcp = (TcpMessageBus) bus;
+            map.put("sent", tcp.getSentCount());
+            map.put("received", tcp.getReceivedCount());
+            map.put("dropped", tcp.getDroppedCount());
+        }
+        return map;
+    }
+
+    private Map<String, Object> jvm() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("heapUsed", heap.getUsed());
+        map.put("heapMax", heap.getMax());
+        map.put("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        return map;
+    }
+}
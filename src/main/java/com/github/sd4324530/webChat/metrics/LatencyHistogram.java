@@ -0,0 +1,127 @@
+package com.github.sd4324530.webChat.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图，和HdrHistogram一样按2的幂分段、每段再线性分成32格，相对误差约3%，占用固定内存；
+ * 记录只是对应格子的一次原子自增，不加锁
+ * @author peiyu
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB = 1 << SUB_BITS;
+
+    private static final int BUCKETS = SUB + (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos 延迟，单位纳秒，负数按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current;
+        while (value > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = this.count.sum();
+        return 0 == n ? 0D : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @param percentile 0到100之间
+     * @return 对应百分位的延迟(所在格子的上界)，单位纳秒，没有数据时为0
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        if (0 == total) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(total * percentile / 100D));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * 清空，用于按时间窗口统计
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0L);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0L);
+    }
+
+    /**
+     * @return 常用的统计值，单位微秒，方便直接转成json
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", getCount());
+        map.put("meanMicros", TimeUnit.NANOSECONDS.toMicros((long) getMean()));
+        map.put("p50Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(50)));
+        map.put("p90Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(90)));
+        map.put("p99Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(99)));
+        map.put("p999Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(99.9)));
+        map.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(getMax()));
+        return map;
+    }
+
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB - 1);
+        return SUB + shift * SUB + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = (index - SUB) / SUB;
+        int sub = (index - SUB) % SUB;
+        return ((long) (SUB + sub + 1) << shift) - 1;
+    }
+}
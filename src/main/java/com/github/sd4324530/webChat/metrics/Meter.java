@@ -0,0 +1,91 @@
+package com.github.sd4324530.webChat.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 速率统计：累计次数加上最近一秒和最近一分钟(指数加权)的每秒次数。
+ * 可以自己计数，也可以基于别的模块已有的累计计数器，由MetricsRegistry每秒采样一次
+ * @author peiyu
+ */
+public class Meter {
+
+    //每秒采样一次，衰减到一分钟
+    private static final double M1_ALPHA = 1D - Math.exp(-1D / 60D);
+
+    private final LongAdder count;
+
+    private final LongSupplier source;
+
+    private long lastCount;
+
+    private boolean initialized;
+
+    private volatile double rate;
+
+    private volatile double oneMinuteRate;
+
+    Meter() {
+        this.count = new LongAdder();
+        this.source = this.count::sum;
+    }
+
+    Meter(LongSupplier source) {
+        this.count = null;
+        this.source = source;
+        this.lastCount = source.getAsLong();
+    }
+
+    public void mark() {
+        mark(1L);
+    }
+
+    public void mark(long n) {
+        if (null == this.count) {
+            throw new IllegalStateException("基于已有计数器的速率统计不能直接计数");
+        }
+        this.count.add(n);
+    }
+
+    public long getCount() {
+        return this.source.getAsLong();
+    }
+
+    /**
+     * @return 最近一次采样间隔内的每秒次数
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    public double getOneMinuteRate() {
+        return this.oneMinuteRate;
+    }
+
+    /**
+     * 采样，只由MetricsRegistry的定时线程调用
+     * @param seconds 距离上次采样的秒数
+     */
+    void tick(double seconds) {
+        long current = this.source.getAsLong();
+        double instant = (current - this.lastCount) / seconds;
+        this.lastCount = current;
+        this.rate = instant;
+        if (this.initialized) {
+            this.oneMinuteRate += M1_ALPHA * (instant - this.oneMinuteRate);
+        } else {
+            this.oneMinuteRate = instant;
+            this.initialized = true;
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", getCount());
+        map.put("perSecond", Math.round(this.rate * 100D) / 100D);
+        map.put("oneMinutePerSecond", Math.round(this.oneMinuteRate * 100D) / 100D);
+        return map;
+    }
+}
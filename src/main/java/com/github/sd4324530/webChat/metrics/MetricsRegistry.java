@@ -0,0 +1,132 @@
+package com.github.sd4324530.webChat.metrics;
+
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 全局的指标注册表，按名字取计数器、速率、直方图，或者登记一个读取当前值的函数。
+ * 计数器是LongAdder，直方图是LatencyHistogram，记录时都不加锁；速率由一个线程每秒采样一次。
+ * 同一个名字重复取得到的是同一个对象，应该在初始化时取出来保存在字段里，不要在每次记录时按名字查
+ * @author peiyu
+ */
+public class MetricsRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("metrics-"));
+
+    private long lastTickNanos = System.nanoTime();
+
+    private MetricsRegistry() {
+        this.scheduler.scheduleAtFixedRate(this::tick, 1L, 1L, TimeUnit.SECONDS);
+    }
+
+    private static class Holder {
+        private static final MetricsRegistry ME = new MetricsRegistry();
+    }
+
+    public static MetricsRegistry me() {
+        return Holder.ME;
+    }
+
+    public LongAdder counter(String name) {
+        return this.counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * @return 自己计数的速率统计
+     */
+    public Meter meter(String name) {
+        return this.meters.computeIfAbsent(name, n -> new Meter());
+    }
+
+    /**
+     * 基于已有的累计计数器统计速率，同名的会被替换
+     */
+    public Meter meter(String name, LongSupplier source) {
+        Meter meter = new Meter(source);
+        this.meters.put(name, meter);
+        return meter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * 登记别的模块已有的直方图，同名的会被替换
+     */
+    public void histogram(String name, LatencyHistogram histogram) {
+        this.histograms.put(name, histogram);
+    }
+
+    /**
+     * 登记一个读取当前值的函数，输出时才调用，同名的会被替换
+     */
+    public void gauge(String name, Supplier<?> gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * @return 所有指标的当前值，按类型分组、按名字排序，直方图单位是微秒
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> counterValues = new TreeMap<>();
+        this.counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Object> meterValues = new TreeMap<>();
+        this.meters.forEach((name, meter) -> meterValues.put(name, meter.snapshot()));
+        Map<String, Object> histogramValues = new TreeMap<>();
+        this.histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        Map<String, Object> gaugeValues = new TreeMap<>();
+        this.gauges.forEach((name, gauge) -> {
+            try {
+                gaugeValues.put(name, gauge.get());
+            } catch (Exception e) {
+                log.warn("读取指标{}异常", name, e);
+            }
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("gauges", gaugeValues);
+        map.put("counters", counterValues);
+        map.put("meters", meterValues);
+        map.put("histograms", histogramValues);
+        return map;
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            double seconds = (now - this.lastTickNanos) / 1e9D;
+            this.lastTickNanos = now;
+            if (seconds <= 0D) {
+                return;
+            }
+            for (Meter meter : this.meters.values()) {
+                meter.tick(seconds);
+            }
+        } catch (Exception e) {
+            log.error("速率采样异常", e);
+        }
+    }
+}
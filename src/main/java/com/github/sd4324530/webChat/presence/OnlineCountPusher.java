@@ -0,0 +1,83 @@
+package com.github.sd4324530.webChat.presence;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.cluster.ClusterNode;
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.PreparedEnvelope;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import com.github.sd4324530.webChat.webSocket.WebSocketCache;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在线人数推送，代替页面每秒轮询/chat/getSum
+ * 人数变化时最多每intervalMillis推送一次，没有变化不推送；推送消息可合并，慢连接只会收到最新的人数；
+ * 按各个连接协商的格式发送，文本格式是 #sum:人数；人数是整个集群的，其他节点的人数变化也会触发推送
+ * @author peiyu
+ */
+public class OnlineCountPusher {
+
+    private static final String COALESCE_KEY = "sum";
+
+    private final WebSocketCache cache = WebSocketCache.me();
+
+    private final BroadcastEngine engine = BroadcastEngine.me();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long intervalMillis;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private volatile long lastPushMillis;
+
+    private volatile int lastPushed = -1;
+
+    private OnlineCountPusher() {
+        this.intervalMillis = PropertiesUtil.getLong("chat.presence.pushIntervalMillis", 1000L);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("online-count-"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+    }
+
+    private static class Holder {
+        private static final OnlineCountPusher ME = new OnlineCountPusher();
+    }
+
+    public static OnlineCountPusher me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 有人上线或下线后调用，距离上次推送不足intervalMillis时延后到期再推
+     */
+    public void onChange() {
+        if (this.pending.compareAndSet(false, true)) {
+            long delay = Math.max(0L, this.lastPushMillis + this.intervalMillis - System.currentTimeMillis());
+            this.scheduler.schedule(this::push, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 刚登录的人马上发一次当前人数
+     */
+    public void sendTo(WebSocketSession session) {
+        this.engine.send(session, new PreparedEnvelope(Envelope.online(ClusterNode.me().getOnlineCount())), COALESCE_KEY);
+    }
+
+    private void push() {
+        this.pending.set(false);
+        this.lastPushMillis = System.currentTimeMillis();
+        int count = ClusterNode.me().getOnlineCount();
+        if (count == this.lastPushed) {
+            return;
+        }
+        this.lastPushed = count;
+        this.engine.broadcast(this.cache.getAll(), new PreparedEnvelope(Envelope.online(count)), COALESCE_KEY);
+    }
+}
@@ -0,0 +1,445 @@
+package com.github.sd4324530.webChat.presence;
+
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.cluster.ClusterNode;
+import com.github.sd4324530.webChat.lifecycle.ShutdownSnapshot;
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.MessageType;
+import com.github.sd4324530.webChat.protocol.PreparedEnvelope;
+import com.github.sd4324530.webChat.room.RoomRegistry;
+import com.github.sd4324530.webChat.utils.JSONUtil;
+import com.github.sd4324530.webChat.utils.NamedThreadFactory;
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 房间成员：每个房间维护一个带版本号的成员集合，进出房间不再逐条广播，
+ * 而是攒windowMillis之后每个房间只发一帧增量 {"from":版本,"to":版本,"joined":[...],"left":[...]}，
+ * 同一个窗口里进了又出的人互相抵消；刚进房间的人先收到一次完整的成员列表 {"version":版本,"members":[...]}。
+ * 同一个昵称开多个标签页只算一个成员。进出房间经过集群总线通知所有节点，每个节点各自维护版本号，
+ * 和房间消息的序号一样。
+ * 启动时如果有停机快照，快照里的人先算作在房间里，等他们按停机时给的退避时间重连回来，过了宽限期还没回来的才算离开
+ * @author peiyu
+ */
+public class PresenceTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceTracker.class);
+
+    //停机快照里恢复的人挂在这个节点下面
+    private static final String RESTORED_NODE = "shutdown-snapshot";
+
+    private final RoomRegistry rooms = RoomRegistry.me();
+
+    private final BroadcastEngine engine = BroadcastEngine.me();
+
+    private final ConcurrentMap<String, RoomPresence> presences = new ConcurrentHashMap<>(64);
+
+    //本节点每个人在每个房间里的连接数，key是 房间\n昵称
+    private final ConcurrentMap<String, Integer> localCounts = new ConcurrentHashMap<>(256);
+
+    //有变化还没发出去的房间
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long windowMillis;
+
+    private final LongAdder diffs = new LongAdder();
+
+    private final LongAdder changes = new LongAdder();
+
+    //停机快照里还没有重连回来的人
+    private final Set<String> awaiting = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger returned = new AtomicInteger();
+
+    private volatile int restoredUsers;
+
+    private volatile long restoredNanos;
+
+    private volatile long halfReturnedMillis = -1L;
+
+    private volatile long mostReturnedMillis = -1L;
+
+    private volatile long allReturnedMillis = -1L;
+
+    private PresenceTracker() {
+        this.windowMillis = PropertiesUtil.getLong("chat.presence.diffWindowMillis", 200L);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("presence-"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+        ShutdownSnapshot snapshot = ShutdownSnapshot.restored();
+        long maxAgeMillis = TimeUnit.SECONDS.toMillis(PropertiesUtil.getLong("chat.shutdown.restoreMaxAgeSeconds", 300L));
+        if (null != snapshot && !snapshot.getMembers().isEmpty() && System.currentTimeMillis() - snapshot.getCreatedMillis() <= maxAgeMillis) {
+            restore(snapshot.getMembers(), TimeUnit.SECONDS.toMillis(PropertiesUtil.getLong("chat.shutdown.restoreGraceSeconds", 30L)));
+        }
+    }
+
+    private static class Holder {
+        private static final PresenceTracker ME = new PresenceTracker();
+    }
+
+    public static PresenceTracker me() {
+        return Holder.ME;
+    }
+
+    /**
+     * 本节点有人进入房间后调用，每个连接调用一次
+     */
+    public void joined(String room, String userName) {
+        if (!this.awaiting.isEmpty() && this.awaiting.remove(userName)) {
+            onReturned();
+        }
+        //在compute里发布，同一个人的多个连接同时进出时各节点收到的连接数不会乱序
+        this.localCounts.compute(key(room, userName), (key, count) -> {
+            int current = null == count ? 1 : count + 1;
+            ClusterNode.me().publishMember(room, userName, current);
+            return current;
+        });
+    }
+
+    /**
+     * 本节点有人离开房间后调用，每个连接调用一次
+     */
+    public void left(String room, String userName) {
+        this.localCounts.computeIfPresent(key(room, userName), (key, count) -> {
+            int current = count - 1;
+            ClusterNode.me().publishMember(room, userName, current);
+            return current <= 0 ? null : current;
+        });
+    }
+
+    /**
+     * 集群总线上收到某个节点上某人在某个房间的连接数，包括本节点自己发的
+     * @param count 连接数，0表示这个节点上已经没有这个人了
+     */
+    public void apply(String nodeId, String room, String userName, int count) {
+        while (true) {
+            RoomPresence presence = this.presences.computeIfAbsent(room, RoomPresence::new);
+            synchronized (presence) {
+                //刚好在发送增量时因为没人被删掉了，重新取
+                if (presence.removed) {
+                    continue;
+                }
+                presence.set(nodeId, userName, count);
+            }
+            markDirty(room);
+            return;
+        }
+    }
+
+    /**
+     * 其他节点超时后，它上面的人都算离开
+     */
+    public void removeNode(String nodeId) {
+        for (RoomPresence presence : this.presences.values()) {
+            boolean changed = false;
+            synchronized (presence) {
+                for (String userName : new ArrayList<>(presence.members.keySet())) {
+                    changed |= presence.set(nodeId, userName, 0);
+                }
+            }
+            if (changed) {
+                markDirty(presence.room);
+            }
+        }
+    }
+
+    /**
+     * 私信用来判断收信人是不是连在其他节点上，只有在某个房间里的人才能查到
+     * @return 这个人是否在本节点以外的节点上的某个房间里，停机快照里恢复的人不算
+     */
+    public boolean isOnOtherNode(String userName) {
+        String local = ClusterNode.me().getNodeId();
+        for (RoomPresence presence : this.presences.values()) {
+            synchronized (presence) {
+                Map<String, Integer> nodes = presence.members.get(userName);
+                if (null == nodes) {
+                    continue;
+                }
+                for (String nodeId : nodes.keySet()) {
+                    if (!local.equals(nodeId) && !RESTORED_NODE.equals(nodeId)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 发现新的节点时把本节点所有的成员发一遍，它才能知道在它启动之前就在的人
+     */
+    public void republish() {
+        for (Map.Entry<String, Integer> entry : this.localCounts.entrySet()) {
+            String key = entry.getKey();
+            int index = key.indexOf('\n');
+            ClusterNode.me().publishMember(key.substring(0, index), key.substring(index + 1), entry.getValue());
+        }
+    }
+
+    /**
+     * @return 本节点上在房间里的人，每个元素是 {房间, 昵称}，写停机快照用
+     */
+    public List<String[]> localMembers() {
+        List<String[]> members = new ArrayList<>(this.localCounts.size());
+        for (String key : this.localCounts.keySet()) {
+            int index = key.indexOf('\n');
+            members.add(new String[]{key.substring(0, index), key.substring(index + 1)});
+        }
+        return members;
+    }
+
+    /**
+     * 恢复停机前在房间里的人，graceMillis之后还没回来的按离开处理
+     */
+    private void restore(List<String[]> members, long graceMillis) {
+        for (String[] member : members) {
+            apply(RESTORED_NODE, member[0], member[1], 1);
+            this.awaiting.add(member[1]);
+        }
+        this.restoredUsers = this.awaiting.size();
+        this.restoredNanos = System.nanoTime();
+        log.info("从停机快照恢复了{}个房间成员，共{}人，{}ms内没有重连的按离开处理", members.size(), this.restoredUsers, graceMillis);
+        this.scheduler.schedule(() -> {
+            int missing = this.awaiting.size();
+            this.awaiting.clear();
+            removeNode(RESTORED_NODE);
+            log.info("重启恢复：停机前{}人，回来了{}人，一半用时{}ms，90%用时{}ms，全部用时{}ms", this.restoredUsers,
+                    this.restoredUsers - missing, this.halfReturnedMillis, this.mostReturnedMillis, this.allReturnedMillis);
+        }, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void onReturned() {
+        int count = this.returned.incrementAndGet();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.restoredNanos);
+        if (this.halfReturnedMillis < 0 && count * 2 >= this.restoredUsers) {
+            this.halfReturnedMillis = elapsed;
+        }
+        if (this.mostReturnedMillis < 0 && count * 10 >= this.restoredUsers * 9) {
+            this.mostReturnedMillis = elapsed;
+        }
+        if (count >= this.restoredUsers) {
+            this.allReturnedMillis = elapsed;
+        }
+    }
+
+    /**
+     * @return 房间当前完整的成员列表，MEMBERS类型，seq是版本号
+     */
+    public Envelope snapshot(String room) {
+        RoomPresence presence = this.presences.get(room);
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        long version = 0L;
+        builder.append("{\"version\":");
+        if (null == presence) {
+            builder.append(version).append(",\"members\":[]}");
+        } else {
+            synchronized (presence) {
+                version = presence.version;
+                builder.append(version).append(",\"members\":");
+                writeNames(presence.members.keySet(), builder);
+                builder.append('}');
+            }
+        }
+        return new Envelope(MessageType.MEMBERS, version, room, builder.toString());
+    }
+
+    private void markDirty(String room) {
+        this.changes.increment();
+        this.dirty.add(room);
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.scheduler.schedule(this::flush, this.windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 每个有变化的房间发一帧增量
+     */
+    private void flush() {
+        this.scheduled.set(false);
+        Iterator<String> iterator = this.dirty.iterator();
+        while (iterator.hasNext()) {
+            String room = iterator.next();
+            iterator.remove();
+            RoomPresence presence = this.presences.get(room);
+            if (null == presence) {
+                continue;
+            }
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            long from;
+            long to;
+            synchronized (presence) {
+                for (Map.Entry<String, Boolean> entry : presence.changed.entrySet()) {
+                    boolean now = presence.members.containsKey(entry.getKey());
+                    if (now && !entry.getValue()) {
+                        joined.add(entry.getKey());
+                    } else if (!now && entry.getValue()) {
+                        left.add(entry.getKey());
+                    }
+                }
+                presence.changed.clear();
+                if (presence.members.isEmpty()) {
+                    //本节点的人也都不在了，没有人需要这个版本号
+                    presence.removed = true;
+                    this.presences.remove(room, presence);
+                }
+                if (joined.isEmpty() && left.isEmpty()) {
+                    continue;
+                }
+                from = presence.version;
+                to = ++presence.version;
+            }
+            StringBuilder builder = JSONUtil.borrowBuilder();
+            builder.append("{\"from\":").append(from).append(",\"to\":").append(to).append(",\"joined\":");
+            writeNames(joined, builder);
+            builder.append(",\"left\":");
+            writeNames(left, builder);
+            builder.append('}');
+            //每个房间只编码一次，房间里所有人共用
+            this.engine.broadcast(this.rooms.getSessions(room), new PreparedEnvelope(new Envelope(MessageType.PRESENCE, to, room, builder.toString())));
+            this.diffs.increment();
+        }
+    }
+
+    private static void writeNames(Iterable<String> names, StringBuilder builder) {
+        builder.append('[');
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            JSONUtil.writeString(name, builder);
+        }
+        builder.append(']');
+    }
+
+    private static String key(String room, String userName) {
+        return room + '\n' + userName;
+    }
+
+    /**
+     * @return 有成员的房间数
+     */
+    public int getRoomCount() {
+        return this.presences.size();
+    }
+
+    /**
+     * @return 发出的增量帧数，每帧发给一个房间里的所有人
+     */
+    public long getDiffCount() {
+        return this.diffs.sum();
+    }
+
+    /**
+     * @return 收到的成员变化次数
+     */
+    public long getChangeCount() {
+        return this.changes.sum();
+    }
+
+    /**
+     * @return 从停机快照恢复的人数，没有快照时为0
+     */
+    public int getRestoredUserCount() {
+        return this.restoredUsers;
+    }
+
+    /**
+     * @return 宽限期内重连回来的人数
+     */
+    public int getReturnedUserCount() {
+        return this.returned.get();
+    }
+
+    /**
+     * @return 启动后一半的人重连回来用的时间，还没到时为-1
+     */
+    public long getHalfReturnedMillis() {
+        return this.halfReturnedMillis;
+    }
+
+    /**
+     * @return 启动后90%的人重连回来用的时间，还没到时为-1
+     */
+    public long getMostReturnedMillis() {
+        return this.mostReturnedMillis;
+    }
+
+    /**
+     * @return 启动后所有人都重连回来用的时间，还没到时为-1
+     */
+    public long getAllReturnedMillis() {
+        return this.allReturnedMillis;
+    }
+
+    /**
+     * 一个房间的成员，所有字段都在synchronized(this)里访问
+     */
+    private static final class RoomPresence {
+
+        private final String room;
+
+        //昵称 -> (节点 -> 这个节点上的连接数)，按进入的顺序
+        private final Map<String, Map<String, Integer>> members = new LinkedHashMap<>();
+
+        //上次发出增量之后有变化的人，值是那时在不在
+        private final Map<String, Boolean> changed = new LinkedHashMap<>();
+
+        private long version;
+
+        private boolean removed;
+
+        private RoomPresence(String room) {
+            this.room = room;
+        }
+
+        /**
+         * @return 这个人在不在房间里是否变了
+         */
+        private boolean set(String nodeId, String userName, int count) {
+            Map<String, Integer> nodes = this.members.get(userName);
+            boolean before = null != nodes;
+            if (count > 0) {
+                if (null == nodes) {
+                    nodes = new HashMap<>(2);
+                    this.members.put(userName, nodes);
+                }
+                nodes.put(nodeId, count);
+            } else if (null != nodes) {
+                nodes.remove(nodeId);
+                if (nodes.isEmpty()) {
+                    this.members.remove(userName);
+                }
+            }
+            boolean after = this.members.containsKey(userName);
+            if (before != after) {
+                this.changed.putIfAbsent(userName, before);
+                return true;
+            }
+            return false;
+        }
+    }
+}
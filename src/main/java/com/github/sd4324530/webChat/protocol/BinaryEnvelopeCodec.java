@@ -0,0 +1,102 @@
+package com.github.sd4324530.webChat.protocol;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 二进制格式，网络字节序，一帧里可以连续放多条记录：
+ * int 记录长度(不含自身) | byte 类型 | long 序号 | short 房间名长度 | 房间名UTF-8 | 内容UTF-8(记录剩下的部分)
+ * 房间名长度为-1表示没有房间，序号为-1表示没有序号
+ * @author peiyu
+ */
+class BinaryEnvelopeCodec implements EnvelopeCodec {
+
+    //类型 + 序号 + 房间名长度
+    private static final int HEADER = 1 + 8 + 2;
+
+    @Override
+    public List<Envelope> decode(WebSocketMessage<?> message) {
+        if (!(message.getPayload() instanceof ByteBuffer)) {
+            return Collections.emptyList();
+        }
+        ByteBuffer buffer = ((ByteBuffer) message.getPayload()).duplicate();
+        List<Envelope> envelopes = new ArrayList<>(1);
+        try {
+            while (buffer.hasRemaining()) {
+                int length = buffer.getInt();
+                if (length < HEADER || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("记录长度不对:" + length);
+                }
+                int end = buffer.position() + length;
+                MessageType type = MessageType.of(buffer.get());
+                if (null == type) {
+                    throw new IllegalArgumentException("不认识的消息类型");
+                }
+                long seq = buffer.getLong();
+                short roomLength = buffer.getShort();
+                if (roomLength > end - buffer.position()) {
+                    throw new IllegalArgumentException("房间名长度不对:" + roomLength);
+                }
+                String room = roomLength < 0 ? null : readString(buffer, roomLength);
+                String body = readString(buffer, end - buffer.position());
+                envelopes.add(new Envelope(type, seq, room, body));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("记录不完整", e);
+        }
+        return envelopes;
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(Envelope envelope) {
+        return encode(Collections.singletonList(envelope));
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(List<Envelope> envelopes) {
+        int size = 0;
+        byte[][] rooms = new byte[envelopes.size()][];
+        byte[][] bodies = new byte[envelopes.size()][];
+        for (int i = 0; i < envelopes.size(); i++) {
+            Envelope envelope = envelopes.get(i);
+            rooms[i] = null == envelope.getRoom() ? null : envelope.getRoom().getBytes(StandardCharsets.UTF_8);
+            bodies[i] = null == envelope.getBody() ? new byte[0] : envelope.getBody().getBytes(StandardCharsets.UTF_8);
+            size += 4 + HEADER + (null == rooms[i] ? 0 : rooms[i].length) + bodies[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < envelopes.size(); i++) {
+            Envelope envelope = envelopes.get(i);
+            buffer.putInt(HEADER + (null == rooms[i] ? 0 : rooms[i].length) + bodies[i].length);
+            buffer.put(envelope.getType().getCode());
+            buffer.putLong(envelope.getSeq());
+            if (null == rooms[i]) {
+                buffer.putShort((short) -1);
+            } else {
+                buffer.putShort((short) rooms[i].length);
+                buffer.put(rooms[i]);
+            }
+            buffer.put(bodies[i]);
+        }
+        buffer.flip();
+        return new BinaryMessage(buffer);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        //容器给的可能是直接内存或只读的buffer
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.sd4324530.webChat.protocol;
+
+/**
+ * 客户端和服务器之间的一条消息：类型、序号、房间、内容
+ * 不可变，广播时所有接收者共用
+ * @author peiyu
+ */
+public final class Envelope {
+
+    /**
+     * 没有序号
+     */
+    public static final long NO_SEQ = -1L;
+
+    private final MessageType type;
+
+    private final long seq;
+
+    private final String room;
+
+    private final String body;
+
+    public Envelope(MessageType type, long seq, String room, String body) {
+        this.type = type;
+        this.seq = seq;
+        this.room = room;
+        this.body = body;
+    }
+
+    public static Envelope notice(String body) {
+        return new Envelope(MessageType.NOTICE, NO_SEQ, null, body);
+    }
+
+    public static Envelope direct(String body) {
+        return new Envelope(MessageType.DIRECT, NO_SEQ, null, body);
+    }
+
+    public static Envelope online(int count) {
+        return new Envelope(MessageType.ONLINE, NO_SEQ, null, String.valueOf(count));
+    }
+
+    public MessageType getType() {
+        return this.type;
+    }
+
+    public long getSeq() {
+        return this.seq;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    public String getBody() {
+        return this.body;
+    }
+
+    public boolean hasSeq() {
+        return this.seq >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Envelope{type=" + this.type + ", seq=" + this.seq + ", room=" + this.room + ", body=" + this.body + "}";
+    }
+}
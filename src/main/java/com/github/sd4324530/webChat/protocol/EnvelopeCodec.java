@@ -0,0 +1,29 @@
+package com.github.sd4324530.webChat.protocol;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.List;
+
+/**
+ * 消息格式的编解码，实现类不能有状态，所有连接共用
+ * @author peiyu
+ */
+public interface EnvelopeCodec {
+
+    /**
+     * 解码客户端发来的一帧
+     * @return 帧里的消息，不是这种格式能识别的消息时返回空列表
+     * @throws IllegalArgumentException 格式错误
+     */
+    List<Envelope> decode(WebSocketMessage<?> message);
+
+    /**
+     * 编码一条消息
+     */
+    WebSocketMessage<?> encode(Envelope envelope);
+
+    /**
+     * 把多条同类型的消息编码成一帧，比如补发的历史消息和合并发送的聊天消息
+     */
+    WebSocketMessage<?> encode(List<Envelope> envelopes);
+}
@@ -0,0 +1,103 @@
+package com.github.sd4324530.webChat.protocol;
+
+import com.github.sd4324530.webChat.utils.JSONUtil;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * json格式，一条消息是一个对象，多条消息是一个数组；客户端每帧只发一个对象。
+ * 编码时直接写进当前线程复用的StringBuilder，不经过反射；没有序号和房间时不输出这两个字段
+ * @author peiyu
+ */
+class JsonEnvelopeCodec implements EnvelopeCodec {
+
+    @Override
+    public List<Envelope> decode(WebSocketMessage<?> message) {
+        if (!(message.getPayload() instanceof String)) {
+            return Collections.emptyList();
+        }
+        Wire wire;
+        try {
+            wire = JSONUtil.toBean((String) message.getPayload(), Wire.class);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("不是合法的json", e);
+        }
+        if (null == wire) {
+            return Collections.emptyList();
+        }
+        MessageType type = MessageType.of(wire.type);
+        if (null == type) {
+            throw new IllegalArgumentException("不认识的消息类型:" + wire.type);
+        }
+        long seq = null == wire.seq ? Envelope.NO_SEQ : wire.seq;
+        return Collections.singletonList(new Envelope(type, seq, wire.room, wire.body));
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(Envelope envelope) {
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        write(envelope, builder);
+        return new TextMessage(builder.toString());
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(List<Envelope> envelopes) {
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        builder.append('[');
+        for (int i = 0; i < envelopes.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            write(envelopes.get(i), builder);
+        }
+        builder.append(']');
+        return new TextMessage(builder.toString());
+    }
+
+    private static void write(Envelope envelope, StringBuilder builder) {
+        builder.append("{\"type\":\"").append(envelope.getType()).append('"');
+        if (envelope.hasSeq()) {
+            builder.append(",\"seq\":").append(envelope.getSeq());
+        }
+        if (null != envelope.getRoom()) {
+            builder.append(",\"room\":");
+            JSONUtil.writeString(envelope.getRoom(), builder);
+        }
+        builder.append(",\"body\":");
+        JSONUtil.writeString(envelope.getBody(), builder);
+        builder.append('}');
+    }
+
+    /**
+     * 客户端发来的json，字段和Envelope一样，序号可以不带
+     */
+    public static class Wire {
+
+        private String type;
+
+        private Long seq;
+
+        private String room;
+
+        private String body;
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public void setSeq(Long seq) {
+            this.seq = seq;
+        }
+
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
+        public void setBody(String body) {
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.sd4324530.webChat.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * 消息格式，握手时通过?format=text|json|binary协商，不带时使用原来的文本格式
+ * @author peiyu
+ */
+public enum MessageFormat {
+
+    /**
+     * 原来的文本格式：|昵称 登录，#sum: #history: #batch: 这些前缀表示特殊消息
+     */
+    TEXT(new TextEnvelopeCodec()),
+
+    /**
+     * 紧凑的json，{"type":"chat","seq":1,"room":"大厅","body":"..."}，多条时是数组
+     */
+    JSON(new JsonEnvelopeCodec()),
+
+    /**
+     * 长度前缀的二进制格式，通过BinaryMessage发送，一帧里可以有多条，SockJS不支持，会降级成json
+     */
+    BINARY(new BinaryEnvelopeCodec());
+
+    private static final Logger log = LoggerFactory.getLogger(MessageFormat.class);
+
+    /**
+     * 协商好的格式，放在websocket session的属性里
+     */
+    public static final String ATTRIBUTE = "webChat.format";
+
+    private final EnvelopeCodec codec;
+
+    MessageFormat(EnvelopeCodec codec) {
+        this.codec = codec;
+    }
+
+    public EnvelopeCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * @return 握手参数对应的格式，没有带或者不认识时使用TEXT
+     */
+    public static MessageFormat parse(String name) {
+        if (null == name || name.isEmpty()) {
+            return TEXT;
+        }
+        for (MessageFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        log.debug("不认识的消息格式:{}，使用TEXT", name);
+        return TEXT;
+    }
+
+    /**
+     * @return 这个连接协商好的格式
+     */
+    public static MessageFormat of(WebSocketSession session) {
+        Object format = session.getAttributes().get(ATTRIBUTE);
+        return format instanceof MessageFormat ? (MessageFormat) format : TEXT;
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.sd4324530.webChat.protocol;
+
+/**
+ * 消息类型，json里用小写的名字，二进制里用一个字节的编号
+ * @author peiyu
+ */
+public enum MessageType {
+
+    /**
+     * 客户端登录，body是昵称，seq是客户端收到的最后序号(没有时不带)，room是要进入的房间(可以不带)
+     */
+    JOIN(1),
+
+    /**
+     * 聊天消息，客户端发来时body是内容，room不带时发到当前房间；服务器发出时带上序号和完整的一行文本
+     */
+    CHAT(2),
+
+    /**
+     * 只发给某一个人的系统提示
+     */
+    NOTICE(3),
+
+    /**
+     * 进入房间时补发的历史消息
+     */
+    HISTORY(4),
+
+    /**
+     * 在线人数，body是人数
+     */
+    ONLINE(5),
+
+    /**
+     * 私信，只发给收信人和发信人自己，body是完整的一行文本；客户端通过 /msg 昵称 内容 发送
+     */
+    DIRECT(6),
+
+    /**
+     * 房间完整的成员列表，进入房间和 /who 时发给自己，seq是版本号，body是 {"version":版本,"members":["昵称"]}
+     */
+    MEMBERS(7),
+
+    /**
+     * 房间成员的增量，seq是新的版本号，body是 {"from":版本,"to":版本,"joined":["昵称"],"left":["昵称"]}，
+     * from和本地版本对不上时应该重新要一次完整列表
+     */
+    PRESENCE(8);
+
+    private static final MessageType[] BY_CODE = new MessageType[16];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+
+    private final String wireName;
+
+    MessageType(int code) {
+        this.code = (byte) code;
+        this.wireName = name().toLowerCase();
+    }
+
+    public byte getCode() {
+        return this.code;
+    }
+
+    /**
+     * @return json里使用的名字
+     */
+    @Override
+    public String toString() {
+        return this.wireName;
+    }
+
+    /**
+     * @return 对应的类型，不认识时返回null
+     */
+    public static MessageType of(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    /**
+     * @return 对应的类型，不区分大小写，不认识时返回null
+     */
+    public static MessageType of(String name) {
+        if (null == name) {
+            return null;
+        }
+        for (MessageType type : values()) {
+            if (type.wireName.equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.sd4324530.webChat.protocol;
+
+import com.github.sd4324530.webChat.broadcast.PreparedTextMessage;
+import com.github.sd4324530.webChat.broadcast.SessionAwareMessage;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 广播用的消息，按接收者协商的格式发送，每种格式只在第一次用到时编码一次，之后同格式的接收者共用；
+ * 只能交给BroadcastEngine发送
+ * @author peiyu
+ */
+public class PreparedEnvelope implements WebSocketMessage<List<Envelope>>, SessionAwareMessage {
+
+    private final List<Envelope> envelopes;
+
+    private final long originNanos;
+
+    //下标是MessageFormat.ordinal()，文本格式存PreparedTextMessage，二进制存只读的ByteBuffer；重复编码的结果一样，不需要加锁
+    private final AtomicReferenceArray<Object> encoded = new AtomicReferenceArray<>(MessageFormat.values().length);
+
+    public PreparedEnvelope(Envelope envelope) {
+        this(Collections.singletonList(envelope), System.nanoTime());
+    }
+
+    /**
+     * @param envelopes 合成一帧发送的多条消息
+     * @param originNanos 其中最早一条产生的时间
+     */
+    public PreparedEnvelope(List<Envelope> envelopes, long originNanos) {
+        this.envelopes = Collections.unmodifiableList(envelopes);
+        this.originNanos = originNanos;
+    }
+
+    @Override
+    public WebSocketMessage<?> select(WebSocketSession session) {
+        MessageFormat format = MessageFormat.of(session);
+        Object prepared = this.encoded.get(format.ordinal());
+        if (null == prepared) {
+            prepared = prepare(format);
+            this.encoded.set(format.ordinal(), prepared);
+        }
+        if (prepared instanceof ByteBuffer) {
+            return new BinaryMessage(((ByteBuffer) prepared).duplicate());
+        }
+        return (WebSocketMessage<?>) prepared;
+    }
+
+    private Object prepare(MessageFormat format) {
+        WebSocketMessage<?> message = 1 == this.envelopes.size()
+                ? format.getCodec().encode(this.envelopes.get(0)) : format.getCodec().encode(this.envelopes);
+        if (message instanceof TextMessage) {
+            return new PreparedTextMessage(((TextMessage) message).getPayload(), this.originNanos);
+        }
+        return ((BinaryMessage) message).getPayload().asReadOnlyBuffer();
+    }
+
+    @Override
+    public long getOriginNanos() {
+        return this.originNanos;
+    }
+
+    @Override
+    public List<Envelope> getPayload() {
+        return this.envelopes;
+    }
+
+    @Override
+    public int getPayloadLength() {
+        return this.envelopes.size();
+    }
+
+    @Override
+    public boolean isLast() {
+        return true;
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.sd4324530.webChat.protocol;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.github.sd4324530.webChat.utils.JSONUtil;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 原来的文本格式，兼容没有协商格式的老页面：
+ * 客户端发 |昵称 或 |昵称|序号 登录，其他都是聊天内容；
+ * 服务器发的聊天和提示直接是文本，在线人数是 #sum:人数，
+ * 补发的历史是 #history:最后序号 之后每行一条，合并发送的是 #batch:["消息1","消息2"]，
+ * 房间成员的增量还原成 xx进入了房间/xx离开了房间 的提示，完整的成员列表是一行 房间成员：a、b
+ * @author peiyu
+ */
+class TextEnvelopeCodec implements EnvelopeCodec {
+
+    static final String ONLINE_PREFIX = "#sum:";
+
+    static final String HISTORY_PREFIX = "#history:";
+
+    static final String BATCH_PREFIX = "#batch:";
+
+    private static final String JOIN_PREFIX = "|";
+
+    @Override
+    public List<Envelope> decode(WebSocketMessage<?> message) {
+        if (!(message.getPayload() instanceof String)) {
+            return Collections.emptyList();
+        }
+        String msg = ((String) message.getPayload()).trim();
+        if (msg.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (msg.startsWith(JOIN_PREFIX)) {
+            String name = msg.substring(JOIN_PREFIX.length());
+            long since = parseSince(msg);
+            if (since >= 0) {
+                name = name.substring(0, name.lastIndexOf('|'));
+            }
+            return Collections.singletonList(new Envelope(MessageType.JOIN, since, null, name));
+        }
+        return Collections.singletonList(new Envelope(MessageType.CHAT, Envelope.NO_SEQ, null, msg));
+    }
+
+    /**
+     * 登录消息可以带上客户端收到的最后序号：|昵称|序号
+     * @return 序号，没有带时返回-1
+     */
+    private static long parseSince(String msg) {
+        int index = msg.lastIndexOf('|');
+        if (index <= 0 || index == msg.length() - 1) {
+            return Envelope.NO_SEQ;
+        }
+        for (int i = index + 1; i < msg.length(); i++) {
+            if (!Character.isDigit(msg.charAt(i))) {
+                return Envelope.NO_SEQ;
+            }
+        }
+        try {
+            return Long.parseLong(msg.substring(index + 1));
+        } catch (NumberFormatException e) {
+            return Envelope.NO_SEQ;
+        }
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(Envelope envelope) {
+        if (MessageType.ONLINE == envelope.getType()) {
+            return new TextMessage(ONLINE_PREFIX + envelope.getBody());
+        }
+        if (MessageType.PRESENCE == envelope.getType()) {
+            return encodePresence(JSONUtil.getJSONFromString(envelope.getBody()));
+        }
+        if (MessageType.MEMBERS == envelope.getType()) {
+            JSONArray members = JSONUtil.getJSONFromString(envelope.getBody()).getJSONArray("members");
+            StringBuilder builder = JSONUtil.borrowBuilder();
+            builder.append("房间成员：");
+            for (int i = 0; i < members.size(); i++) {
+                if (i > 0) {
+                    builder.append('、');
+                }
+                builder.append(members.getString(i));
+            }
+            return new TextMessage(builder.toString());
+        }
+        return new TextMessage(envelope.getBody());
+    }
+
+    /**
+     * 老页面不认识增量，每个人一行提示，合并成一个 #batch
+     */
+    private static WebSocketMessage<?> encodePresence(JSONObject diff) {
+        JSONArray joined = diff.getJSONArray("joined");
+        JSONArray left = diff.getJSONArray("left");
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        builder.append(BATCH_PREFIX).append('[');
+        for (int i = 0; i < joined.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            JSONUtil.writeString(joined.getString(i) + "进入了房间", builder);
+        }
+        for (int i = 0; i < left.size(); i++) {
+            if (i > 0 || !joined.isEmpty()) {
+                builder.append(',');
+            }
+            JSONUtil.writeString(left.getString(i) + "离开了房间", builder);
+        }
+        builder.append(']');
+        return new TextMessage(builder.toString());
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(List<Envelope> envelopes) {
+        Envelope last = envelopes.get(envelopes.size() - 1);
+        if (MessageType.HISTORY == last.getType()) {
+            StringBuilder builder = JSONUtil.borrowBuilder();
+            builder.append(HISTORY_PREFIX).append(last.getSeq());
+            for (Envelope envelope : envelopes) {
+                builder.append('\n').append(envelope.getBody());
+            }
+            return new TextMessage(builder.toString());
+        }
+        if (1 == envelopes.size()) {
+            return encode(last);
+        }
+        StringBuilder builder = JSONUtil.borrowBuilder();
+        builder.append(BATCH_PREFIX).append('[');
+        for (int i = 0; i < envelopes.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            JSONUtil.writeString(envelopes.get(i).getBody(), builder);
+        }
+        builder.append(']');
+        return new TextMessage(builder.toString());
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.sd4324530.webChat.room;
+
+import com.github.sd4324530.webChat.webSocket.ChatUser;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 房间，成员的增删由RoomRegistry在房间所在的分段锁内完成，只改动这一个成员，不复制整个成员列表；
+ * 广播直接遍历成员的弱一致视图，不需要加锁
+ * @author peiyu
+ */
+public class Room {
+
+    private final String name;
+
+    //只在分段锁内修改，随时可以读
+    private final ConcurrentMap<String, ChatUser> members = new ConcurrentHashMap<>();
+
+    private final Collection<WebSocketSession> sessions = new AbstractCollection<WebSocketSession>() {
+        @Override
+        public Iterator<WebSocketSession> iterator() {
+            Iterator<ChatUser> users = Room.this.members.values().iterator();
+            return new Iterator<WebSocketSession>() {
+                @Override
+                public boolean hasNext() {
+                    return users.hasNext();
+                }
+
+                @Override
+                public WebSocketSession next() {
+                    return users.next().getSession();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return Room.this.members.size();
+        }
+    };
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return 成员session的只读视图，弱一致，遍历期间进出房间的人可能看得到也可能看不到
+     */
+    public Collection<WebSocketSession> getSessions() {
+        return this.sessions;
+    }
+
+    public int size() {
+        return this.members.size();
+    }
+
+    boolean add(ChatUser user) {
+        return null == this.members.putIfAbsent(user.getId(), user);
+    }
+
+    boolean remove(String sessionId) {
+        return null != this.members.remove(sessionId);
+    }
+
+    boolean isEmpty() {
+        return this.members.isEmpty();
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.sd4324530.webChat.room;
+
+import com.github.sd4324530.webChat.utils.PropertiesUtil;
+import com.github.sd4324530.webChat.webSocket.ChatUser;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 房间注册表
+ * 房间按名字的hash分到若干把锁上，不同房间的进出和广播互不影响；广播只读房间成员的弱一致视图，完全不加锁
+ * @author peiyu
+ */
+public class RoomRegistry {
+
+    public static final int MAX_NAME_LENGTH = 20;
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>(64);
+
+    private final Object[] locks;
+
+    private final int mask;
+
+    private final String defaultRoom;
+
+    private RoomRegistry() {
+        int stripes = Integer.highestOneBit(Math.max(1, PropertiesUtil.getInt("chat.room.stripes", 64)) * 2 - 1);
+        this.locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.locks[i] = new Object();
+        }
+        this.mask = stripes - 1;
+        this.defaultRoom = PropertiesUtil.getString("chat.room.default", "大厅");
+    }
+
+    private static class Holder {
+        private static final RoomRegistry ME = new RoomRegistry();
+    }
+
+    public static RoomRegistry me() {
+        return Holder.ME;
+    }
+
+    public String getDefaultRoom() {
+        return this.defaultRoom;
+    }
+
+    /**
+     * 房间名不能为空、不能有空白字符，长度不超过MAX_NAME_LENGTH
+     */
+    public static boolean isValidName(String name) {
+        if (null == name || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 进入房间，房间不存在时创建，同时把它设为用户的当前房间
+     * @return 是否是新进入的
+     */
+    public boolean join(String roomName, ChatUser user) {
+        boolean added;
+        synchronized (lock(roomName)) {
+            Room room = this.rooms.computeIfAbsent(roomName, Room::new);
+            added = room.add(user);
+        }
+        user.joinRoom(roomName);
+        return added;
+    }
+
+    /**
+     * 离开房间，最后一个人离开时删除房间
+     * @return 是否真的离开了
+     */
+    public boolean leave(String roomName, ChatUser user) {
+        boolean removed = false;
+        synchronized (lock(roomName)) {
+            Room room = this.rooms.get(roomName);
+            if (null != room) {
+                removed = room.remove(user.getId());
+                if (room.isEmpty()) {
+                    this.rooms.remove(roomName);
+                }
+            }
+        }
+        user.leaveRoom(roomName);
+        return removed;
+    }
+
+    /**
+     * 下线时离开所有房间
+     * @return 离开的房间
+     */
+    public List<String> leaveAll(ChatUser user) {
+        List<String> left = new ArrayList<>(user.getRooms());
+        for (String roomName : left) {
+            leave(roomName, user);
+        }
+        return left;
+    }
+
+    /**
+     * @return 房间成员session的只读视图，房间不存在时返回空列表
+     */
+    public Collection<WebSocketSession> getSessions(String roomName) {
+        Room room = this.rooms.get(roomName);
+        return null == room ? Collections.emptyList() : room.getSessions();
+    }
+
+    public Room getRoom(String roomName) {
+        return this.rooms.get(roomName);
+    }
+
+    public int getRoomCount() {
+        return this.rooms.size();
+    }
+
+    public List<Room> getRooms() {
+        return new ArrayList<>(this.rooms.values());
+    }
+
+    private Object lock(String roomName) {
+        int h = roomName.hashCode();
+        return this.locks[(h ^ (h >>> 16)) & this.mask];
+    }
+}
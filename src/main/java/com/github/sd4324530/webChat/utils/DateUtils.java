@@ -2,6 +2,7 @@ package com.github.sd4324530.webChat.utils;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 import java.util.Calendar;
 import java.util.Date;
@@ -11,7 +12,8 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * 日期操作工具类,依赖joda time相关jar包，简化操作，提高性能； DateTimeFormat 日期格式化类，线程同步，性能比JDK自带的高；
- * DateTimeFormat.forPattern创建格式化类，只有第一次是新对象，之后从缓存取（API内部实现）
+ * DateTimeFormat.forPattern创建格式化类，只有第一次是新对象，之后从缓存取（API内部实现）；
+ * 常用的两种格式预先创建好，不用每次都去缓存里查找
  * 
  * @author PeiYu
  * 
@@ -21,6 +23,9 @@ public abstract class DateUtils {
 	public static final String FULL_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
 	public static final String SIMPLE_DATE_FORMAT = "yyyy-MM-dd";
 
+	static final DateTimeFormatter FULL_FORMATTER = DateTimeFormat.forPattern(FULL_DATE_FORMAT);
+	static final DateTimeFormatter SIMPLE_FORMATTER = DateTimeFormat.forPattern(SIMPLE_DATE_FORMAT);
+
 	public static final int YEAR = Calendar.YEAR;
 	public static final int MONTH = Calendar.MONTH;
 	public static final int DAY = Calendar.DATE;
@@ -55,7 +60,7 @@ public abstract class DateUtils {
 		requireNonNull(date, "date is null");
 		requireNonNull(format, "format is null");
 		
-		result = DateTimeFormat.forPattern(format).print(date.getTime());
+		result = formatter(format).print(date.getTime());
 		return result;
 	}
 
@@ -73,7 +78,7 @@ public abstract class DateUtils {
 		requireNonNull(str, "str is null");
 		requireNonNull(format, "format is null");
 		
-		result = DateTimeFormat.forPattern(format).parseDateTime(str).toDate();
+		result = formatter(format).parseDateTime(str).toDate();
 		return result;
 	}
 
@@ -88,6 +93,23 @@ public abstract class DateUtils {
 		return string2Date(str, FULL_DATE_FORMAT);
 	}
 
+	/**
+	 * 取格式化类，常用格式直接返回预先创建好的
+	 * 
+	 * @param format
+	 *            格式
+	 * @return 格式化类
+	 */
+	private static DateTimeFormatter formatter(String format) {
+		if (FULL_DATE_FORMAT.equals(format)) {
+			return FULL_FORMATTER;
+		}
+		if (SIMPLE_DATE_FORMAT.equals(format)) {
+			return SIMPLE_FORMATTER;
+		}
+		return DateTimeFormat.forPattern(format);
+	}
+
 	/**
 	 * 在当前日期基础上移动一定年数
 	 * 
@@ -2,8 +2,12 @@ package com.github.sd4324530.webChat.utils;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.JSONSerializer;
+import com.alibaba.fastjson.serializer.SerializeWriter;
 import com.alibaba.fastjson.serializer.SerializerFeature;
+import org.apache.commons.io.output.StringBuilderWriter;
 
+import java.io.IOException;
 import java.util.Map;
 
 import static java.util.Objects.requireNonNull;
@@ -23,6 +27,19 @@ public abstract class JSONUtil {
         SerializerFeature.WriteNonStringKeyAsString, SerializerFeature.QuoteFieldNames, SerializerFeature.SkipTransientField,
         SerializerFeature.SortField, SerializerFeature.PrettyFormat };
 
+    /**
+     * 紧凑的json格式化方式，不换行不排序，用于通过websocket发送的消息
+     */
+    public static final SerializerFeature[] COMPACT_FORMAT = { SerializerFeature.WriteEnumUsingToString,
+        SerializerFeature.SkipTransientField, SerializerFeature.DisableCircularReferenceDetect };
+
+    //复用的StringBuilder超过这个长度就不再保留，避免偶尔一条大消息之后一直占着内存
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     /**
      * @Title: getStringFromJSONObject
      * @Description: 从json获取指定key的字符串
@@ -50,7 +67,7 @@ public abstract class JSONUtil {
 
     /**
      * @Title: toBean
-     * @Description: 将json字符串，转换成指定java bean
+     * @Description: 将json字符串，转换成指定java bean，只解析一次
      * @param jsonStr json串对象
      * @param beanClass 指定的bean
      * @param <T> 任意bean的类型
@@ -59,9 +76,7 @@ public abstract class JSONUtil {
     public static <T> T toBean(String jsonStr, Class<T> beanClass) {
     	requireNonNull(jsonStr, "jsonStr is null");
     	
-    	JSONObject jo = JSON.parseObject(jsonStr);
-        jo.put(JSON.DEFAULT_TYPE_KEY, beanClass.getName());
-        return JSON.parseObject(jo.toJSONString(), beanClass);
+        return JSON.parseObject(jsonStr, beanClass);
 //       return Json.fromJson(beanClass, jsonStr);
     }
     
@@ -77,6 +92,109 @@ public abstract class JSONUtil {
 //        return Json.toJson(obj);
     }
     
+    /**
+     * @Title: toCompactJson
+     * @Description: 转换成紧凑的json字符串，枚举使用toString的值，null的字段不输出
+     * @param obj 需要转换的对象
+     * @return 对应的json字符串
+     */
+    public static String toCompactJson(Object obj) {
+    	requireNonNull(obj, "obj is null");
+    	
+        return JSON.toJSONString(obj, COMPACT_FORMAT);
+    }
+    
+    /**
+     * @Title: toCompactJsonBytes
+     * @Description: 转换成紧凑json的UTF-8字节，直接从fastjson的缓冲区编码，不经过中间的String
+     * @param obj 需要转换的对象
+     * @return UTF-8字节
+     */
+    public static byte[] toCompactJsonBytes(Object obj) {
+    	requireNonNull(obj, "obj is null");
+    	
+        return JSON.toJSONBytes(obj, COMPACT_FORMAT);
+    }
+    
+    /**
+     * @Title: writeCompactJson
+     * @Description: 把对象的紧凑json追加到out后面，out可以是borrowBuilder()拿到的复用对象
+     * @param obj 需要转换的对象
+     * @param out 输出
+     */
+    public static void writeCompactJson(Object obj, StringBuilder out) {
+    	requireNonNull(obj, "obj is null");
+    	
+        try (SerializeWriter writer = new SerializeWriter(null, JSON.DEFAULT_GENERATE_FEATURE, COMPACT_FORMAT)) {
+            new JSONSerializer(writer).write(obj);
+            writer.writeTo(new StringBuilderWriter(out));
+        } catch (IOException e) {
+            //StringBuilderWriter不会抛出IOException
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * @Title: borrowBuilder
+     * @Description: 取当前线程复用的StringBuilder，已经清空；用完之后toString，不能在线程之间传递，也不能嵌套使用
+     * @return 当前线程的StringBuilder
+     */
+    public static StringBuilder borrowBuilder() {
+        StringBuilder builder = BUILDERS.get();
+        if (builder.capacity() > MAX_POOLED_CAPACITY) {
+            builder = new StringBuilder(512);
+            BUILDERS.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+    
+    /**
+     * @Title: writeString
+     * @Description: 把字符串按json的规则转义并加上双引号，追加到out后面，null输出null；用于手写热点消息的json
+     * @param value 字符串
+     * @param out 输出
+     */
+    public static void writeString(String value, StringBuilder out) {
+        if (null == value) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= ' ' && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                //其他控制字符，以及js里会被当作换行的\u2028 \u2029
+                out.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                break;
+            }
+        }
+        out.append(value, start, length).append('"');
+    }
+    
     /**
      * 通过Map生成一个json字符串
      * @param map
@@ -0,0 +1,27 @@
+package com.github.sd4324530.webChat.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带名字前缀的守护线程工厂，方便在线程栈里认出是哪个模块的线程
+ * 
+ * @author peiyu
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+
+	private final AtomicInteger index = new AtomicInteger();
+
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, this.prefix + this.index.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
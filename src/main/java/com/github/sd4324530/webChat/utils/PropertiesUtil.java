@@ -0,0 +1,131 @@
+package com.github.sd4324530.webChat.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * 配置读取工具类，读取classpath下的webChat.properties，同名的系统属性(-Dkey=value)优先
+ * 
+ * @author peiyu
+ */
+public abstract class PropertiesUtil {
+
+	private static final Logger log = LoggerFactory.getLogger(PropertiesUtil.class);
+
+	public static final String CONFIG_FILE = "webChat.properties";
+
+	private static final Properties PROPERTIES = load();
+
+	private static Properties load() {
+		Properties properties = new Properties();
+		try (InputStream in = PropertiesUtil.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+			if (null == in) {
+				log.warn("没有找到配置文件{}，全部使用默认值", CONFIG_FILE);
+				return properties;
+			}
+			try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+		} catch (Exception e) {
+			log.error("读取配置文件异常", e);
+		}
+		return properties;
+	}
+
+	/**
+	 * 读取字符串配置
+	 * 
+	 * @param key
+	 *            配置项
+	 * @param defaultValue
+	 *            没有配置时的默认值
+	 * @return 配置值
+	 */
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (isBlank(value)) {
+			value = PROPERTIES.getProperty(key);
+		}
+		return isBlank(value) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * 读取int配置，格式不对时使用默认值
+	 */
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.warn("配置{}的值{}不是整数，使用默认值{}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * 读取long配置，格式不对时使用默认值
+	 */
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			log.warn("配置{}的值{}不是整数，使用默认值{}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * 读取double配置，格式不对时使用默认值
+	 */
+	public static double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			log.warn("配置{}的值{}不是数字，使用默认值{}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * 读取boolean配置
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return null == value ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * 读取枚举配置，忽略大小写，不认识的值使用默认值
+	 */
+	public static <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+		String value = getString(key, null);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.warn("配置{}的值{}无法识别，使用默认值{}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.github.sd4324530.webChat.utils;
+
+/**
+ * 消息时间戳格式化，格式和DateUtils.FULL_DATE_FORMAT一样：yyyy-MM-dd HH:mm:ss
+ * 每个线程缓存当前这一秒的结果，同一秒内直接返回；换秒时只改写缓冲区里秒的两位数字，
+ * 换分钟时才用joda完整格式化一次(时区和夏令时都在这里处理)
+ * 
+ * @author peiyu
+ */
+public abstract class TimestampFormatter {
+
+	private static final int LENGTH = DateUtils.FULL_DATE_FORMAT.length();
+
+	private static final ThreadLocal<Cache> CACHE = ThreadLocal.withInitial(Cache::new);
+
+	/**
+	 * 格式化当前时间
+	 * 
+	 * @return yyyy-MM-dd HH:mm:ss格式的字符串
+	 */
+	public static String now() {
+		return format(System.currentTimeMillis());
+	}
+
+	/**
+	 * 格式化指定时间
+	 * 
+	 * @param millis
+	 *            毫秒时间戳
+	 * @return yyyy-MM-dd HH:mm:ss格式的字符串
+	 */
+	public static String format(long millis) {
+		return CACHE.get().format(millis);
+	}
+
+	private static final class Cache {
+
+		private final char[] buffer = new char[LENGTH];
+
+		private final StringBuilder builder = new StringBuilder(LENGTH);
+
+		private long minute = Long.MIN_VALUE;
+
+		private long second = Long.MIN_VALUE;
+
+		private String text;
+
+		private String format(long millis) {
+			long currentSecond = Math.floorDiv(millis, 1000L);
+			if (currentSecond == this.second) {
+				return this.text;
+			}
+			long currentMinute = Math.floorDiv(currentSecond, 60L);
+			if (currentMinute != this.minute) {
+				this.builder.setLength(0);
+				DateUtils.FULL_FORMATTER.printTo(this.builder, currentMinute * 60000L);
+				//时区偏移不是整分钟的(只有很早以前的地方时)，不能只改秒，直接完整格式化
+				if (this.builder.length() != LENGTH || '0' != this.builder.charAt(LENGTH - 2) || '0' != this.builder.charAt(LENGTH - 1)) {
+					this.minute = Long.MIN_VALUE;
+					this.second = Long.MIN_VALUE;
+					return DateUtils.FULL_FORMATTER.print(millis);
+				}
+				this.builder.getChars(0, LENGTH, this.buffer, 0);
+				this.minute = currentMinute;
+			}
+			int seconds = (int) (currentSecond - currentMinute * 60L);
+			this.buffer[LENGTH - 2] = (char) ('0' + seconds / 10);
+			this.buffer[LENGTH - 1] = (char) ('0' + seconds % 10);
+			this.second = currentSecond;
+			this.text = new String(this.buffer);
+			return this.text;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.github.sd4324530.webChat.webSocket;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 登录者信息，把session和昵称绑在一起，昵称和session创建后不可变
+ * @author peiyu
+ */
+public class ChatUser {
+
+    public static final int MAX_NAME_LENGTH = 10;
+
+    private final String userName;
+
+    private final WebSocketSession session;
+
+    //所在的房间，由RoomRegistry维护
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(4);
+
+    //发言发到的房间
+    private volatile String currentRoom;
+
+    public ChatUser(String userName, WebSocketSession session) {
+        this.userName = userName;
+        this.session = session;
+    }
+
+    /**
+     * 昵称不能为空、不能全是空白、不能有控制字符，最长MAX_NAME_LENGTH个字符；
+     * 不能以#或者|开头，text格式里私信等消息以昵称开头，这两个字符开头的行会被老客户端当成#sum:之类的控制消息
+     */
+    public static boolean isValidName(String name) {
+        if (null == name || name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.trim().isEmpty()) {
+            return false;
+        }
+        if ('#' == name.charAt(0) || '|' == name.charAt(0)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getId() {
+        return this.session.getId();
+    }
+
+    public String getUserName() {
+        return this.userName;
+    }
+
+    public WebSocketSession getSession() {
+        return this.session;
+    }
+
+    /**
+     * @return 所在房间的只读视图
+     */
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(this.rooms);
+    }
+
+    public boolean isInRoom(String roomName) {
+        return this.rooms.contains(roomName);
+    }
+
+    public String getCurrentRoom() {
+        return this.currentRoom;
+    }
+
+    /**
+     * 进入房间并设为当前房间，只由RoomRegistry调用
+     */
+    public void joinRoom(String roomName) {
+        this.rooms.add(roomName);
+        this.currentRoom = roomName;
+    }
+
+    /**
+     * 离开房间，离开的是当前房间时切换到剩下的任意一个，只由RoomRegistry调用
+     */
+    public void leaveRoom(String roomName) {
+        this.rooms.remove(roomName);
+        if (roomName.equals(this.currentRoom)) {
+            this.currentRoom = this.rooms.isEmpty() ? null : this.rooms.iterator().next();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.userName + "(" + getId() + ")";
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.sd4324530.webChat.webSocket;
+
+import com.github.sd4324530.webChat.heartbeat.HeartbeatMonitor;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * 每个连接的状态，连接建立时创建一次放在session的属性里，
+ * 处理消息时直接从这里取登录者和心跳，不用再按session id去各个表里查。
+ * 所有连接共用同一个EchoHandler，和连接有关的状态都放在这里
+ * @author peiyu
+ */
+final class ConnectionContext {
+
+    static final String ATTRIBUTE = "webChat.context";
+
+    //SockJS连接和关闭了心跳检查时为null
+    private final HeartbeatMonitor.Heartbeat heartbeat;
+
+    //登录后才有
+    private volatile ChatUser user;
+
+    ConnectionContext(HeartbeatMonitor.Heartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * @return 连接建立时放进去的状态，没有经过afterConnectionEstablished的连接补一个不带心跳的
+     */
+    static ConnectionContext of(WebSocketSession session) {
+        Object context = session.getAttributes().get(ATTRIBUTE);
+        if (context instanceof ConnectionContext) {
+            return (ConnectionContext) context;
+        }
+        ConnectionContext created = new ConnectionContext(null);
+        session.getAttributes().put(ATTRIBUTE, created);
+        return created;
+    }
+
+    ChatUser getUser() {
+        return this.user;
+    }
+
+    void setUser(ChatUser user) {
+        this.user = user;
+    }
+
+    /**
+     * 收到客户端的消息
+     */
+    void touch() {
+        if (null != this.heartbeat) {
+            this.heartbeat.touch();
+        }
+    }
+
+    /**
+     * 收到客户端的pong
+     */
+    void pong() {
+        if (null != this.heartbeat) {
+            this.heartbeat.pong();
+        }
+    }
+}
@@ -1,18 +1,39 @@
 package com.github.sd4324530.webChat.webSocket;
 
+import com.github.sd4324530.webChat.broadcast.BroadcastEngine;
+import com.github.sd4324530.webChat.cluster.ClusterNode;
+import com.github.sd4324530.webChat.direct.OfflineMailbox;
+import com.github.sd4324530.webChat.dispatch.InboundDispatcher;
+import com.github.sd4324530.webChat.filter.MessageFilterChain;
+import com.github.sd4324530.webChat.heartbeat.HeartbeatMonitor;
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import com.github.sd4324530.webChat.history.HistoryRegistry;
+import com.github.sd4324530.webChat.limit.RateLimiter;
+import com.github.sd4324530.webChat.limit.RateLimiters;
+import com.github.sd4324530.webChat.metrics.ChatMetrics;
+import com.github.sd4324530.webChat.metrics.Meter;
+import com.github.sd4324530.webChat.metrics.MetricsRegistry;
+import com.github.sd4324530.webChat.presence.OnlineCountPusher;
+import com.github.sd4324530.webChat.presence.PresenceTracker;
+import com.github.sd4324530.webChat.protocol.Envelope;
+import com.github.sd4324530.webChat.protocol.MessageFormat;
+import com.github.sd4324530.webChat.protocol.MessageType;
+import com.github.sd4324530.webChat.room.RoomRegistry;
 import com.github.sd4324530.webChat.utils.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.*;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * websocket消息处理器类
+ * 所有地址和所有连接共用一个实例，会被多个线程同时调用，本身不保存和连接有关的状态，见ConnectionContext
  * @author peiyu
  */
 public class EchoHandler extends TextWebSocketHandler {
@@ -22,151 +43,434 @@ public class EchoHandler extends TextWebSocketHandler {
     //登录者信息缓存，主要用于把session id和昵称关联起来，用于发送消息
     private WebSocketCache cache = WebSocketCache.me();
 
-    //记录每个session id发送过快的时间，防止用户恶意刷屏
-    private Map<String, Date> timeLimitMap = new Hashtable<>();
+    //房间成员，聊天消息只发给同一个房间的人
+    private RoomRegistry rooms = RoomRegistry.me();
+
+    //每个房间最近的消息，新进来和重连的人补发
+    private HistoryRegistry history = HistoryRegistry.me();
+
+
+    //房间消息经过集群总线发给所有节点
+    private ClusterNode cluster = ClusterNode.me();
+
+    //在线人数变化时推送给所有人
+    private OnlineCountPusher onlineCount = OnlineCountPusher.me();
+
+    //房间成员的进出，合并成增量发给房间里的人
+    private PresenceTracker presence = PresenceTracker.me();
+
+    //所有发往客户端的消息都经过广播引擎异步发送
+    private BroadcastEngine engine = BroadcastEngine.me();
+
+    //定时ping，清理没有响应的连接
+    private HeartbeatMonitor heartbeat = HeartbeatMonitor.me();
+
+    //收到的消息交给分发器处理，不占用容器的io线程
+    private InboundDispatcher dispatcher = InboundDispatcher.me();
+
+    //收到的消息数和传输异常数
+    private Meter messagesIn = MetricsRegistry.me().meter(ChatMetrics.MESSAGES_IN);
+
+    private LongAdder transportErrors = MetricsRegistry.me().counter(ChatMetrics.TRANSPORT_ERRORS);
+
+    //按session id限制发言频率，防止用户恶意刷屏
+    private RateLimiter rateLimiter = RateLimiters.message();
+
+    //敏感词、链接等内容过滤，在广播之前执行
+    private MessageFilterChain filters = MessageFilterChain.me();
+
+    //发给不在线的人的私信
+    private OfflineMailbox mailbox = OfflineMailbox.me();
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        String msg = message.getPayload().trim();
-        log.debug("你说的内容:{}", msg);
-        String responseMessage = null;
-        //用于限制用户发送信息的频率，防止恶意刷屏
-        Date timeLimit = DateUtils.addSeconds(new Date(), -2);
-        if (null != msg && !"".equals(msg.trim())) {
+        receive(session, message);
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        receive(session, message);
+    }
+
+    /**
+     * 在容器线程里只做计数，处理交给分发器；积压太多时直接告诉发送者这条没有处理
+     */
+    private void receive(WebSocketSession session, WebSocketMessage<?> message) {
+        this.messagesIn.mark();
+        ConnectionContext context = ConnectionContext.of(session);
+        context.touch();
+        if (!this.dispatcher.dispatch(session.getId(), () -> handle(session, context, message))) {
+            log.debug("消息积压太多，拒绝处理，sessionid:{}", session.getId());
+            notice(session, "服务器繁忙，这条消息没有发出去，请稍后再试");
+        }
+    }
+
+    /**
+     * 按这个连接协商的格式解码，文本和二进制帧走同一套处理
+     */
+    private void handle(WebSocketSession session, ConnectionContext context, WebSocketMessage<?> message) {
+        MessageFormat format = MessageFormat.of(session);
+        List<Envelope> envelopes;
+        try {
+            envelopes = format.getCodec().decode(message);
+        } catch (IllegalArgumentException e) {
+            log.debug("消息格式错误，sessionid:{}，{}", session.getId(), e.getMessage());
+            notice(session, "消息格式不对");
+            return;
+        }
+        for (Envelope envelope : envelopes) {
+            log.debug("你说的内容:{}", envelope);
             try {
-                //暂时只能用这个蛋疼的方式拿到登录者的昵称- -
-                if (msg.startsWith("|")) {
-                    String username = msg.substring(1);
-                    if (username.length() > 10) {
-                        session.close(CloseStatus.BAD_DATA);
-                        return;
+                ChatUser user = context.getUser();
+                //文本格式里以|开头的都会解码成登录，登录之后和原来一样当作聊天内容
+                if (MessageType.JOIN == envelope.getType() && null != user && MessageFormat.TEXT == format) {
+                    envelope = new Envelope(MessageType.CHAT, Envelope.NO_SEQ, null, ((String) message.getPayload()).trim());
+                }
+                if (MessageType.JOIN == envelope.getType()) {
+                    if (null == user) {
+                        join(session, context, envelope);
+                    } else {
+                        notice(session, "你已经登录了");
                     }
-                    long count = this.cache.getAll().stream().filter(s -> s.getId().equals(session.getId())).count();
-                    if (count > 0) {
-                        //防止用户发送过长的消息，前端已经限制，但是用户可以绕过js检查，所以在后端再检查一次
-                        if (msg.length() > 200) {
-                            session.sendMessage(new TextMessage("太长，刷屏是不对的（这条只有你能看到，嘿嘿）"));
-                            return;
-                        }
-                        boolean before = timeLimit.before(this.timeLimitMap.get(session.getId()));
-                        log.debug("是否过快{}", before);
-                        if (before) {
-                            session.sendMessage(new TextMessage("说的太频繁了！刷屏是不对的！"));
-                            return;
-                        }
-                        String name = this.cache.getUserName(session.getId());
-                        responseMessage = name + "说：" + msg;
-                        this.timeLimitMap.put(session.getId(), new Date());
+                } else if (MessageType.CHAT == envelope.getType()) {
+                    if (null == user) {
+                        log.debug("还没有登录，sessionid:{}", session.getId());
                     } else {
-                        log.debug("{}上线!`sessionid:{}", username, session.getId());
-                        this.cache.addCache(username, session);
-                        this.timeLimitMap.put(session.getId(), new Date(0));
-                        responseMessage = username + "上线啦!";
+                        chat(user, envelope);
                     }
                 } else {
-                    if (msg.length() > 200) {
-                        session.sendMessage(new TextMessage("太长，刷屏是不对的（这条只有你能看到，嘿嘿）"));
-                        return;
-                    }
-                    boolean before = timeLimit.before(this.timeLimitMap.get(session.getId()));
-                    log.debug("是否过快{}", before);
-                    if (before) {
-                        session.sendMessage(new TextMessage("说的太频繁了！刷屏是不对的！"));
-                        return;
-                    }
-                    String name = this.cache.getUserName(session.getId());
-                    responseMessage = name + "说：" + msg;
-                    this.timeLimitMap.put(session.getId(), new Date());
-//                    responseMessage = this.simsimiService.send(msg);
+                    log.debug("客户端不能发送的消息类型:{}，sessionid:{}", envelope.getType(), session.getId());
                 }
             } catch (Exception e) {
                 log.error("发送异常:", e);
             }
+        }
+    }
+
+    private void chat(ChatUser user, Envelope envelope) {
+        WebSocketSession session = user.getSession();
+        String msg = null == envelope.getBody() ? "" : envelope.getBody().trim();
+        if ("".equals(msg)) {
+            return;
+        }
+        //防止用户发送过长的消息，前端已经限制，但是用户可以绕过js检查，所以在后端再检查一次
+        if (msg.length() > 200) {
+            notice(session, "太长，刷屏是不对的（这条只有你能看到，嘿嘿）");
+            return;
+        }
+        if (msg.startsWith("/") && handleCommand(user, msg)) {
+            return;
+        }
+        if (!this.rateLimiter.tryAcquire(session.getId())) {
+            log.debug("说的太快了，sessionid:{}", session.getId());
+            notice(session, "说的太频繁了！刷屏是不对的！");
+            return;
+        }
+        //消息里指定了房间时发到这个房间，否则发到当前房间
+        String room = null == envelope.getRoom() ? user.getCurrentRoom() : envelope.getRoom();
+        if (null == room) {
+            notice(session, "你不在任何房间里，先用 /join 房间名 进入一个房间吧");
+            return;
+        }
+        if (!user.isInRoom(room)) {
+            notice(session, "你不在这个房间里");
+            return;
+        }
+        msg = this.filters.apply(user.getUserName(), msg);
+        if (null == msg) {
+            notice(session, "消息包含不允许发送的内容，没有发出去");
+            return;
+        }
+        broadcast(room, user.getUserName(), user.getUserName() + "说：" + msg);
+    }
+
+    /**
+     * 登录，进入消息里或者握手时指定的房间，都没有指定则进入默认房间，并补发这个房间最近的消息；
+     * 消息里可以带上客户端收到的最后序号，重连时从这里开始补发
+     */
+    private void join(WebSocketSession session, ConnectionContext context, Envelope envelope) throws Exception {
+        String username = envelope.getBody();
+        if (!ChatUser.isValidName(username)) {
+            session.close(CloseStatus.BAD_DATA);
+            return;
+        }
+        log.debug("{}上线!`sessionid:{}", username, session.getId());
+        this.cache.addCache(username, session);
+        ChatUser user = this.cache.getUser(session.getId());
+        context.setUser(user);
+        Object handshakeRoom = session.getAttributes().get(WebSocketHandshakeInterceptor.ROOM_ATTRIBUTE);
+        String room;
+        if (RoomRegistry.isValidName(envelope.getRoom())) {
+            room = envelope.getRoom();
         } else {
+            room = null == handshakeRoom ? this.rooms.getDefaultRoom() : handshakeRoom.toString();
         }
-        if (null != responseMessage && !"".equals(responseMessage.trim())) {
-            log.debug("回复内容:{}", responseMessage);
-            String now = DateUtils.date2String(new Date());
-            responseMessage = now + " " + responseMessage;
-            TextMessage textMessage = new TextMessage(responseMessage);
-            this.cache.getAll().forEach(s -> {
-                try {
-                    log.debug("发送消息，sessionid:{}", s.getId());
-                    if (s.isOpen()) {
-                        s.sendMessage(textMessage);
-                    }
-                } catch (Exception e) {
-                    log.error("发送异常", e);
+        this.rooms.join(room, user);
+        this.presence.joined(room, username);
+        replay(session, room, username, envelope.getSeq());
+        sendMembers(session, room);
+        deliverOffline(username);
+        this.onlineCount.sendTo(session);
+        this.onlineCount.onChange();
+    }
+
+    /**
+     * 私信：按昵称找到收信人所有的连接直接发送，发信人的其他标签页也能看到；收信人不在线时按配置存起来或者拒绝
+     */
+    private void direct(ChatUser user, String argument) {
+        WebSocketSession session = user.getSession();
+        String[] parts = null == argument ? new String[0] : argument.split("\\s+", 2);
+        if (parts.length < 2) {
+            notice(session, "私信的格式是 /msg 昵称 内容");
+            return;
+        }
+        String to = parts[0];
+        if (!ChatUser.isValidName(to)) {
+            //不合法的昵称不可能有人用，也不占离线信箱
+            notice(session, "昵称不合法，私信没有发出去");
+            return;
+        }
+        if (to.equals(user.getUserName())) {
+            notice(session, "不能给自己发私信");
+            return;
+        }
+        if (!this.rateLimiter.tryAcquire(session.getId())) {
+            notice(session, "说的太频繁了！刷屏是不对的！");
+            return;
+        }
+        String msg = this.filters.apply(user.getUserName(), parts[1]);
+        if (null == msg) {
+            notice(session, "消息包含不允许发送的内容，没有发出去");
+            return;
+        }
+        List<ChatUser> receivers = this.cache.getUsersByName(to);
+        String text = user.getUserName() + "悄悄对你说：" + msg;
+        //对方可能同时连在其他节点上，由那些节点发给他
+        boolean remote = this.presence.isOnOtherNode(to);
+        if (remote) {
+            this.cluster.publishDirect(to, text);
+        }
+        if (receivers.isEmpty() && !remote) {
+            if (this.mailbox.offer(to, text)) {
+                notice(session, to + "不在线，上线后会收到你的私信");
+                //存的时候对方刚好上线，已经错过了登录时的补发
+                if (this.cache.isOnline(to)) {
+                    deliverOffline(to);
+                }
+            } else {
+                notice(session, to + "不在线，私信没有发出去");
+            }
+            return;
+        }
+        WebSocketMessage<?> message = null;
+        MessageFormat format = null;
+        for (ChatUser receiver : receivers) {
+            //同一种格式只编码一次
+            MessageFormat receiverFormat = MessageFormat.of(receiver.getSession());
+            if (receiverFormat != format) {
+                format = receiverFormat;
+                message = format.getCodec().encode(Envelope.direct(text));
+            }
+            this.engine.send(receiver.getSession(), message);
+        }
+        String echo = "你悄悄对" + to + "说：" + msg;
+        for (ChatUser self : this.cache.getUsersByName(user.getUserName())) {
+            this.engine.send(self.getSession(), MessageFormat.of(self.getSession()).getCodec().encode(Envelope.direct(echo)));
+        }
+    }
+
+    /**
+     * 补发这个人不在线时收到的私信，发给他所有的连接
+     */
+    private void deliverOffline(String username) {
+        List<OfflineMailbox.Letter> letters = this.mailbox.take(username);
+        if (letters.isEmpty()) {
+            return;
+        }
+        for (ChatUser receiver : this.cache.getUsersByName(username)) {
+            MessageFormat format = MessageFormat.of(receiver.getSession());
+            for (OfflineMailbox.Letter letter : letters) {
+                String text = "[" + DateUtils.date2String(new Date(letter.getTime())) + "] " + letter.getText();
+                this.engine.send(receiver.getSession(), format.getCodec().encode(Envelope.direct(text)));
+            }
+        }
+    }
+
+    /**
+     * 房间相关的指令：/join 房间名、/leave 房间名、/rooms、/who [房间名]，以及私信 /msg 昵称 内容
+     * @return 是否是能识别的指令，不能识别的当作普通聊天内容
+     */
+    private boolean handleCommand(ChatUser user, String msg) {
+        String[] parts = msg.split("\\s+", 2);
+        String command = parts[0];
+        String argument = parts.length > 1 ? parts[1] : null;
+        WebSocketSession session = user.getSession();
+        switch (command) {
+            case "/join":
+                if (!RoomRegistry.isValidName(argument)) {
+                    notice(session, "房间名不能有空格，并且不能超过" + RoomRegistry.MAX_NAME_LENGTH + "个字");
+                } else if (this.rooms.join(argument, user)) {
+                    this.presence.joined(argument, user.getUserName());
+                    replay(session, argument, user.getUserName(), -1L);
+                    sendMembers(session, argument);
+                } else {
+                    notice(session, "已切换到房间[" + argument + "]");
+                    sendMembers(session, argument);
+                }
+                return true;
+            case "/leave":
+                String room = null == argument ? user.getCurrentRoom() : argument;
+                if (null == room || !user.isInRoom(room)) {
+                    notice(session, "你不在这个房间里");
+                } else if (user.getRooms().size() == 1) {
+                    notice(session, "这是你所在的最后一个房间，不能离开");
+                } else {
+                    this.rooms.leave(room, user);
+                    this.presence.left(room, user.getUserName());
+                    this.history.departed(room, user.getUserName());
+                    notice(session, "已离开房间[" + room + "]，当前房间[" + user.getCurrentRoom() + "]");
+                }
+                return true;
+            case "/rooms":
+                notice(session, "你所在的房间:" + user.getRooms() + "，当前房间[" + user.getCurrentRoom() + "]");
+                return true;
+            case "/who":
+                String target = null == argument ? user.getCurrentRoom() : argument;
+                if (null == target || !user.isInRoom(target)) {
+                    notice(session, "你不在这个房间里");
+                } else {
+                    sendMembers(session, target);
                 }
-            });
+                return true;
+            case "/msg":
+                direct(user, argument);
+                return true;
+            default:
+                return false;
         }
     }
 
+    /**
+     * 给房间里所有人发消息，经过集群总线发到每个节点，由各个节点记入历史后发给自己的连接，
+     * 见ClusterNode
+     */
+    private void broadcast(String room, String user, String content) {
+        log.debug("回复内容:{}", content);
+        this.cluster.publishChat(room, user, content);
+    }
+
+    /**
+     * 只发给一个人的提示
+     */
+    private void notice(WebSocketSession session, String text) {
+        this.engine.send(session, MessageFormat.of(session).getCodec().encode(Envelope.notice(text)));
+    }
+
+    /**
+     * 发送房间完整的成员列表，之后靠增量更新
+     */
+    private void sendMembers(WebSocketSession session, String room) {
+        this.engine.send(session, MessageFormat.of(session).getCodec().encode(this.presence.snapshot(room)));
+    }
+
+    /**
+     * 把需要补发的历史消息合成一帧发给刚进入房间的人
+     */
+    private void replay(WebSocketSession session, String room, String userName, long since) {
+        List<HistoryEntry> entries = this.history.replay(room, userName, since);
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Envelope> envelopes = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            envelopes.add(new Envelope(MessageType.HISTORY, entry.getSeq(), entry.getRoom(), entry.getText()));
+        }
+        this.engine.send(session, MessageFormat.of(session).getCodec().encode(envelopes));
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         log.debug("建立链接");
-        //在这里发现了一个从session中获取额外参数的方法，但是在前端还没找到方法可以将数据放进这个里面，如果可以将昵称放进去，那么就不用那么蛋疼的记录登录者的昵称了
-        Map<String, Object> attributes = session.getAttributes();
-        if (null == attributes || attributes.isEmpty()) {
-            log.debug("没有参数....");
-        } else {
-            attributes.forEach((key, value) -> log.debug("key:{}, value:{}", key, value));
+        ConnectionContext context = new ConnectionContext(this.heartbeat.register(session, this::evict));
+        session.getAttributes().put(ConnectionContext.ATTRIBUTE, context);
+        //登录之前也要登记，停机时才能给它发带重连等待时间的关闭帧
+        this.engine.register(session);
+        this.dispatcher.open(session.getId());
+        //SockJS只能传文本，协商了二进制格式的降级成json
+        if (MessageFormat.BINARY == MessageFormat.of(session) && session instanceof SockJsSession) {
+            session.getAttributes().put(MessageFormat.ATTRIBUTE, MessageFormat.JSON);
+        }
+        //握手时带了昵称的直接登录，不用等客户端再发登录消息
+        Object name = session.getAttributes().get(WebSocketHandshakeInterceptor.NAME_ATTRIBUTE);
+        if (null != name) {
+            Object seq = session.getAttributes().get(WebSocketHandshakeInterceptor.SEQ_ATTRIBUTE);
+            join(session, context, new Envelope(MessageType.JOIN, null == seq ? Envelope.NO_SEQ : (Long) seq, null, name.toString()));
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         log.debug("关闭链接");
-        String name = this.cache.getUserName(session.getId());
-        this.cache.deleteCache(session.getId());
-        this.timeLimitMap.remove(session.getId());
-        if (null != name && !"".equals(name)) {
-            if (session.isOpen()) {
-                session.sendMessage(new TextMessage(name + "下线啦!"));
+        this.dispatcher.close(session.getId(), () -> {
+            ChatUser user = this.cache.getUser(session.getId());
+            if (null != user && session.isOpen()) {
+                notice(session, user.getUserName() + "下线啦!");
             }
-            this.cache.getAll().forEach(s -> {
-                try {
-                    String now = DateUtils.date2String(new Date());
-                    s.sendMessage(new TextMessage(now + " " + name + "下线啦!"));
-                } catch (IOException e) {
-                    log.error("异常", e);
-                }
-            });
-        }
-    }
-
-
-    @Override
-    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
-        log.debug("handleBinaryMessage:{}", message.toString());
+            leave(session);
+        });
     }
 
     @Override
     protected void handlePongMessage(WebSocketSession session, PongMessage message) throws Exception {
-        log.debug("handlePongMessage:{}", message.toString());
+        ConnectionContext.of(session).pong();
     }
 
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         log.error("handleTransportError:", exception);
-        String name = this.cache.getUserName(session.getId());
-        this.cache.deleteCache(session.getId());
-        this.timeLimitMap.remove(session.getId());
+        this.transportErrors.increment();
+        this.dispatcher.close(session.getId(), () -> leave(session));
         if(session.isOpen()) {
             session.close();
         }
-        if (null != name && !"".equals(name)) {
-//            if (session.isOpen()) {
-//                session.sendMessage(new TextMessage(name + "下线啦!"));
-//            }
-            this.cache.getAll().forEach(s -> {
-                try {
-                    String now = DateUtils.date2String(new Date());
-                    s.sendMessage(new TextMessage(now + " " + name + "下线啦!"));
-                } catch (IOException e) {
-                    log.error("异常", e);
-                }
-            });
+    }
+
+    /**
+     * 心跳超时，按正常下线处理后关闭连接
+     */
+    private void evict(WebSocketSession session) {
+        this.dispatcher.close(session.getId(), () -> leave(session));
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            log.debug("关闭超时连接异常，sessionid:{}", session.getId(), e);
+        }
+    }
+
+    /**
+     * 连接关闭、传输异常和心跳超时都走这里，经过分发器排在这个连接已经收到的消息之后执行；
+     * 同一个连接重复调用时只有第一次会通知房间里的人
+     */
+    private void leave(WebSocketSession session) {
+        this.heartbeat.unregister(session.getId());
+        ConnectionContext.of(session).setUser(null);
+        ChatUser user = this.cache.deleteCache(session.getId());
+        this.rateLimiter.remove(session.getId());
+        if (null != user) {
+            broadcastLeave(user);
+            this.onlineCount.onChange();
+        }
+        this.engine.release(session.getId());
+        WebSocketHandshakeInterceptor.releasePermit(session.getAttributes());
+    }
+
+    /**
+     * 离开所有房间，房间里的其他人通过成员增量得知
+     */
+    private void broadcastLeave(ChatUser user) {
+        for (String room : this.rooms.leaveAll(user)) {
+            this.presence.left(room, user.getUserName());
+            this.history.departed(room, user.getUserName());
         }
     }
 }
@@ -2,54 +2,148 @@ package com.github.sd4324530.webChat.webSocket;
 
 import org.springframework.web.socket.WebSocketSession;
 
-import java.util.HashMap;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 用户信息缓存
+ * 以session id为key直接定位登录者，上线/下线只改动这一个登录者，不复制整个在线列表；
+ * 广播时直接遍历ConcurrentHashMap的弱一致视图，遍历时不加锁，遍历期间的上线/下线可能看得到也可能看不到；
+ * 私信按昵称查找，同一个昵称可以在多个标签页登录
  * @author peiyu
  */
 public class WebSocketCache {
 
-    private Map<String, Object[]> cacheMap;
+    private final ConcurrentMap<String, ChatUser> cacheMap = new ConcurrentHashMap<>(256);
 
-    private static WebSocketCache me;
+    //昵称到登录者的反向索引，值是只读数组，上线/下线时在compute里整体替换，读的时候不加锁
+    private final ConcurrentMap<String, ChatUser[]> nameMap = new ConcurrentHashMap<>(256);
+
+    //在线人数，和cacheMap同步增减
+    private final AtomicInteger count = new AtomicInteger();
+
+    //所有在线session的只读视图
+    private final Collection<WebSocketSession> sessions = new AbstractCollection<WebSocketSession>() {
+        @Override
+        public Iterator<WebSocketSession> iterator() {
+            Iterator<ChatUser> users = WebSocketCache.this.cacheMap.values().iterator();
+            return new Iterator<WebSocketSession>() {
+                @Override
+                public boolean hasNext() {
+                    return users.hasNext();
+                }
+
+                @Override
+                public WebSocketSession next() {
+                    return users.next().getSession();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return WebSocketCache.this.count.get();
+        }
+    };
 
     private WebSocketCache() {
-        this.cacheMap = new HashMap<>();
+    }
+
+    private static class Holder {
+        private static final WebSocketCache ME = new WebSocketCache();
     }
 
     public static WebSocketCache me() {
-        if(null == me) {
-            me = new WebSocketCache();
-        }
-        return me;
+        return Holder.ME;
     }
 
     public void addCache(String userName, WebSocketSession session) {
-        if(!this.cacheMap.containsKey(session.getId())) {
-            Object[] objects = new Object[]{userName, session};
-            this.cacheMap.put(session.getId(), objects);
+        ChatUser user = new ChatUser(userName, session);
+        if (null == this.cacheMap.putIfAbsent(session.getId(), user)) {
+            this.nameMap.compute(userName, (name, users) -> {
+                if (null == users) {
+                    return new ChatUser[]{user};
+                }
+                ChatUser[] copy = Arrays.copyOf(users, users.length + 1);
+                copy[users.length] = user;
+                return copy;
+            });
+            this.count.incrementAndGet();
         }
     }
 
     public String getUserName(String id) {
-        final String[] name = {null};
-        this.cacheMap.forEach((key, value) -> {
-            if(key.equals(id)) {
-                name[0] = value[0].toString();
-            }
-        });
-        return name[0];
+        ChatUser user = this.cacheMap.get(id);
+        return null == user ? null : user.getUserName();
+    }
+
+    public ChatUser getUser(String id) {
+        return this.cacheMap.get(id);
+    }
+
+    /**
+     * @return 用这个昵称登录的所有连接的只读视图，不在线时为空
+     */
+    public List<ChatUser> getUsersByName(String userName) {
+        ChatUser[] users = this.nameMap.get(userName);
+        return null == users ? Collections.<ChatUser>emptyList() : Collections.unmodifiableList(Arrays.asList(users));
     }
 
-    public List<WebSocketSession> getAll() {
-        return this.cacheMap.values().stream().map(obj -> (WebSocketSession)obj[1]).collect(Collectors.toList());
+    public boolean isOnline(String userName) {
+        return this.nameMap.containsKey(userName);
     }
 
-    public void deleteCache(String id) {
-        this.cacheMap.remove(id);
+    public boolean contains(String id) {
+        return this.cacheMap.containsKey(id);
+    }
+
+    /**
+     * @return 所有在线session的只读视图，弱一致，不会抛ConcurrentModificationException
+     */
+    public Collection<WebSocketSession> getAll() {
+        return this.sessions;
+    }
+
+    public int size() {
+        return this.count.get();
+    }
+
+    public ChatUser deleteCache(String id) {
+        ChatUser user = this.cacheMap.remove(id);
+        if (null != user) {
+            this.nameMap.computeIfPresent(user.getUserName(), (name, users) -> remove(users, user));
+            this.count.decrementAndGet();
+        }
+        return user;
+    }
+
+    /**
+     * @return 去掉user之后的数组，去掉后为空时返回null，从索引里删除这个昵称
+     */
+    private static ChatUser[] remove(ChatUser[] users, ChatUser user) {
+        int index = -1;
+        for (int i = 0; i < users.length; i++) {
+            if (users[i] == user) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return users;
+        }
+        if (1 == users.length) {
+            return null;
+        }
+        ChatUser[] copy = new ChatUser[users.length - 1];
+        System.arraycopy(users, 0, copy, 0, index);
+        System.arraycopy(users, index + 1, copy, index, users.length - index - 1);
+        return copy;
     }
 }
@@ -1,17 +1,32 @@
 package com.github.sd4324530.webChat.webSocket;
 
+import com.github.sd4324530.webChat.limit.ConnectionLimiter;
+import com.github.sd4324530.webChat.limit.RateLimiter;
+import com.github.sd4324530.webChat.limit.RateLimiters;
+import com.github.sd4324530.webChat.metrics.ChatMetrics;
+import com.github.sd4324530.webChat.metrics.LatencyHistogram;
+import com.github.sd4324530.webChat.metrics.MetricsRegistry;
+import com.github.sd4324530.webChat.protocol.MessageFormat;
+import com.github.sd4324530.webChat.room.RoomRegistry;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
-import java.util.Enumeration;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author peiyu
@@ -20,47 +35,156 @@ public class WebSocketHandshakeInterceptor implements HandshakeInterceptor {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketHandshakeInterceptor.class);
 
+    /**
+     * 握手时通过?room=xxx指定的房间，放在websocket session的属性里
+     */
+    public static final String ROOM_ATTRIBUTE = "webChat.room";
+
+    /**
+     * 握手时通过?name=xxx或者cookie带来的昵称，连接建立后直接登录，不需要再发登录消息
+     */
+    public static final String NAME_ATTRIBUTE = "webChat.name";
+
+    /**
+     * 握手时通过?seq=xxx带来的这个房间收到的最后序号，登录时从这之后补发
+     */
+    public static final String SEQ_ATTRIBUTE = "webChat.seq";
+
+    /**
+     * 握手时申请到的连接名额，连接关闭时释放
+     */
+    public static final String PERMIT_ATTRIBUTE = "webChat.permit";
+
+    //保存昵称的cookie
+    public static final String NAME_COOKIE = "chatName";
+
+    //beforeHandshake和afterHandshake在同一个线程里调用，用来计算握手耗时
+    private static final ThreadLocal<Long> HANDSHAKE_BEGIN = new ThreadLocal<>();
+
+    //afterHandshake拿不到attributes，握手失败时通过这里释放名额
+    private static final ThreadLocal<ConnectionLimiter.Permit> HANDSHAKE_PERMIT = new ThreadLocal<>();
+
+    //按ip限制握手频率，防止有人不停的建立连接
+    private RateLimiter rateLimiter = RateLimiters.handshake();
+
+    //连接总数、每个ip的连接数和堆内存的准入控制
+    private ConnectionLimiter connectionLimiter = ConnectionLimiter.me();
+
+    private LatencyHistogram handshakeDuration = MetricsRegistry.me().histogram(ChatMetrics.HANDSHAKE_DURATION);
+
+    private LongAdder handshakeRejected = MetricsRegistry.me().counter(ChatMetrics.HANDSHAKE_REJECTED);
+
     @Override
     public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Map<String, Object> attributes) throws Exception {
         log.debug("beforeHandshake..............");
-        HttpSession session = getSession(request);
-        if (session != null) {
-            log.debug("session:{}", session.toString());
-            Enumeration<String> names = session.getAttributeNames();
-            while (names.hasMoreElements()) {
-                String name = names.nextElement();
-                Object value = session.getAttribute(name);
-                log.debug("name:{}, value:{}", name, value);
-                attributes.put(name, session.getAttribute(name));
+        HANDSHAKE_BEGIN.set(System.nanoTime());
+        String ip = getRemoteIp(request);
+        if (null != ip && !this.rateLimiter.tryAcquire(ip)) {
+            log.warn("{}握手太频繁，拒绝连接", ip);
+            this.handshakeRejected.increment();
+            response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+            return false;
+        }
+        if (request instanceof ServletServerHttpRequest) {
+            HttpServletRequest servletRequest = ((ServletServerHttpRequest) request).getServletRequest();
+            String room = servletRequest.getParameter("room");
+            if (RoomRegistry.isValidName(room)) {
+                attributes.put(ROOM_ATTRIBUTE, room);
+            }
+            //?format=text|json|binary 协商消息格式
+            attributes.put(MessageFormat.ATTRIBUTE, MessageFormat.parse(servletRequest.getParameter("format")));
+            String name = servletRequest.getParameter("name");
+            if (null != name) {
+                //明确带了昵称但是不合法的直接拒绝，和登录消息里的昵称不合法时一样
+                if (!ChatUser.isValidName(name)) {
+                    log.debug("昵称不合法:{}", name);
+                    response.setStatusCode(HttpStatus.BAD_REQUEST);
+                    return false;
+                }
+                attributes.put(NAME_ATTRIBUTE, name);
+            } else {
+                name = getCookie(servletRequest, NAME_COOKIE);
+                if (ChatUser.isValidName(name)) {
+                    attributes.put(NAME_ATTRIBUTE, name);
+                }
+            }
+            String seq = servletRequest.getParameter("seq");
+            if (NumberUtils.isDigits(seq) && seq.length() < 19) {
+                attributes.put(SEQ_ATTRIBUTE, Long.parseLong(seq));
             }
         }
+        //参数都检查过了最后才占名额，前面拒绝的不用释放
+        ConnectionLimiter.Permit permit = this.connectionLimiter.tryAcquire(ip);
+        if (!permit.isAccepted()) {
+            log.warn("{}连接被拒绝:{}，当前连接数:{}", ip, permit.getResult(), this.connectionLimiter.getSessionCount());
+            this.handshakeRejected.increment();
+            if (ConnectionLimiter.Result.IP_FULL == permit.getResult()) {
+                response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+            } else {
+                //节点满了、内存紧张或者正在停机都是暂时的，告诉客户端过一会儿再试，或者换个节点
+                response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+                response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(this.connectionLimiter.getRetryAfterSeconds()));
+            }
+            return false;
+        }
+        attributes.put(PERMIT_ATTRIBUTE, permit);
+        HANDSHAKE_PERMIT.set(permit);
         return true;
     }
 
     @Override
     public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Exception exception) {
+        Long begin = HANDSHAKE_BEGIN.get();
+        if (null != begin) {
+            HANDSHAKE_BEGIN.remove();
+            this.handshakeDuration.record(System.nanoTime() - begin);
+        }
+        ConnectionLimiter.Permit permit = HANDSHAKE_PERMIT.get();
+        if (null != permit) {
+            HANDSHAKE_PERMIT.remove();
+            //升级失败时连接不会建立，也就不会走到关闭连接时的释放
+            if (null != exception || isFailed(response)) {
+                permit.release();
+            }
+        }
+    }
 
+    private boolean isFailed(ServerHttpResponse response) {
+        return response instanceof ServletServerHttpResponse
+                && ((ServletServerHttpResponse) response).getServletResponse().getStatus() >= 400;
     }
 
-    private HttpSession getSession(ServerHttpRequest request) {
-        if (request instanceof ServletServerHttpRequest) {
-            ServletServerHttpRequest serverRequest = (ServletServerHttpRequest) request;
-            HttpServletRequest servletRequest = serverRequest.getServletRequest();
-            String requestURI = servletRequest.getRequestURI();
-            log.debug("requestURL;{}", requestURI);
-            Enumeration<String> parameterNames = servletRequest.getParameterNames();
-            while (parameterNames.hasMoreElements()) {
-                String name = parameterNames.nextElement();
-                Object value = servletRequest.getAttribute(name);
-                log.debug("parameterName:{}, parameterName:{}", name, value);
+    /**
+     * 释放握手时申请到的连接名额，重复释放只算一次
+     */
+    public static void releasePermit(Map<String, Object> attributes) {
+        Object permit = attributes.get(PERMIT_ATTRIBUTE);
+        if (permit instanceof ConnectionLimiter.Permit) {
+            ((ConnectionLimiter.Permit) permit).release();
+        }
+    }
+
+    private String getRemoteIp(ServerHttpRequest request) {
+        InetSocketAddress address = request.getRemoteAddress();
+        if (null == address || null == address.getAddress()) {
+            return null;
+        }
+        return address.getAddress().getHostAddress();
+    }
+
+    private String getCookie(HttpServletRequest request, String name) {
+        Cookie[] cookies = request.getCookies();
+        if (null == cookies) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) {
+                try {
+                    return URLDecoder.decode(cookie.getValue(), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
             }
-//            Enumeration<String> names = servletRequest.getAttributeNames();
-//            while (names.hasMoreElements()) {
-//                String name = names.nextElement();
-//                Object value = servletRequest.getAttribute(name);
-//                log.debug("name:{}, value:{}", name, value);
-//            }
-            return servletRequest.getSession(false);
         }
         return null;
     }
@@ -0,0 +1,38 @@
+package com.github.sd4324530.webChat.broadcast;
+
+import org.junit.Test;
+import org.springframework.web.socket.TextMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 可合并消息的覆盖和进队
+ * @author peiyu
+ */
+public class SessionOutboundTest {
+
+    @Test
+    public void replaceOnlyTouchesPendingFrameOfSameKey() {
+        SessionOutbound outbound = new SessionOutbound(null);
+        //没有同key的消息时不进队，由调用方先腾位置再进队
+        assertFalse(outbound.replace("online", new TextMessage("#sum:1")));
+        assertEquals(0, outbound.depth());
+
+        outbound.offer(new TextMessage("chat"));
+        assertTrue(outbound.coalesce("online", new TextMessage("#sum:1")));
+        assertTrue(outbound.replace("online", new TextMessage("#sum:2")));
+        assertFalse(outbound.coalesce("online", new TextMessage("#sum:3")));
+        assertEquals(2, outbound.depth());
+
+        assertEquals("chat", outbound.pollMessage().getPayload());
+        assertEquals("#sum:3", outbound.pollMessage().getPayload());
+        assertNull(outbound.pollMessage());
+        //发出去之后再来的要重新进队
+        assertFalse(outbound.replace("online", new TextMessage("#sum:4")));
+        assertTrue(outbound.coalesce("online", new TextMessage("#sum:4")));
+        assertEquals(1, outbound.depth());
+    }
+}
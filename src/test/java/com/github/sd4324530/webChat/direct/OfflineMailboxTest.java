@@ -0,0 +1,62 @@
+package com.github.sd4324530.webChat.direct;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 离线私信的存取、收信人校验和过期信箱的回收
+ * @author peiyu
+ */
+public class OfflineMailboxTest {
+
+    @Test
+    public void takesLettersInOrderOnce() {
+        OfflineMailbox mailbox = new OfflineMailbox(OfflinePolicy.QUEUE, 2, 10, 60000L);
+        assertTrue(mailbox.offer("张三", "a"));
+        assertTrue(mailbox.offer("张三", "b"));
+        //每人最多两条
+        assertFalse(mailbox.offer("张三", "c"));
+        List<OfflineMailbox.Letter> letters = mailbox.take("张三");
+        assertEquals(2, letters.size());
+        assertEquals("a", letters.get(0).getText());
+        assertEquals("b", letters.get(1).getText());
+        assertTrue(mailbox.take("张三").isEmpty());
+        assertEquals(0, mailbox.getBoxCount());
+    }
+
+    @Test
+    public void rejectsInvalidRecipients() {
+        OfflineMailbox mailbox = new OfflineMailbox(OfflinePolicy.QUEUE, 2, 10, 60000L);
+        assertFalse(mailbox.offer("这个昵称远远超过了十个字符的长度", "x"));
+        assertFalse(mailbox.offer("#sum:9", "x"));
+        assertFalse(mailbox.offer("  ", "x"));
+        assertEquals(0, mailbox.getBoxCount());
+        assertEquals(3, mailbox.getRejectedCount());
+    }
+
+    @Test
+    public void rejectPolicyStoresNothing() {
+        OfflineMailbox mailbox = new OfflineMailbox(OfflinePolicy.REJECT, 2, 10, 60000L);
+        assertFalse(mailbox.offer("张三", "a"));
+        assertEquals(0, mailbox.getBoxCount());
+    }
+
+    @Test
+    public void fullMailboxReclaimsBoxesOfUsersWhoNeverCameBack() throws InterruptedException {
+        OfflineMailbox mailbox = new OfflineMailbox(OfflinePolicy.QUEUE, 2, 2, 20L);
+        assertTrue(mailbox.offer("a", "1"));
+        assertTrue(mailbox.offer("b", "1"));
+        //已经存满，又都没过期
+        assertFalse(mailbox.offer("c", "1"));
+        Thread.sleep(1100L);
+        //a和b的私信都过期了，信箱被回收
+        assertTrue(mailbox.offer("c", "1"));
+        assertEquals(1, mailbox.getBoxCount());
+        assertTrue(mailbox.take("a").isEmpty());
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.sd4324530.webChat.dispatch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同一个连接的消息按顺序处理，关闭之后不再接收消息也不再建新队列
+ * @author peiyu
+ */
+public class InboundDispatcherTest {
+
+    private final InboundDispatcher dispatcher = new InboundDispatcher(100, 4, 2);
+
+    @Test
+    public void runsTasksOfOneSessionInOrderThenClose() throws InterruptedException {
+        this.dispatcher.open("s1");
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            assertTrue(this.dispatcher.dispatch("s1", () -> seen.add(n)));
+        }
+        CountDownLatch closed = new CountDownLatch(1);
+        this.dispatcher.close("s1", () -> {
+            seen.add(-1);
+            closed.countDown();
+        });
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, -1), seen);
+        awaitLanes(0);
+    }
+
+    @Test
+    public void dropsMessagesAfterCloseWithoutRecreatingLane() throws InterruptedException {
+        this.dispatcher.open("s2");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        //先占住队列，保证关闭的处理还没执行时就有消息进来
+        this.dispatcher.dispatch("s2", () -> await(release));
+        this.dispatcher.close("s2", closed::countDown);
+        List<String> late = new CopyOnWriteArrayList<>();
+        assertTrue(this.dispatcher.dispatch("s2", () -> late.add("关闭的处理还没执行")));
+        release.countDown();
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        awaitLanes(0);
+
+        //关闭的处理执行完之后才到的消息，比如心跳超时之后连接上又来了一帧
+        assertTrue(this.dispatcher.dispatch("s2", () -> late.add("队列已经删除")));
+        //再次关闭也不会重建队列
+        this.dispatcher.close("s2", () -> late.add("重复关闭"));
+        assertEquals(0, this.dispatcher.getLaneCount());
+        assertTrue(late.isEmpty());
+        assertEquals(2, this.dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void rejectsWhenSessionBacklogIsFull() {
+        this.dispatcher.open("s3");
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                if (this.dispatcher.dispatch("s3", () -> await(release))) {
+                    accepted++;
+                }
+            }
+            //第一条正在执行，另外最多排队4条
+            assertTrue(accepted <= 5);
+            assertFalse(this.dispatcher.dispatch("s3", () -> {
+            }));
+            assertTrue(this.dispatcher.getRejectedCount() > 0);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private void awaitLanes(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (this.dispatcher.getLaneCount() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals(expected, this.dispatcher.getLaneCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.sd4324530.webChat.filter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多模式匹配：重叠的词、共同前缀、替换、忽略大小写和空词表
+ * @author peiyu
+ */
+public class AhoCorasickTest {
+
+    @Test
+    public void findsWordInsideLongerWordViaFailureLink() {
+        AhoCorasick automaton = AhoCorasick.compile(Arrays.asList("abcd", "bc"));
+        assertEquals(Arrays.asList("1-3", "0-4"), hits(automaton, "abcd"));
+        assertEquals(Collections.singletonList("1-3"), hits(automaton, "abce"));
+        assertEquals("****", automaton.mask("abcd", '*'));
+        assertEquals("a**e", automaton.mask("abce", '*'));
+    }
+
+    @Test
+    public void reportsLongestWordEndingAtEachPosition() {
+        AhoCorasick automaton = AhoCorasick.compile(Arrays.asList("he", "she", "his", "hers"));
+        assertEquals(4, automaton.size());
+        //she和he都在位置4结束，只报告更长的she
+        assertEquals(Arrays.asList("1-4", "2-6"), hits(automaton, "ushers"));
+        assertEquals("u*****", automaton.mask("ushers", '*'));
+        assertEquals(Collections.singletonList("0-3"), hits(automaton, "hisx"));
+    }
+
+    @Test
+    public void sharedPrefixesMatchIndependently() {
+        AhoCorasick automaton = AhoCorasick.compile(Arrays.asList("广告", "广告位", "广州"));
+        assertEquals("这里有**", automaton.mask("这里有广告", '*'));
+        assertEquals("***出租", automaton.mask("广告位出租", '*'));
+        assertEquals("去**", automaton.mask("去广州", '*'));
+        assertFalse(automaton.containsAny("广东"));
+    }
+
+    @Test
+    public void ignoresCase() {
+        AhoCorasick automaton = AhoCorasick.compile(Collections.singletonList("SpAm"));
+        assertTrue(automaton.containsAny("no SPAM here"));
+        assertTrue(automaton.containsAny("spam"));
+        assertEquals("no **** here", automaton.mask("no sPaM here", '*'));
+        assertTrue(AhoCorasick.compile(Collections.singletonList("ÄRGER")).containsAny("kein ärger"));
+    }
+
+    @Test
+    public void unmatchedTextIsReturnedAsIs() {
+        AhoCorasick automaton = AhoCorasick.compile(Collections.singletonList("bad"));
+        String text = "all good";
+        assertSame(text, automaton.mask(text, '*'));
+        assertFalse(automaton.containsAny(text));
+    }
+
+    @Test
+    public void stopsWhenHitReturnsFalse() {
+        AhoCorasick automaton = AhoCorasick.compile(Collections.singletonList("a"));
+        List<Integer> seen = new ArrayList<>();
+        automaton.match("aaa", (begin, end) -> {
+            seen.add(begin);
+            return false;
+        });
+        assertEquals(Collections.singletonList(0), seen);
+    }
+
+    @Test
+    public void emptyAutomatonMatchesNothing() {
+        for (AhoCorasick automaton : Arrays.asList(AhoCorasick.empty(), AhoCorasick.compile(Arrays.asList("", null)))) {
+            assertEquals(0, automaton.size());
+            assertFalse(automaton.containsAny("anything"));
+            assertEquals("anything", automaton.mask("anything", '*'));
+            assertTrue(hits(automaton, "anything").isEmpty());
+        }
+    }
+
+    @Test
+    public void ignoresDuplicateWords() {
+        assertEquals(1, AhoCorasick.compile(Arrays.asList("dup", "DUP", "dup")).size());
+    }
+
+    private static List<String> hits(AhoCorasick automaton, String text) {
+        List<String> hits = new ArrayList<>();
+        automaton.match(text, (begin, end) -> hits.add(begin + "-" + end));
+        return hits;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.sd4324530.webChat.heartbeat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 时间轮的到期、取消、多圈任务和异常隔离
+ * @author peiyu
+ */
+public class HashedWheelTimerTest {
+
+    private static final long TICK_MILLIS = 10L;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("wheel-test-", TICK_MILLIS, 8);
+
+    @After
+    public void tearDown() {
+        this.timer.stop();
+    }
+
+    @Test
+    public void roundsWheelSizeUpToPowerOfTwo() {
+        assertEquals(8, this.timer.getWheelSize());
+        HashedWheelTimer small = new HashedWheelTimer("wheel-test-", TICK_MILLIS, 5);
+        HashedWheelTimer one = new HashedWheelTimer("wheel-test-", TICK_MILLIS, 1);
+        try {
+            assertEquals(8, small.getWheelSize());
+            assertEquals(2, one.getWheelSize());
+        } finally {
+            small.stop();
+            one.stop();
+        }
+    }
+
+    @Test
+    public void runsTaskNoEarlierThanDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong elapsed = new AtomicLong();
+        long begin = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = this.timer.newTimeout(() -> {
+            elapsed.set(System.nanoTime() - begin);
+            fired.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+        assertEquals(1, this.timer.getPendingTimeouts());
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        //精度是一格
+        assertTrue(elapsed.get() >= TimeUnit.MILLISECONDS.toNanos(50 - TICK_MILLIS));
+        assertTrue(timeout.isDone());
+        assertFalse(timeout.cancel());
+        assertEquals(0, this.timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void waitsExtraRoundsForDelaysLongerThanOneTurn() throws InterruptedException {
+        //一圈8格共80ms，这个任务要转两圈多
+        long delay = 200;
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong elapsed = new AtomicLong();
+        long begin = System.nanoTime();
+        this.timer.newTimeout(() -> {
+            elapsed.set(System.nanoTime() - begin);
+            fired.countDown();
+        }, delay, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsed.get() >= TimeUnit.MILLISECONDS.toNanos(delay - TICK_MILLIS));
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = this.timer.newTimeout(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, this.timer.getPendingTimeouts());
+
+        CountDownLatch after = new CountDownLatch(1);
+        this.timer.newTimeout(after::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(after.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        this.timer.newTimeout(() -> {
+            throw new IllegalStateException("测试异常");
+        }, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch fired = new CountDownLatch(1);
+        this.timer.newTimeout(fired::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsNewTasksAfterStop() {
+        this.timer.stop();
+        this.timer.newTimeout(() -> {
+        }, 1, TimeUnit.MILLISECONDS);
+    }
+}
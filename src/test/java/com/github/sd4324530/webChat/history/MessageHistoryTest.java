@@ -0,0 +1,119 @@
+package com.github.sd4324530.webChat.history;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 环形缓冲区的容量、覆盖和按序号读取
+ * @author peiyu
+ */
+public class MessageHistoryTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, new MessageHistory("大厅", 5).capacity());
+        assertEquals(8, new MessageHistory("大厅", 8).capacity());
+        assertEquals(2, new MessageHistory("大厅", 0).capacity());
+    }
+
+    @Test
+    public void emptyHistoryReturnsNothing() {
+        MessageHistory history = new MessageHistory("大厅", 4);
+        assertEquals(0, history.lastSeq());
+        assertTrue(history.latest(10).isEmpty());
+        assertTrue(history.since(0, 10).isEmpty());
+    }
+
+    @Test
+    public void returnsEntriesAfterSinceInOrder() {
+        MessageHistory history = append(new MessageHistory("大厅", 8), 5);
+        assertSeqs(history.since(2, 10), 3, 4, 5);
+        assertTrue(history.since(5, 10).isEmpty());
+        assertEquals("大厅", history.since(4, 10).get(0).getRoom());
+    }
+
+    @Test
+    public void keepsOnlyNewestAfterWrapAround() {
+        MessageHistory history = append(new MessageHistory("大厅", 4), 10);
+        assertEquals(10, history.lastSeq());
+        assertSeqs(history.latest(100), 7, 8, 9, 10);
+        //要的比缓冲区里剩下的还早，只能给出还没被覆盖的
+        assertSeqs(history.since(1, 100), 7, 8, 9, 10);
+        assertSeqs(history.since(8, 100), 9, 10);
+    }
+
+    @Test
+    public void limitsToNewestMax() {
+        MessageHistory history = append(new MessageHistory("大厅", 8), 6);
+        assertSeqs(history.latest(2), 5, 6);
+        assertSeqs(history.since(1, 3), 4, 5, 6);
+    }
+
+    @Test
+    public void restoreKeepsOriginalSeqs() {
+        MessageHistory history = new MessageHistory("大厅", 4);
+        for (long seq = 20; seq <= 25; seq++) {
+            history.restore(new HistoryEntry(seq, seq, "大厅", "peiyu", "消息" + seq, null));
+        }
+        assertEquals(25, history.lastSeq());
+        assertSeqs(history.latest(10), 22, 23, 24, 25);
+        assertEquals(26, history.append(26L, "peiyu", "新消息", null).getSeq());
+        assertSeqs(history.latest(10), 23, 24, 25, 26);
+    }
+
+    @Test
+    public void epochIsKeptInHighBitsOfSeq() {
+        MessageHistory history = new MessageHistory("大厅", 4, 3);
+        assertEquals(3, history.epoch());
+        assertEquals(3L << MessageHistory.EPOCH_SHIFT, history.lastSeq());
+        assertTrue(history.latest(10).isEmpty());
+        append(history, 6);
+        long first = (3L << MessageHistory.EPOCH_SHIFT) + 1;
+        assertEquals(first + 5, history.lastSeq());
+        assertSeqs(history.latest(10), first + 2, first + 3, first + 4, first + 5);
+        assertSeqs(history.since(first + 3, 10), first + 4, first + 5);
+    }
+
+    @Test
+    public void seqFromAnotherNodeIsNotKnown() {
+        //同一批消息在两个节点上各自分配序号
+        MessageHistory nodeA = append(new MessageHistory("大厅", 8, 1), 5);
+        MessageHistory nodeB = append(new MessageHistory("大厅", 8, 2), 3);
+        long seenOnA = nodeA.since(3, 10).get(0).getSeq();
+        assertTrue(nodeA.isKnown(seenOnA));
+        //重连到B时带来的是A的序号，不能拿来续传
+        assertFalse(nodeB.isKnown(seenOnA));
+        assertFalse(nodeB.isKnown(nodeB.lastSeq() + 1));
+        assertFalse(nodeB.isKnown(-1));
+        assertTrue(nodeB.isKnown(nodeB.lastSeq()));
+    }
+
+    @Test
+    public void restoreAdoptsEpochOfJournal() {
+        MessageHistory history = new MessageHistory("大厅", 4, 9);
+        long seq = (5L << MessageHistory.EPOCH_SHIFT) + 7;
+        history.restore(new HistoryEntry(seq, 1L, "大厅", "peiyu", "消息", null));
+        assertEquals(5, history.epoch());
+        assertTrue(history.isKnown(seq));
+        assertEquals(seq + 1, history.append(2L, "peiyu", "新消息", null).getSeq());
+    }
+
+    private static MessageHistory append(MessageHistory history, int count) {
+        for (int i = 1; i <= count; i++) {
+            history.append(i, "peiyu", "消息" + i, "peiyu: 消息" + i);
+        }
+        return history;
+    }
+
+    private static void assertSeqs(List<HistoryEntry> entries, long... seqs) {
+        assertEquals(seqs.length, entries.size());
+        for (int i = 0; i < seqs.length; i++) {
+            assertEquals(seqs[i], entries.get(i).getSeq());
+        }
+    }
+}
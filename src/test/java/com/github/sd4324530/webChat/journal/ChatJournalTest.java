@@ -0,0 +1,180 @@
+package com.github.sd4324530.webChat.journal;
+
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消息日志的写入、恢复、损坏记录的处理、换段和清理
+ * @author peiyu
+ */
+public class ChatJournalTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversWrittenEntriesAfterReopen() throws IOException {
+        File dir = this.folder.newFolder();
+        write(dir, SEGMENT_BYTES, Long.MAX_VALUE, entry(1, "你好"), entry(2, "第二条"), new HistoryEntry(3, 3000L, "房间", null, "系统提示", null));
+
+        List<HistoryEntry> recovered = recover(dir, SEGMENT_BYTES);
+        assertEquals(3, recovered.size());
+        HistoryEntry first = recovered.get(0);
+        assertEquals(1, first.getSeq());
+        assertEquals(1000L, first.getTimestamp());
+        assertEquals("大厅", first.getRoom());
+        assertEquals("peiyu", first.getUser());
+        assertEquals("你好", first.getContent());
+        assertNull(first.getText());
+        assertEquals("房间", recovered.get(2).getRoom());
+        assertNull(recovered.get(2).getUser());
+    }
+
+    @Test
+    public void stopsAtTornRecordAndAppendsAfterLastCompleteOne() throws IOException {
+        File dir = this.folder.newFolder();
+        write(dir, SEGMENT_BYTES, Long.MAX_VALUE, entry(1, "a"), entry(2, "bb"), entry(3, "ccc"));
+        File segment = onlySegment(dir);
+        //第三条只写了一半就宕机
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long third = recordOffset(raf, 2);
+            raf.setLength(third + 12);
+        }
+
+        List<HistoryEntry> recovered = recover(dir, SEGMENT_BYTES);
+        assertSeqs(recovered, 1, 2);
+
+        //恢复后从第二条之后继续写，半条记录被覆盖
+        write(dir, SEGMENT_BYTES, Long.MAX_VALUE, entry(4, "dddd"));
+        assertSeqs(recover(dir, SEGMENT_BYTES), 1, 2, 4);
+    }
+
+    @Test
+    public void stopsAtChecksumMismatch() throws IOException {
+        File dir = this.folder.newFolder();
+        write(dir, SEGMENT_BYTES, Long.MAX_VALUE, entry(1, "a"), entry(2, "bb"), entry(3, "ccc"));
+        try (RandomAccessFile raf = new RandomAccessFile(onlySegment(dir), "rw")) {
+            //改掉第二条负载的最后一个字节
+            long second = recordOffset(raf, 1);
+            raf.seek(second);
+            long last = second + 8 + raf.readInt() - 1;
+            raf.seek(last);
+            int b = raf.read();
+            raf.seek(last);
+            raf.write(b ^ 0xFF);
+        }
+
+        assertSeqs(recover(dir, SEGMENT_BYTES), 1);
+    }
+
+    @Test
+    public void rollsOverToNewSegmentsAndReadsThemInOrder() throws IOException {
+        File dir = this.folder.newFolder();
+        int segmentBytes = 256;
+        HistoryEntry[] entries = new HistoryEntry[20];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = entry(i + 1, "消息" + i);
+        }
+        write(dir, segmentBytes, Long.MAX_VALUE, entries);
+
+        assertTrue(segments(dir).length > 1);
+        List<HistoryEntry> recovered = recover(dir, segmentBytes);
+        assertEquals(entries.length, recovered.size());
+        for (int i = 0; i < entries.length; i++) {
+            assertEquals(i + 1, recovered.get(i).getSeq());
+            assertEquals("消息" + i, recovered.get(i).getContent());
+        }
+    }
+
+    @Test
+    public void deletesOldestSegmentsOverMaxBytes() throws IOException {
+        File dir = this.folder.newFolder();
+        int segmentBytes = 256;
+        HistoryEntry[] entries = new HistoryEntry[40];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = entry(i + 1, "消息" + i);
+        }
+        write(dir, segmentBytes, 3L * segmentBytes, entries);
+
+        File[] remaining = segments(dir);
+        assertTrue(remaining.length <= 3);
+        assertFalse(new File(dir, JournalSegment.fileName(0)).exists());
+        //正在写的最后一段一定保留
+        List<HistoryEntry> recovered = recover(dir, segmentBytes);
+        assertEquals(40, recovered.get(recovered.size() - 1).getSeq());
+    }
+
+    private static HistoryEntry entry(long seq, String content) {
+        return new HistoryEntry(seq, seq * 1000L, "大厅", "peiyu", content, null);
+    }
+
+    private static ChatJournal journal(File dir, int segmentBytes, long maxBytes) {
+        return new ChatJournal(true, dir, segmentBytes, FsyncPolicy.ALWAYS, 1000L, Long.MAX_VALUE, maxBytes, 1024, 100000);
+    }
+
+    /**
+     * 打开日志(会先恢复已有内容)，追加后关闭，close会等写线程写完
+     */
+    private static void write(File dir, int segmentBytes, long maxBytes, HistoryEntry... entries) {
+        ChatJournal journal = journal(dir, segmentBytes, maxBytes);
+        journal.start(entry -> {
+        });
+        for (HistoryEntry entry : entries) {
+            journal.append(entry);
+        }
+        journal.close();
+        assertEquals(entries.length, journal.getWrittenCount());
+    }
+
+    private static List<HistoryEntry> recover(File dir, int segmentBytes) {
+        List<HistoryEntry> recovered = new ArrayList<>();
+        ChatJournal journal = journal(dir, segmentBytes, Long.MAX_VALUE);
+        journal.start(recovered::add);
+        journal.close();
+        return recovered;
+    }
+
+    private static void assertSeqs(List<HistoryEntry> entries, long... seqs) {
+        assertEquals(seqs.length, entries.size());
+        for (int i = 0; i < seqs.length; i++) {
+            assertEquals(seqs[i], entries.get(i).getSeq());
+        }
+    }
+
+    private static File[] segments(File dir) {
+        return dir.listFiles((d, name) -> name.startsWith(JournalSegment.PREFIX) && name.endsWith(JournalSegment.SUFFIX));
+    }
+
+    private static File onlySegment(File dir) {
+        File[] files = segments(dir);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * @return 第index条记录的起始位置，记录头是 int 负载长度 | int CRC32
+     */
+    private static long recordOffset(RandomAccessFile raf, int index) throws IOException {
+        long offset = 0;
+        for (int i = 0; i < index; i++) {
+            raf.seek(offset);
+            offset += 8 + raf.readInt();
+        }
+        return offset;
+    }
+}
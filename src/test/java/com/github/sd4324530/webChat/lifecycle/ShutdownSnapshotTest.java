@@ -0,0 +1,101 @@
+package com.github.sd4324530.webChat.lifecycle;
+
+import com.github.sd4324530.webChat.history.HistoryEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 停机快照的写入、读回和损坏文件的识别
+ * @author peiyu
+ */
+public class ShutdownSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        List<HistoryEntry> history = Arrays.asList(
+                new HistoryEntry(1, 1000L, "大厅", "peiyu", "你好", "peiyu: 你好"),
+                new HistoryEntry(2, 2000L, "大厅", null, "系统提示", null),
+                new HistoryEntry(7, 3000L, "房间", "张三", "", null));
+        List<String[]> members = Arrays.asList(new String[]{"大厅", "peiyu"}, new String[]{"房间", "张三"});
+        File file = new File(this.folder.getRoot(), "sub/shutdown.snapshot");
+        new ShutdownSnapshot(123L, 45L, "journal-00000000000000000003.seg:99", history, members).write(file);
+
+        ShutdownSnapshot snapshot = ShutdownSnapshot.read(Files.readAllBytes(file.toPath()));
+        assertEquals(123L, snapshot.getCreatedMillis());
+        assertEquals(45L, snapshot.getDrainMillis());
+        assertEquals("journal-00000000000000000003.seg:99", snapshot.getJournalMarker());
+        assertEquals(3, snapshot.getHistory().size());
+        for (int i = 0; i < history.size(); i++) {
+            HistoryEntry expected = history.get(i);
+            HistoryEntry actual = snapshot.getHistory().get(i);
+            assertEquals(expected.getSeq(), actual.getSeq());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getRoom(), actual.getRoom());
+            assertEquals(expected.getContent(), actual.getContent());
+            //文本不写进快照，恢复时重新生成
+            assertNull(actual.getText());
+        }
+        assertEquals("peiyu", snapshot.getHistory().get(0).getUser());
+        assertEquals(2, snapshot.getMembers().size());
+        assertArrayEquals(members.get(1), snapshot.getMembers().get(1));
+        //先写临时文件再改名，不留下临时文件
+        assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+    }
+
+    @Test
+    public void rejectsFlippedByte() throws IOException {
+        byte[] data = written();
+        data[data.length - 1] ^= 0x01;
+        assertUnreadable(data);
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        byte[] data = written();
+        assertUnreadable(Arrays.copyOf(data, data.length - 1));
+        assertUnreadable(Arrays.copyOf(data, 10));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        byte[] data = written();
+        data[0] = 'X';
+        assertUnreadable(data);
+        assertUnreadable(new byte[0]);
+    }
+
+    private byte[] written() throws IOException {
+        List<HistoryEntry> history = new ArrayList<>();
+        history.add(new HistoryEntry(1, 1000L, "大厅", "peiyu", "你好", null));
+        File file = this.folder.newFile();
+        new ShutdownSnapshot(1L, 2L, "", history, Collections.singletonList(new String[]{"大厅", "peiyu"})).write(file);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static void assertUnreadable(byte[] data) {
+        try {
+            ShutdownSnapshot.read(data);
+            fail("损坏的快照不应该读取成功");
+        } catch (IOException e) {
+            //期望的结果
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.sd4324530.webChat.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 令牌桶的突发、补充和回收，以及按key限流时桶的清理
+ * @author peiyu
+ */
+public class TokenBucketTest {
+
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void allowsBurstThenRejects() {
+        long now = 1_000_000_000L;
+        TokenBucket bucket = new TokenBucket(now);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryAcquire(now, INTERVAL, 2 * INTERVAL));
+        }
+        assertFalse(bucket.tryAcquire(now, INTERVAL, 2 * INTERVAL));
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() {
+        long now = 1_000_000_000L;
+        TokenBucket bucket = new TokenBucket(now);
+        assertTrue(bucket.tryAcquire(now, INTERVAL, 0));
+        assertFalse(bucket.tryAcquire(now + INTERVAL - 1, INTERVAL, 0));
+        assertTrue(bucket.tryAcquire(now + INTERVAL, INTERVAL, 0));
+        assertFalse(bucket.tryAcquire(now + INTERVAL, INTERVAL, 0));
+    }
+
+    @Test
+    public void idleTimeDoesNotExceedCapacity() {
+        long now = 1_000_000_000L;
+        TokenBucket bucket = new TokenBucket(now);
+        long later = now + 100 * INTERVAL;
+        assertTrue(bucket.tryAcquire(later, INTERVAL, INTERVAL));
+        assertTrue(bucket.tryAcquire(later, INTERVAL, INTERVAL));
+        assertFalse(bucket.tryAcquire(later, INTERVAL, INTERVAL));
+    }
+
+    @Test
+    public void isFullOnceDebtIsRepaid() {
+        long now = 1_000_000_000L;
+        TokenBucket bucket = new TokenBucket(now);
+        assertTrue(bucket.isFull(now));
+        bucket.tryAcquire(now, INTERVAL, 0);
+        assertFalse(bucket.isFull(now + INTERVAL - 1));
+        assertTrue(bucket.isFull(now + INTERVAL));
+    }
+
+    @Test
+    public void limitsEachKeyIndependently() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(1, limiter.getRejectedCount());
+
+        limiter.remove("a");
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void evictsFullBucketsInBatches() throws InterruptedException {
+        int maxIdleKeys = 8;
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000, 1, maxIdleKeys);
+        for (int i = 0; i < maxIdleKeys; i++) {
+            limiter.tryAcquire("old" + i);
+        }
+        //1ms一个令牌，等一会儿之后这些桶都装满了
+        Thread.sleep(20);
+        limiter.tryAcquire("new0");
+        assertEquals(1, limiter.size());
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.sd4324530.webChat.protocol;
+
+import org.junit.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 三种消息格式的编解码，json和二进制编码后能原样解码回来
+ * @author peiyu
+ */
+public class EnvelopeCodecTest {
+
+    private static final Envelope CHAT = new Envelope(MessageType.CHAT, 42L, "大厅", "peiyu: 你好 \"引号\"\n换行\\反斜杠");
+
+    private static final Envelope JOIN = new Envelope(MessageType.JOIN, Envelope.NO_SEQ, null, "peiyu");
+
+    @Test
+    public void jsonRoundTrip() {
+        EnvelopeCodec codec = MessageFormat.JSON.getCodec();
+        assertEnvelope(CHAT, decodeOne(codec, codec.encode(CHAT)));
+        assertEnvelope(JOIN, decodeOne(codec, codec.encode(JOIN)));
+    }
+
+    @Test
+    public void jsonOmitsMissingSeqAndRoom() {
+        TextMessage message = (TextMessage) MessageFormat.JSON.getCodec().encode(JOIN);
+        assertEquals("{\"type\":\"join\",\"body\":\"peiyu\"}", message.getPayload());
+    }
+
+    @Test
+    public void jsonEncodesListAsArray() {
+        TextMessage message = (TextMessage) MessageFormat.JSON.getCodec().encode(Arrays.asList(JOIN, JOIN));
+        assertEquals("[{\"type\":\"join\",\"body\":\"peiyu\"},{\"type\":\"join\",\"body\":\"peiyu\"}]", message.getPayload());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jsonRejectsUnknownType() {
+        MessageFormat.JSON.getCodec().decode(new TextMessage("{\"type\":\"nope\",\"body\":\"x\"}"));
+    }
+
+    @Test
+    public void binaryRoundTripsSeveralRecordsInOneFrame() {
+        EnvelopeCodec codec = MessageFormat.BINARY.getCodec();
+        Envelope empty = new Envelope(MessageType.NOTICE, Envelope.NO_SEQ, "", "");
+        List<Envelope> decoded = codec.decode(codec.encode(Arrays.asList(CHAT, JOIN, empty)));
+        assertEquals(3, decoded.size());
+        assertEnvelope(CHAT, decoded.get(0));
+        assertEnvelope(JOIN, decoded.get(1));
+        assertEnvelope(empty, decoded.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryRejectsTruncatedFrame() {
+        EnvelopeCodec codec = MessageFormat.BINARY.getCodec();
+        ByteBuffer payload = ((BinaryMessage) codec.encode(CHAT)).getPayload();
+        ByteBuffer truncated = ByteBuffer.allocate(payload.remaining() - 3);
+        payload.limit(payload.limit() - 3);
+        truncated.put(payload).flip();
+        codec.decode(new BinaryMessage(truncated));
+    }
+
+    @Test
+    public void textDecodesJoinWithOptionalSeq() {
+        EnvelopeCodec codec = MessageFormat.TEXT.getCodec();
+        Envelope join = decodeOne(codec, new TextMessage("|peiyu"));
+        assertEquals(MessageType.JOIN, join.getType());
+        assertEquals("peiyu", join.getBody());
+        assertEquals(Envelope.NO_SEQ, join.getSeq());
+
+        Envelope resume = decodeOne(codec, new TextMessage("|peiyu|12"));
+        assertEquals(MessageType.JOIN, resume.getType());
+        assertEquals("peiyu", resume.getBody());
+        assertEquals(12L, resume.getSeq());
+
+        Envelope chat = decodeOne(codec, new TextMessage(" 你好 "));
+        assertEquals(MessageType.CHAT, chat.getType());
+        assertEquals("你好", chat.getBody());
+
+        assertTrue(codec.decode(new TextMessage("   ")).isEmpty());
+    }
+
+    @Test
+    public void textEncodesOnlineCountAndHistory() {
+        EnvelopeCodec codec = MessageFormat.TEXT.getCodec();
+        assertEquals("#sum:3", codec.encode(Envelope.online(3)).getPayload());
+        List<Envelope> history = Arrays.asList(new Envelope(MessageType.HISTORY, 7L, "大厅", "a"),
+                new Envelope(MessageType.HISTORY, 8L, "大厅", "b"));
+        assertEquals("#history:8\na\nb", codec.encode(history).getPayload());
+        assertEquals("#batch:[\"a\",\"b\"]", codec.encode(Arrays.asList(new Envelope(MessageType.CHAT, 1L, "大厅", "a"),
+                new Envelope(MessageType.CHAT, 2L, "大厅", "b"))).getPayload());
+    }
+
+    private static Envelope decodeOne(EnvelopeCodec codec, WebSocketMessage<?> message) {
+        List<Envelope> envelopes = codec.decode(message);
+        assertEquals(1, envelopes.size());
+        return envelopes.get(0);
+    }
+
+    private static void assertEnvelope(Envelope expected, Envelope actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSeq(), actual.getSeq());
+        if (null == expected.getRoom()) {
+            assertNull(actual.getRoom());
+        } else {
+            assertEquals(expected.getRoom(), actual.getRoom());
+        }
+        assertEquals(expected.getBody(), actual.getBody());
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.sd4324530.webChat.webSocket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 昵称校验
+ * @author peiyu
+ */
+public class ChatUserTest {
+
+    @Test
+    public void acceptsOrdinaryNames() {
+        assertTrue(ChatUser.isValidName("peiyu"));
+        assertTrue(ChatUser.isValidName("张三"));
+        assertTrue(ChatUser.isValidName("a#b|c"));
+        assertTrue(ChatUser.isValidName("0123456789"));
+    }
+
+    @Test
+    public void rejectsEmptyLongAndControlCharacters() {
+        assertFalse(ChatUser.isValidName(null));
+        assertFalse(ChatUser.isValidName(""));
+        assertFalse(ChatUser.isValidName("   "));
+        assertFalse(ChatUser.isValidName("01234567890"));
+        assertFalse(ChatUser.isValidName("a\nb"));
+    }
+
+    @Test
+    public void rejectsNamesThatLookLikeTextControlLines() {
+        //text格式的私信以昵称开头，老客户端会把这些当成在线人数、批量消息和历史消息
+        assertFalse(ChatUser.isValidName("#sum:9"));
+        assertFalse(ChatUser.isValidName("#batch:"));
+        assertFalse(ChatUser.isValidName("#history:1"));
+        assertFalse(ChatUser.isValidName("|peiyu"));
+    }
+}